@@ -6,8 +6,11 @@ import org.bukkit.command.CommandSender;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.ChunkStore;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.ConfigParser.Config;
+import ratismal.drivebackup.config.configSections.BackupStorage;
 import ratismal.drivebackup.config.configSections.BackupList.BackupListEntry;
 import ratismal.drivebackup.config.configSections.BackupList.BackupListEntry.PathBackupLocation;
 import ratismal.drivebackup.config.configSections.ExternalBackups.ExternalBackupSource;
@@ -21,6 +24,10 @@ import ratismal.drivebackup.handler.listeners.PlayerListener;
 import ratismal.drivebackup.plugin.Scheduler;
 import ratismal.drivebackup.uploaders.Authenticator;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
+import ratismal.drivebackup.uploaders.RetentionStage;
+import ratismal.drivebackup.uploaders.StreamingUpload;
+import ratismal.drivebackup.uploaders.StreamingUploader;
+import ratismal.drivebackup.uploaders.UploadDispatcher;
 import ratismal.drivebackup.uploaders.Uploader;
 import ratismal.drivebackup.uploaders.dropbox.DropboxUploader;
 import ratismal.drivebackup.uploaders.ftp.FTPUploader;
@@ -30,17 +37,21 @@ import ratismal.drivebackup.uploaders.onedrive.OneDriveUploader;
 import ratismal.drivebackup.uploaders.s3.S3Uploader;
 import ratismal.drivebackup.uploaders.webdav.NextcloudUploader;
 import ratismal.drivebackup.uploaders.webdav.WebDAVUploader;
+import ratismal.drivebackup.util.Blacklist;
 import ratismal.drivebackup.util.BlacklistEntry;
 import ratismal.drivebackup.util.FileUtil;
 import ratismal.drivebackup.util.LocalDateTimeFormatter;
 import ratismal.drivebackup.util.Logger;
 import ratismal.drivebackup.util.MessageUtil;
+import ratismal.drivebackup.util.NamedThreadFactory;
 import ratismal.drivebackup.util.ServerUtil;
 import ratismal.drivebackup.util.Timer;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.FileSystems;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
@@ -52,13 +63,23 @@ import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static ratismal.drivebackup.config.Localization.intl;
 
@@ -93,17 +114,38 @@ public class UploadThread implements Runnable {
         /**
          * The backup thread is uploading the files
          */
-        UPLOADING
+        UPLOADING,
+
+        /**
+         * The backup thread is compressing the files to be backed up, while uploading them
+         */
+        STREAMING
     }
 
     /**
      * List of {@code Uploaders} to upload the backups to
      */
     private ArrayList<Uploader> uploaders;
+    /**
+     * The stage pruning old backups from the {@code Uploaders} in the background
+     */
+    private RetentionStage retentionStage;
     /**
      * List of locations to be pruned that were successfully backed up.
      */
-    private final Map<String, LocalDateTimeFormatter> locationsToBePruned = new HashMap<>(10);
+    private final Map<String, LocalDateTimeFormatter> locationsToBePruned = new ConcurrentHashMap<>(10);
+    /**
+     * List of locations that were uploaded while being backed up, by the uploaders supporting streaming.
+     */
+    private final Set<String> streamedLocations = new HashSet<>(10);
+    /**
+     * List of locations that were successfully backed up, whose incremental backups are completed once uploaded.
+     */
+    private final Set<String> backedUpLocations = ConcurrentHashMap.newKeySet();
+    /**
+     * List of {@code Uploaders} that backups are uploaded to while being backed up
+     */
+    private List<Uploader> streamingUploaders = new ArrayList<>();
 
     /**
      * The list of items to be backed up by the backup thread.
@@ -121,7 +163,17 @@ public class UploadThread implements Runnable {
     /**
      * The backup currently being backed up by the 
      */
-    private static int backupBackingUp = 0;
+    private static final AtomicInteger backupBackingUp = new AtomicInteger();
+
+    /**
+     * The indices of the backup sets currently being backed up, as several can be backed up at once
+     */
+    private static final Set<Integer> activeBackupSets = new ConcurrentSkipListSet<>();
+
+    /**
+     * The number of bytes uploaded and the size of the files currently being uploaded, by the name of their uploader
+     */
+    private static final Map<String, long[]> uploadProgress = new ConcurrentHashMap<>();
     
     public abstract static class UploadLogger implements Logger {
         public void broadcast(String input, String... placeholders) {
@@ -204,6 +256,10 @@ public class UploadThread implements Runnable {
             lastBackupSuccessful = false;
             throw e;
         } finally {
+            if (retentionStage != null) {
+                retentionStage.close();
+                retentionStage = null;
+            }
             backupStatus = BackupStatus.NOT_RUNNING;
             if (lastBackupSuccessful) {
                 DriveBackupApi.backupDone();
@@ -223,6 +279,11 @@ public class UploadThread implements Runnable {
         if (!locationsToBePruned.isEmpty()) {
             locationsToBePruned.clear();
         }
+        streamedLocations.clear();
+        backedUpLocations.clear();
+        uploadProgress.clear();
+        streamingUploaders = new ArrayList<>();
+        uploaders = null;
         if (initiator == null) {
             updateNextIntervalBackupTime();
         }
@@ -249,55 +310,39 @@ public class UploadThread implements Runnable {
             }
         }
         logger.log(intl("backup-local-start"));
-        backupStatus = BackupStatus.COMPRESSING;
-        backupBackingUp = 0;
-        ServerUtil.setAutoSave(false);
-        for (BackupListEntry set : backupList) {
-            backupBackingUp++;
-            for (Path folder : set.location.getPaths()) {
-                if (set.create) {
-                    makeBackupFile(folder.toString(), set.formatter, Arrays.asList(set.blacklist));
+        boolean keepLocalFiles = true;
+        // Snapshots of deduplicating backups are tiny, and must only be uploaded after the packs they reference
+        if (config.backupStorage.streamingUploads && config.backupStorage.archiveFormat != ArchiveFormat.DEDUP) {
+            // Uploaders are needed before compressing, to upload backups while they're being created
+            if (!prepareUploaders(config)) {
+                return;
+            }
+            for (Uploader uploader : uploaders) {
+                if (uploader instanceof StreamingUploader) {
+                    streamingUploaders.add(uploader);
                 }
             }
+            keepLocalFiles = config.backupStorage.localKeepCount != 0 || streamingUploaders.size() < uploaders.size();
         }
+        backupStatus = streamingUploaders.isEmpty() ? BackupStatus.COMPRESSING : BackupStatus.STREAMING;
+        backupBackingUp.set(0);
+        activeBackupSets.clear();
+        ServerUtil.setAutoSave(false);
+        makeBackupSets(keepLocalFiles);
         ServerUtil.setAutoSave(true);
         logger.log(intl("backup-local-complete"));
         logger.log(intl("backup-upload-start"));
         backupStatus = BackupStatus.UPLOADING;
-        backupBackingUp = 0;
-        uploaders = new ArrayList<>(5);
-        if (config.backupMethods.googleDrive.enabled) {
-            uploaders.add(new GoogleDriveUploader(logger));
-        }
-        if (config.backupMethods.oneDrive.enabled) {
-            uploaders.add(new OneDriveUploader(logger));
-        }
-        if (config.backupMethods.dropbox.enabled) {
-            uploaders.add(new DropboxUploader(logger));
-        }
-        if (config.backupMethods.webdav.enabled) {
-            uploaders.add(new WebDAVUploader(logger, config.backupMethods.webdav));
-        }
-        if (config.backupMethods.nextcloud.enabled) {
-            uploaders.add(new NextcloudUploader(logger, config.backupMethods.nextcloud));
-        }
-        if (config.backupMethods.s3.enabled) {
-            uploaders.add(new S3Uploader(logger, config.backupMethods.s3));
-        }
-        if (config.backupMethods.ftp.enabled) {
-            uploaders.add(new FTPUploader(logger, config.backupMethods.ftp));
-        }
-        if (uploaders.isEmpty() && config.backupStorage.localKeepCount == 0) {
-            logger.log(intl("backup-no-methods"));
+        backupBackingUp.set(0);
+        if (uploaders == null && !prepareUploaders(config)) {
             return;
         }
-        ensureMethodsAuthenticated();
         uploadBackupFiles(uploaders);
+        finishIncrementalBackups(config);
         FileUtil.deleteFolder(new File("external-backups"));
         logger.log(intl("backup-upload-complete"));
         logger.log(intl("upload-error-check"));
         for (Uploader uploader : uploaders) {
-            uploader.close();
             if (uploader.isErrorWhileUploading()) {
                 logger.log(intl("backup-method-error-occurred"),
                     "diagnose-command", "/drivebackup test " + uploader.getId(),
@@ -322,12 +367,53 @@ public class UploadThread implements Runnable {
         lastBackupSuccessful = !errorOccurred;
         backupStatus = BackupStatus.PRUNING;
         pruneLocalBackups();
+        pruneRemoteBackups();
         totalTimer.end();
         long totalBackupTime = totalTimer.getTime();
         long totalSeconds = Duration.of(totalBackupTime, ChronoUnit.MILLIS).getSeconds();
         logger.log(intl("backup-total-time"), "time", String.valueOf(totalSeconds));
     }
 
+    /**
+     * Creates the {@code Uploaders} for the enabled backup methods, and removes the ones which aren't authenticated.
+     * @param config the config
+     * @return whether backing up should continue, {@code false} if there is nowhere to back up to
+     */
+    private boolean prepareUploaders(@NotNull Config config) {
+        uploaders = new ArrayList<>(5);
+        if (config.backupMethods.googleDrive.enabled) {
+            uploaders.add(new GoogleDriveUploader(logger));
+        }
+        if (config.backupMethods.oneDrive.enabled) {
+            uploaders.add(new OneDriveUploader(logger));
+        }
+        if (config.backupMethods.dropbox.enabled) {
+            uploaders.add(new DropboxUploader(logger));
+        }
+        if (config.backupMethods.webdav.enabled) {
+            uploaders.add(new WebDAVUploader(logger, config.backupMethods.webdav));
+        }
+        if (config.backupMethods.nextcloud.enabled) {
+            uploaders.add(new NextcloudUploader(logger, config.backupMethods.nextcloud));
+        }
+        if (config.backupMethods.s3.enabled) {
+            uploaders.add(new S3Uploader(logger, config.backupMethods.s3));
+        }
+        if (config.backupMethods.ftp.enabled) {
+            uploaders.add(new FTPUploader(logger, config.backupMethods.ftp));
+        }
+        if (uploaders.isEmpty() && config.backupStorage.localKeepCount == 0) {
+            logger.log(intl("backup-no-methods"));
+            return false;
+        }
+        ensureMethodsAuthenticated();
+        retentionStage = new RetentionStage(uploaders.size(), logger);
+        for (Uploader uploader : uploaders) {
+            uploader.setRetentionStage(retentionStage);
+        }
+        return true;
+    }
+
     private void ensureMethodsAuthenticated() {
         Iterator<Uploader> iterator = uploaders.iterator();
         while (iterator.hasNext()) {
@@ -357,6 +443,22 @@ public class UploadThread implements Runnable {
         }
     }
     
+    /**
+     * Waits for old backups to finish being pruned from the backup methods, reports which failed, and closes the uploaders.
+     */
+    private void pruneRemoteBackups() {
+        logger.log(intl("backup-remote-prune-start"));
+        retentionStage.awaitCompletion();
+        for (Uploader uploader : uploaders) {
+            if (retentionStage.isPruneFailed(uploader)) {
+                logger.log(intl("backup-method-prune-error-occurred"),
+                    "upload-method", uploader.getName());
+            }
+            uploader.close();
+        }
+        logger.log(intl("backup-remote-prune-complete"));
+    }
+
     private void pruneLocalBackups() {
         logger.log(intl("backup-local-prune-start"));
         for (Map.Entry<String, LocalDateTimeFormatter> entry : locationsToBePruned.entrySet()) {
@@ -368,16 +470,120 @@ public class UploadThread implements Runnable {
     }
     
     /**
-     * Creates a backup file of the specified folder
+     * Creates the backup files of every backup set, creating several at once if enabled in the {@code config.yml}.
+     * <p>
+     * Sets are backed up one at a time when streaming, as an uploader can only stream one backup at a time.
+     * @param keepLocalFiles whether to write the backup files to disk when streaming them
+     */
+    private void makeBackupSets(boolean keepLocalFiles) {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+        int threads = Math.min(backupStorage.backupSetThreads, backupList.size());
+        if (threads <= 1 || !streamingUploaders.isEmpty()) {
+            try {
+                for (int i = 0; i < backupList.size(); i++) {
+                    makeBackupSet(i, keepLocalFiles, null);
+                }
+            } finally {
+                fileUtil.shutdownThreadPools();
+            }
+            return;
+        }
+        // The sets share the compression threads, rather than each using as many as specified
+        fileUtil.setConcurrentBackups(threads);
+        Map<FileStore, Semaphore> diskPermits = new ConcurrentHashMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(
+            threads,
+            new NamedThreadFactory("BackupSet", backupStorage.threadPriority)
+            );
+        List<Future<?>> tasks = new ArrayList<>(backupList.size());
+        for (int i = 0; i < backupList.size(); i++) {
+            int setIndex = i;
+            tasks.add(executor.submit(() -> makeBackupSet(setIndex, keepLocalFiles, diskPermits)));
+        }
+        try {
+            for (Future<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    MessageUtil.sendConsoleException(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+            fileUtil.shutdownThreadPools();
+        }
+    }
+
+    /**
+     * Creates the backup files of the backup set with the specified index.
+     * @param setIndex the index of the set in the backup list
+     * @param keepLocalFile whether to write the backup files to disk when streaming them
+     * @param diskPermits the permits limiting how many backups are created from each disk at once, 
+     *                    or {@code null} if sets are backed up one at a time
+     */
+    private void makeBackupSet(int setIndex, boolean keepLocalFile, @Nullable Map<FileStore, Semaphore> diskPermits) {
+        BackupListEntry set = backupList.get(setIndex);
+        if (!set.create) {
+            return;
+        }
+        activeBackupSets.add(setIndex);
+        backupBackingUp.accumulateAndGet(setIndex + 1, Math::max);
+        try {
+            for (Path folder : set.location.getPaths()) {
+                Semaphore permits = diskPermits != null ? getDiskPermits(folder, diskPermits) : null;
+                if (permits == null) {
+                    makeBackupFile(folder.toString(), set.formatter, Arrays.asList(set.blacklist), keepLocalFile);
+                    continue;
+                }
+                permits.acquireUninterruptibly();
+                try {
+                    makeBackupFile(folder.toString(), set.formatter, Arrays.asList(set.blacklist), keepLocalFile);
+                } finally {
+                    permits.release();
+                }
+            }
+        } finally {
+            activeBackupSets.remove(setIndex);
+        }
+    }
+
+    /**
+     * Gets the permits limiting how many backups are created at once from the disk the specified folder is on.
+     * @param folder the folder to be backed up
+     * @param diskPermits the permits of each disk
+     * @return the permits, or {@code null} if the disk of the folder couldn't be determined
+     */
+    @Nullable
+    private static Semaphore getDiskPermits(@NotNull Path folder, @NotNull Map<FileStore, Semaphore> diskPermits) {
+        FileStore disk;
+        try {
+            disk = Files.getFileStore(folder);
+        } catch (IOException e) {
+            return null;
+        }
+        return diskPermits.computeIfAbsent(disk,
+            key -> new Semaphore(ConfigParser.getConfig().backupStorage.backupSetThreadsPerDisk));
+    }
+
+    /**
+     * Creates a backup file of the specified folder, uploading it to the uploaders supporting streaming while it's being created
      * @param location path to the folder
      * @param formatter save format configuration
      * @param blackList a configured blacklist (with globs)
+     * @param keepLocalFile whether to write the backup file to disk when streaming it
      */
-    private void makeBackupFile(String location, LocalDateTimeFormatter formatter, List<String> blackList) {
+    private void makeBackupFile(String location, LocalDateTimeFormatter formatter, List<String> blackList, boolean keepLocalFile) {
         logger.info(intl("backup-local-file-start"), "location", location);
+        StreamingUpload streamingUpload = null;
+        if (!streamingUploaders.isEmpty()) {
+            streamingUpload = new StreamingUpload(streamingUploaders, logger);
+            streamedLocations.add(location);
+        }
         try {
             ServerUtil.setAutoSave(false);
-            fileUtil.makeBackup(location, formatter, blackList);
+            fileUtil.makeBackup(location, formatter, blackList, streamingUpload, keepLocalFile);
         } catch (AbsolutePathException exception) {
             logger.log(intl("backup-failed-absolute-path"));
             return;
@@ -389,26 +595,65 @@ public class UploadThread implements Runnable {
             MessageUtil.sendConsoleException(exception);
             return;
         }
-        locationsToBePruned.put(location, formatter);
+        if (keepLocalFile) {
+            locationsToBePruned.put(location, formatter);
+        }
+        backedUpLocations.add(location);
         logger.info(intl("backup-local-file-complete"), "location", location);
     }
     
+    /**
+     * Completes the incremental backups of the locations backed up, only basing the next incremental backups on them if
+     * they're kept locally or were uploaded to every backup method.
+     * @param config the config
+     */
+    private void finishIncrementalBackups(@NotNull Config config) {
+        boolean backupsStored = config.backupStorage.localKeepCount != 0;
+        if (!backupsStored) {
+            backupsStored = true;
+            for (Uploader uploader : uploaders) {
+                if (uploader.isErrorWhileUploading()) {
+                    backupsStored = false;
+                    break;
+                }
+            }
+        }
+        for (String location : backedUpLocations) {
+            FileUtil.finishIncrementalBackup(location, backupsStored);
+        }
+    }
+
     private void uploadBackupFiles(List<Uploader> uploaders) {
-        for (BackupListEntry set : backupList) {
-            backupBackingUp++;
-            for (Path folder : set.location.getPaths()) {
-                uploadFile(folder.toString(), set.formatter, uploaders);
+        try (UploadDispatcher dispatcher = new UploadDispatcher(uploaders.size(), logger)) {
+            for (int i = 0; i < backupList.size(); i++) {
+                BackupListEntry set = backupList.get(i);
+                backupBackingUp.incrementAndGet();
+                activeBackupSets.clear();
+                activeBackupSets.add(i);
+                for (Path folder : set.location.getPaths()) {
+                    List<Uploader> remainingUploaders = uploaders;
+                    if (streamedLocations.contains(folder.toString())) {
+                        remainingUploaders = new ArrayList<>(uploaders);
+                        remainingUploaders.removeAll(streamingUploaders);
+                        if (remainingUploaders.isEmpty()) {
+                            continue;
+                        }
+                    }
+                    uploadFile(folder.toString(), set.formatter, remainingUploaders, dispatcher);
+                }
             }
         }
     }
     
     /**
-     * Uploads the most recent backup file to the specified uploaders
+     * Uploads the most recent backup file to the specified uploaders, uploading to all of them at once
      * @param location path to the folder
      * @param formatter save format configuration
      * @param uploaders services to upload to
+     * @param dispatcher the dispatcher to upload with
      */
-    private void uploadFile(String location, LocalDateTimeFormatter formatter, List<Uploader> uploaders) {
+    private void uploadFile(String location, LocalDateTimeFormatter formatter, List<Uploader> uploaders, UploadDispatcher dispatcher) {
+        String backupLocation = location;
         try {
             if (FileUtil.isBaseFolder(location)) {
                 location = "root";
@@ -419,30 +664,60 @@ public class UploadThread implements Runnable {
                 return;
             }
             File file = localBackups.descendingMap().firstEntry().getValue();
-            String name = file.getParent().replace("\\", "/").replace("./", "") + "/" + file.getName();
-            logger.log(intl("backup-file-upload-start"), "file-name", name);
-            Timer timer = new Timer();
-            for (Uploader uploader : uploaders) {
-                logger.info(
-                        intl("backup-method-uploading"),
-                        "upload-method",
-                        uploader.getName());
-                timer.start();
-                uploader.uploadFile(file, location);
-                timer.end();
-                if (!uploader.isErrorWhileUploading()) {
-                    logger.info(timer.getUploadTimeMessage(file));
-                } else {
-                    logger.info(intl("backup-method-upload-failed"));
+            if (ArchiveFormat.fromFileName(file.getName()) == ArchiveFormat.DEDUP) {
+                // A snapshot can't be restored without its packs, and would count towards the backups kept
+                uploaders = uploadChunkPacks(location, uploaders, dispatcher);
+                if (uploaders.isEmpty()) {
+                    backedUpLocations.remove(backupLocation);
+                    return;
                 }
             }
+            String name = file.getParent().replace("\\", "/").replace("./", "") + "/" + file.getName();
+            logger.log(intl("backup-file-upload-start"), "file-name", name);
+            dispatcher.upload(uploaders, Collections.singletonList(file), location);
             logger.log(intl("backup-file-upload-complete"), "file-name", file.getName());
         } catch (Exception e) {
             logger.info(intl("backup-method-upload-failed"));
             MessageUtil.sendConsoleException(e);
+            // Not uploaded, so the next incremental backup includes its changes again
+            backedUpLocations.remove(backupLocation);
         }
     }
 
+    /**
+     * Uploads the chunk packs of the specified location which haven't been uploaded to every uploader yet, into the chunks
+     * folder next to its backups, so they aren't listed when pruning backups.
+     * <p>
+     * Packs are only marked as uploaded if every uploader received them, so they're uploaded again with the next backup otherwise.
+     * @param location path to the folder
+     * @param uploaders services to upload to
+     * @param dispatcher the dispatcher to upload with
+     * @return the uploaders which received every pack, which the snapshot can be uploaded to
+     * @throws Exception if reading or updating the list of pending packs failed
+     */
+    @NotNull
+    private List<Uploader> uploadChunkPacks(String location, @NotNull List<Uploader> uploaders, UploadDispatcher dispatcher) throws Exception {
+        File chunkStoreFolder = FileUtil.getChunkStoreFolder(location);
+        List<File> packs = ChunkStore.getPendingPacks(chunkStoreFolder);
+        if (packs.isEmpty()) {
+            return uploaders;
+        }
+        logger.log(intl("backup-packs-upload-start"),
+            "pack-count", String.valueOf(packs.size()),
+            "location", location);
+        List<Uploader> succeeded = dispatcher.uploadChunkPacks(uploaders, packs, location);
+        if (succeeded.size() < uploaders.size()) {
+            for (Uploader uploader : uploaders) {
+                if (!succeeded.contains(uploader)) {
+                    logger.log(intl("backup-packs-upload-failed"), "upload-method", uploader.getName());
+                }
+            }
+            return succeeded;
+        }
+        ChunkStore.markPacksUploaded(chunkStoreFolder, ConfigParser.getConfig().backupStorage.localKeepCount == 0);
+        return succeeded;
+    }
+
     /**
      * Downloads files from an FTP server and stores them within the external-backups temporary folder, using the specified external backup settings.
      * @param externalBackup the external backup settings
@@ -469,14 +744,7 @@ public class UploadThread implements Runnable {
             return;
         }
         for (ExternalBackupListEntry backup : externalBackup.backupList) {
-            ArrayList<BlacklistEntry> blacklist = new ArrayList<>();
-            for (String blacklistGlob : backup.blacklist) {
-                BlacklistEntry blacklistEntry = new BlacklistEntry(
-                    blacklistGlob, 
-                    FileSystems.getDefault().getPathMatcher("glob:" + blacklistGlob)
-                    );
-                blacklist.add(blacklistEntry);
-            }
+            Blacklist blacklist = new Blacklist(Arrays.asList(backup.blacklist));
             String baseDirectory;
             if (Strings.isNullOrEmpty(externalBackup.baseDirectory)) {
                 baseDirectory = backup.path;
@@ -486,10 +754,10 @@ public class UploadThread implements Runnable {
             for (String relativeFilePath : ftpUploader.getFiles(baseDirectory)) {
                 String filePath = baseDirectory + "/" + relativeFilePath;
 
-                for (BlacklistEntry blacklistEntry : blacklist) {
-                    if (blacklistEntry.getPathMatcher().matches(Paths.get(relativeFilePath))) {
-                        blacklistEntry.incBlacklistedFiles();
-                    }
+                BlacklistEntry blacklistEntry = blacklist.match(Paths.get(relativeFilePath));
+                if (blacklistEntry != null) {
+                    blacklistEntry.incBlacklistedFiles();
+                    continue;
                 }
                 String parentFolder = new File(relativeFilePath).getParent();
                 String parentFolderPath;
@@ -500,7 +768,7 @@ public class UploadThread implements Runnable {
                 }
                 ftpUploader.downloadFile(filePath, tempFolderName + "/" + backup.path + parentFolderPath);
             }
-            for (BlacklistEntry blacklistEntry : blacklist) {
+            for (BlacklistEntry blacklistEntry : blacklist.getEntries()) {
                 String globPattern = blacklistEntry.getGlobPattern();
                 int blacklistedFiles = blacklistEntry.getBlacklistedFiles();
                 if (blacklistedFiles > 0) {
@@ -538,12 +806,7 @@ public class UploadThread implements Runnable {
         logger.info(
             intl("external-mysql-backup-start"), 
             "socket-addr", getSocketAddress(externalBackup));
-        MySQLUploader mysqlUploader = new MySQLUploader(
-                externalBackup.hostname, 
-                externalBackup.port, 
-                externalBackup.username, 
-                externalBackup.password,
-                externalBackup.ssl);
+        MySQLUploader mysqlUploader = new MySQLUploader(logger, externalBackup);
         String tempFolderName = getTempFolderName(externalBackup);
         if (tempFolderName == null) {
             logger.log(intl("external-backup-failed"));
@@ -589,6 +852,9 @@ public class UploadThread implements Runnable {
             case UPLOADING:
                 message = intl("backup-status-uploading");
                 break;
+            case STREAMING:
+                message = intl("backup-status-streaming");
+                break;
             case STARTING:
                 return intl("backup-status-starting");
             case PRUNING:
@@ -598,15 +864,45 @@ public class UploadThread implements Runnable {
         }
         BackupListEntry[] backupList = config.backupList.list;
 
-        int backupNumber = Math.max(0, backupBackingUp - 1);
-        int backupIndex = Math.min(backupNumber, backupList.length - 1);
-
-        String backupSetName = backupList[backupIndex].location.toString();
+        List<Integer> backupNumbers = new ArrayList<>(activeBackupSets);
+        if (backupNumbers.isEmpty()) {
+            backupNumbers.add(Math.max(0, backupBackingUp.get() - 1));
+        }
+        StringBuilder status = new StringBuilder();
+        for (int backupNumber : backupNumbers) {
+            int backupIndex = Math.min(backupNumber, backupList.length - 1);
+            String backupSetName = backupList[backupIndex].location.toString();
+            if (status.length() > 0) {
+                status.append('\n');
+            }
+            status.append(message
+                .replace("<set-name>", backupSetName)
+                .replace("<set-num>", String.valueOf(backupNumber+1))
+                .replace("<set-count>", String.valueOf(backupList.length)));
+        }
+        if (backupStatus == BackupStatus.UPLOADING || backupStatus == BackupStatus.STREAMING) {
+            for (Map.Entry<String, long[]> progress : new TreeMap<>(uploadProgress).entrySet()) {
+                long[] bytes = progress.getValue();
+                status.append('\n').append(intl("backup-status-upload-progress")
+                    .replace("<upload-method>", progress.getKey())
+                    .replace("<percent>", String.valueOf(bytes[0] * 100 / bytes[1])));
+            }
+        }
+        return status.toString();
+    }
 
-        return message
-            .replace("<set-name>", backupSetName)
-            .replace("<set-num>", String.valueOf(backupNumber+1))
-            .replace("<set-count>", String.valueOf(backupList.length));
+    /**
+     * Sets the progress of the file an uploader is currently uploading, shown in the backup status.
+     * @param uploaderName the name of the uploader
+     * @param uploaded the number of bytes uploaded
+     * @param total the size of the file in bytes
+     */
+    public static void setUploadProgress(String uploaderName, long uploaded, long total) {
+        if (uploaded >= total) {
+            uploadProgress.remove(uploaderName);
+        } else {
+            uploadProgress.put(uploaderName, new long[] {uploaded, total});
+        }
     }
 
     /**
@@ -0,0 +1,126 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The formats local backups can be archived in.
+ */
+public enum ArchiveFormat {
+    ZIP("zip", ".zip", "application/zip"),
+    TAR_ZSTD("tar.zst", ".tar.zst", "application/zstd"),
+    TAR_LZ4("tar.lz4", ".tar.lz4", "application/x-lz4"),
+    DEDUP("dedup", ".snapshot", "application/json");
+
+    private final String configName;
+    private final String extension;
+    private final String mimeType;
+
+    ArchiveFormat(String configName, String extension, String mimeType) {
+        this.configName = configName;
+        this.extension = extension;
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * Gets the name of the format, as used in the {@code config.yml}
+     * @return the name
+     */
+    public String getConfigName() {
+        return configName;
+    }
+
+    /**
+     * Gets the file extension of archives in this format, including the leading dot
+     * @return the extension
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Gets the MIME type of archives in this format
+     * @return the MIME type
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Changes the extension of the specified file name to the extension of this format.
+     * <p>
+     * Only file names ending in the extension of another format are changed, so that a file name format written
+     * for zip files, such as {@code Backup-%FORMAT.zip}, keeps working with any format.
+     * @param fileName the file name
+     * @return the file name with the extension of this format
+     */
+    @NotNull
+    public String applyExtension(@NotNull String fileName) {
+        ArchiveFormat format = fromFileName(fileName);
+        if (format == null || format == this) {
+            return fileName;
+        }
+        return fileName.substring(0, fileName.length() - format.extension.length()) + extension;
+    }
+
+    /**
+     * Gets the format with the specified name, as used in the {@code config.yml}
+     * @param configName the name
+     * @return the format, or {@code null} if there is no format with that name
+     */
+    @Nullable
+    @Contract (value = "null -> null", pure = true)
+    public static ArchiveFormat fromConfigName(@Nullable String configName) {
+        if (configName == null) {
+            return null;
+        }
+        for (ArchiveFormat format : values()) {
+            if (format.configName.equalsIgnoreCase(configName)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the format of the archive with the specified file name, based on its extension
+     * @param fileName the file name
+     * @return the format, or {@code null} if the file isn't an archive
+     */
+    @Nullable
+    @Contract (pure = true)
+    public static ArchiveFormat fromFileName(@NotNull String fileName) {
+        for (ArchiveFormat format : values()) {
+            if (fileName.endsWith(format.extension)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets whether the file with the specified file name is an archive in any of the formats, and thus a backup
+     * @param fileName the file name
+     * @return whether the file is an archive
+     */
+    @Contract (pure = true)
+    public static boolean isArchive(@NotNull String fileName) {
+        return fromFileName(fileName) != null;
+    }
+
+    /**
+     * Gets the MIME type of the archive with the specified file name, based on its extension
+     * @param fileName the file name
+     * @return the MIME type, or {@code application/octet-stream} if the file isn't an archive
+     */
+    @NotNull
+    @Contract (pure = true)
+    public static String getMimeType(@NotNull String fileName) {
+        ArchiveFormat format = fromFileName(fileName);
+        if (format == null) {
+            return "application/octet-stream";
+        }
+        return format.mimeType;
+    }
+}
@@ -0,0 +1,33 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Writes the files in a backup to an archive in a specific {@link ArchiveFormat}.
+ */
+public interface ArchiveWriter extends Closeable {
+
+    /**
+     * Adds an entry with the contents of the specified stream to the archive.
+     * @param name the name of the entry
+     * @param input the contents of the entry
+     * @param attributes the attributes of the file the entry was read from, or {@code null} if unknown
+     * @param compress whether to try compressing the entry, formats compressing the archive as a whole may ignore this
+     * @return whether the whole stream was included, {@code false} if reading it failed part way through
+     * @throws IOException if writing to the archive failed
+     */
+    boolean putEntry(@NotNull String name, @NotNull InputStream input, @Nullable BasicFileAttributes attributes, boolean compress) throws IOException;
+
+    /**
+     * Completes the archive and closes the underlying stream.
+     * @throws IOException if writing to the archive failed
+     */
+    @Override
+    void close() throws IOException;
+}
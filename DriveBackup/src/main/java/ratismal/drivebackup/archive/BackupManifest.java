@@ -0,0 +1,309 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state of every file in a backup set at the time of its last backup, used to only back up files which changed.
+ * <p>
+ * Files are compared by size and modification time first. Only if the modification time changed but the size didn't,
+ * the file is hashed, to avoid backing up files which were rewritten with the same contents.
+ */
+public class BackupManifest {
+    /**
+     * The name of the manifest file, stored in the folder containing the local backups of the backup set
+     */
+    public static final String FILE_NAME = "manifest.json";
+
+    /**
+     * The name of the manifest of the latest backup, until the backup is safely stored and it replaces the manifest file
+     */
+    public static final String PENDING_FILE_NAME = "manifest.pending.json";
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private final Map<String, FileState> files = new HashMap<>();
+    private final int backupsSinceFull;
+
+    /**
+     * Creates an instance of the {@code BackupManifest} object
+     * @param backupsSinceFull the number of incremental backups made since the last full backup
+     */
+    public BackupManifest(int backupsSinceFull) {
+        this.backupsSinceFull = backupsSinceFull;
+    }
+
+    /**
+     * Gets the number of incremental backups made since the last full backup.
+     * @return the number of backups
+     */
+    public int getBackupsSinceFull() {
+        return backupsSinceFull;
+    }
+
+    /**
+     * Gets the recorded state of the file with the specified path.
+     * @param path the path of the file relative to the folder being backed up
+     * @return the state, or {@code null} if the file wasn't in the last backup
+     */
+    @Nullable
+    public FileState get(String path) {
+        return files.get(path);
+    }
+
+    /**
+     * Records the state of the file with the specified path.
+     * @param path the path of the file relative to the folder being backed up
+     * @param state the state
+     */
+    public void put(String path, FileState state) {
+        files.put(path, state);
+    }
+
+    /**
+     * Gets the paths of all files in the manifest.
+     * @return the paths relative to the folder being backed up
+     */
+    @NotNull
+    public Set<String> getPaths() {
+        return files.keySet();
+    }
+
+    /**
+     * Loads a manifest from the specified file.
+     * @param file the manifest file
+     * @return the manifest, or {@code null} if the file doesn't exist or isn't a valid manifest
+     */
+    @Nullable
+    public static BackupManifest load(@NotNull File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            BackupManifest manifest = new BackupManifest(json.getInt("backups-since-full"));
+            JSONArray files = json.getJSONArray("files");
+            for (int i = 0; i < files.length(); i++) {
+                JSONObject entry = files.getJSONObject(i);
+                manifest.put(entry.getString("path"), new FileState(
+                    entry.getLong("size"),
+                    entry.getLong("modified"),
+                    entry.optString("hash", null),
+                    decodeTimestamps(entry.optString("region-timestamps", null))));
+            }
+            return manifest;
+        } catch (IOException | JSONException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Saves the manifest to the specified file, replacing it atomically so that an interrupted save can't corrupt it.
+     * @param file the manifest file
+     * @throws IOException if writing the file failed
+     */
+    public void save(@NotNull File file) throws IOException {
+        JSONArray entries = new JSONArray();
+        for (Map.Entry<String, FileState> fileEntry : files.entrySet()) {
+            FileState state = fileEntry.getValue();
+            JSONObject entry = new JSONObject();
+            entry.put("path", fileEntry.getKey());
+            entry.put("size", state.size);
+            entry.put("modified", state.modifiedTime);
+            if (state.hash != null) {
+                entry.put("hash", state.hash);
+            }
+            if (state.regionTimestamps != null) {
+                entry.put("region-timestamps", encodeTimestamps(state.regionTimestamps));
+            }
+            entries.put(entry);
+        }
+        JSONObject json = new JSONObject();
+        json.put("backups-since-full", backupsSinceFull);
+        json.put("files", entries);
+        Path temporaryFile = new File(file.getPath() + ".tmp").toPath();
+        Files.write(temporaryFile, json.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temporaryFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Replaces the manifest in the specified folder with the pending manifest, so the next incremental backup is based on
+     * the latest backup.
+     * @param folder the folder containing the local backups of the backup set
+     * @throws IOException if replacing the manifest failed
+     */
+    public static void commitPending(@NotNull File folder) throws IOException {
+        Path pendingFile = new File(folder, PENDING_FILE_NAME).toPath();
+        if (Files.exists(pendingFile)) {
+            Files.move(pendingFile, new File(folder, FILE_NAME).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Deletes the pending manifest in the specified folder, keeping the previous manifest, so the next incremental backup
+     * includes the changes since the backup before the latest one again.
+     * @param folder the folder containing the local backups of the backup set
+     * @throws IOException if deleting the pending manifest failed
+     */
+    public static void discardPending(@NotNull File folder) throws IOException {
+        Files.deleteIfExists(new File(folder, PENDING_FILE_NAME).toPath());
+    }
+
+    /**
+     * Creates a digest for hashing file contents with.
+     * @return the digest
+     */
+    @NotNull
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hashes the contents of the specified file.
+     * @param path the path of the file
+     * @return the hash as a hex string
+     * @throws IOException if reading the file failed
+     */
+    @NotNull
+    public static String hash(@NotNull Path path) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream input = Files.newInputStream(path)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Converts the specified hash to a hex string.
+     * @param hash the hash
+     * @return the hex string
+     */
+    @NotNull
+    public static String toHex(byte @NotNull [] hash) {
+        StringBuilder builder = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    @NotNull
+    private static String encodeTimestamps(int @NotNull [] timestamps) {
+        ByteBuffer buffer = ByteBuffer.allocate(timestamps.length * 4);
+        buffer.asIntBuffer().put(timestamps);
+        return Base64.getEncoder().encodeToString(buffer.array());
+    }
+
+    private static int @Nullable [] decodeTimestamps(@Nullable String encoded) {
+        if (encoded == null) {
+            return null;
+        }
+        byte[] bytes = Base64.getDecoder().decode(encoded);
+        if (bytes.length != RegionFile.CHUNK_COUNT * 4) {
+            return null;
+        }
+        int[] timestamps = new int[RegionFile.CHUNK_COUNT];
+        ByteBuffer.wrap(bytes).asIntBuffer().get(timestamps);
+        return timestamps;
+    }
+
+    /**
+     * The state of a file at the time it was backed up
+     */
+    public static final class FileState {
+        private final long size;
+        private final long modifiedTime;
+        private final String hash;
+        private final int[] regionTimestamps;
+
+        /**
+         * Creates an instance of the {@code FileState} object
+         * @param size the size of the file
+         * @param modifiedTime the modification time of the file in milliseconds
+         * @param hash the hash of the contents of the file, or {@code null} if unknown
+         */
+        public FileState(long size, long modifiedTime, @Nullable String hash) {
+            this(size, modifiedTime, hash, null);
+        }
+
+        /**
+         * Creates an instance of the {@code FileState} object for a region file
+         * @param size the size of the file
+         * @param modifiedTime the modification time of the file in milliseconds
+         * @param hash the hash of the contents of the file, or {@code null} if unknown
+         * @param regionTimestamps the timestamps of the chunks in the region file, or {@code null} if it isn't a region file
+         */
+        public FileState(long size, long modifiedTime, @Nullable String hash, int @Nullable [] regionTimestamps) {
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.hash = hash;
+            this.regionTimestamps = regionTimestamps;
+        }
+
+        /**
+         * Creates a state which never matches a file, so that the file is backed up again in the next backup.
+         * @return the state
+         */
+        @NotNull
+        @Contract (" -> new")
+        public static FileState unknown() {
+            return new FileState(-1L, -1L, null);
+        }
+
+        /**
+         * Whether the file has the same size and modification time as when this state was recorded.
+         * @param attributes the current attributes of the file
+         * @return whether the file is unchanged
+         */
+        public boolean matches(@NotNull BasicFileAttributes attributes) {
+            return size == attributes.size() && modifiedTime == attributes.lastModifiedTime().toMillis();
+        }
+
+        /**
+         * Whether the file has the same size as when this state was recorded, and a known hash to compare its contents with.
+         * @param attributes the current attributes of the file
+         * @return whether hashing the file can tell if it changed
+         */
+        public boolean canCompareHash(@NotNull BasicFileAttributes attributes) {
+            return hash != null && size == attributes.size();
+        }
+
+        @Nullable
+        public String getHash() {
+            return hash;
+        }
+
+        public int @Nullable [] getRegionTimestamps() {
+            return regionTimestamps;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package ratismal.drivebackup.archive;
+
+import com.github.luben.zstd.ZstdInputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import ratismal.drivebackup.archive.ChunkStore.ChunkLocation;
+import ratismal.drivebackup.archive.ChunkStore.FileEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Restores a full backup and the incremental backups made after it into a folder.
+ * <p>
+ * Backups are extracted in order. Files in incremental backups replace the restored files, region deltas are applied to
+ * the restored region files, and files listed as deleted are deleted. Snapshots of deduplicating backups are complete
+ * backups on their own, and are restored from the packs in the same folder as the snapshot, or in the {@code chunks}
+ * folder next to it, as they are stored locally. Run it while the server is stopped with:
+ * <pre>java -cp DriveBackupV2.jar ratismal.drivebackup.archive.BackupRestorer &lt;target folder&gt; &lt;backup&gt;...</pre>
+ */
+public class BackupRestorer {
+    /**
+     * The name of the entry in incremental backups listing the files deleted since the previous backup
+     */
+    public static final String DELETED_FILES_ENTRY = "deleted-files.txt";
+
+    private final Path targetFolder;
+
+    /**
+     * Creates an instance of the {@code BackupRestorer} object
+     * @param targetFolder the folder to restore the backups into
+     */
+    public BackupRestorer(@NotNull File targetFolder) {
+        this.targetFolder = targetFolder.toPath().toAbsolutePath().normalize();
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: java -cp DriveBackupV2.jar " + BackupRestorer.class.getName() + " <target folder> <full backup> [incremental backups...]");
+            System.out.println("Incremental backups have to be listed in the order they were made.");
+            System.out.println("Deduplicating backups are restored from a single snapshot, with its packs in the same folder or a chunks folder next to it.");
+            System.exit(1);
+            return;
+        }
+        BackupRestorer restorer = new BackupRestorer(new File(args[0]));
+        for (int i = 1; i < args.length; i++) {
+            System.out.println("Restoring " + args[i]);
+            try {
+                restorer.restore(new File(args[i]));
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Failed to restore " + args[i] + ": " + e.getMessage());
+                System.exit(1);
+                return;
+            }
+        }
+        System.out.println("Restore complete");
+    }
+
+    /**
+     * Extracts the specified backup into the target folder, on top of the backups restored before it.
+     * @param backup the backup archive
+     * @throws IOException if reading the backup or writing a restored file failed
+     */
+    public void restore(@NotNull File backup) throws IOException {
+        if (ArchiveFormat.fromFileName(backup.getName()) == ArchiveFormat.DEDUP) {
+            restoreSnapshot(backup);
+            return;
+        }
+        List<String> deletedFiles = new ArrayList<>();
+        try (ArchiveInputStream<?> archive = openArchive(backup)) {
+            ArchiveEntry entry;
+            while ((entry = archive.getNextEntry()) != null) {
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                String name = entry.getName();
+                if (name.equals(DELETED_FILES_ENTRY)) {
+                    BufferedReader reader = new BufferedReader(new InputStreamReader(archive, StandardCharsets.UTF_8));
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (!line.isEmpty()) {
+                            deletedFiles.add(line);
+                        }
+                    }
+                } else if (name.endsWith(RegionFile.EXTENSION + RegionDelta.EXTENSION)) {
+                    String regionFileName = name.substring(0, name.length() - RegionDelta.EXTENSION.length());
+                    RegionDelta.apply(resolve(regionFileName).toFile(), archive);
+                } else {
+                    Path file = resolve(name);
+                    Files.createDirectories(file.getParent());
+                    Files.copy(archive, file, StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        for (String deletedFile : deletedFiles) {
+            Files.deleteIfExists(resolve(deletedFile));
+        }
+    }
+
+    /**
+     * Restores the files in the specified snapshot of a deduplicating backup into the target folder, reassembling each file
+     * from its chunks.
+     * @param snapshotFile the snapshot
+     * @throws IOException if the snapshot is invalid, or reading a pack or writing a restored file failed
+     */
+    private void restoreSnapshot(@NotNull File snapshotFile) throws IOException {
+        File folder = snapshotFile.getAbsoluteFile().getParentFile();
+        Map<String, RandomAccessFile> packs = new HashMap<>();
+        Inflater inflater = new Inflater(true);
+        try {
+            JSONObject snapshot = new JSONObject(new String(Files.readAllBytes(snapshotFile.toPath()), StandardCharsets.UTF_8));
+            JSONObject chunks = snapshot.getJSONObject("chunks");
+            JSONArray files = snapshot.getJSONArray("files");
+            for (int i = 0; i < files.length(); i++) {
+                FileEntry entry = FileEntry.fromJson(files.getJSONObject(i));
+                Path file = resolve(entry.getPath());
+                Files.createDirectories(file.getParent());
+                try (OutputStream output = new BufferedOutputStream(Files.newOutputStream(file))) {
+                    for (String hash : entry.getChunks()) {
+                        if (!chunks.has(hash)) {
+                            throw new IOException("Chunk " + hash + " of " + entry.getPath() + " is missing from the snapshot");
+                        }
+                        ChunkLocation location = ChunkLocation.fromJson(chunks.getJSONObject(hash));
+                        output.write(readChunk(hash, location, getPack(folder, location.getPack(), packs), inflater));
+                    }
+                }
+                Files.setLastModifiedTime(file, FileTime.fromMillis(entry.getModifiedTime()));
+            }
+        } catch (JSONException e) {
+            throw new IOException("Invalid snapshot", e);
+        } finally {
+            inflater.end();
+            for (RandomAccessFile pack : packs.values()) {
+                pack.close();
+            }
+        }
+    }
+
+    /**
+     * Opens the specified pack, looking for it in the folder of the snapshot, and in the chunk store folder inside it.
+     * @param folder the folder of the snapshot
+     * @param packName the name of the pack
+     * @param packs the packs opened so far
+     * @return the pack
+     * @throws IOException if the pack can't be found
+     */
+    @NotNull
+    private static RandomAccessFile getPack(@NotNull File folder, @NotNull String packName, @NotNull Map<String, RandomAccessFile> packs) throws IOException {
+        RandomAccessFile pack = packs.get(packName);
+        if (pack != null) {
+            return pack;
+        }
+        File packFile = new File(folder, packName);
+        if (!packFile.exists()) {
+            packFile = new File(new File(folder, ChunkStore.FOLDER_NAME), packName);
+        }
+        if (!packFile.exists()) {
+            throw new IOException("Pack " + packName + " not found");
+        }
+        pack = new RandomAccessFile(packFile, "r");
+        packs.put(packName, pack);
+        return pack;
+    }
+
+    /**
+     * Reads the specified chunk from its pack, decompressing it, and checks that it matches its hash.
+     * @param hash the hash of the uncompressed chunk
+     * @param location the location of the chunk
+     * @param pack the pack containing the chunk
+     * @param inflater the inflater to decompress the chunk with
+     * @return the uncompressed chunk
+     * @throws IOException if reading the chunk failed, or it's corrupted
+     */
+    private static byte @NotNull [] readChunk(@NotNull String hash, @NotNull ChunkLocation location, @NotNull RandomAccessFile pack, @NotNull Inflater inflater) throws IOException {
+        byte[] stored = new byte[location.getLength()];
+        pack.seek(location.getOffset());
+        pack.readFully(stored);
+        byte[] chunk = stored;
+        if (location.isCompressed()) {
+            chunk = new byte[location.getSize()];
+            inflater.reset();
+            inflater.setInput(stored);
+            try {
+                int inflated = 0;
+                while (inflated < chunk.length && !inflater.finished()) {
+                    int read = inflater.inflate(chunk, inflated, chunk.length - inflated);
+                    if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                    inflated += read;
+                }
+                if (inflated != chunk.length) {
+                    throw new IOException("Chunk " + hash + " is truncated");
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Chunk " + hash + " is corrupted", e);
+            }
+        }
+        MessageDigest digest = BackupManifest.newDigest();
+        if (!BackupManifest.toHex(digest.digest(chunk)).equals(hash)) {
+            throw new IOException("Chunk " + hash + " is corrupted");
+        }
+        return chunk;
+    }
+
+    /**
+     * Resolves the name of an archive entry against the target folder.
+     * @param name the name of the entry
+     * @return the path of the restored file
+     * @throws IOException if the entry would be restored outside of the target folder
+     */
+    @NotNull
+    private Path resolve(@NotNull String name) throws IOException {
+        Path file = targetFolder.resolve(name).normalize();
+        if (!file.startsWith(targetFolder)) {
+            throw new IOException("Entry " + name + " is outside of the target folder");
+        }
+        return file;
+    }
+
+    @NotNull
+    private static ArchiveInputStream<?> openArchive(@NotNull File backup) throws IOException {
+        ArchiveFormat format = ArchiveFormat.fromFileName(backup.getName());
+        if (format == null) {
+            throw new IOException("Unsupported backup format");
+        }
+        InputStream input = new BufferedInputStream(new FileInputStream(backup));
+        try {
+            switch (format) {
+                case TAR_ZSTD:
+                    return new TarArchiveInputStream(new ZstdInputStream(input), StandardCharsets.UTF_8.name());
+                case TAR_LZ4:
+                    return new TarArchiveInputStream(new LZ4FrameInputStream(input), StandardCharsets.UTF_8.name());
+                default:
+                    return new ZipArchiveInputStream(input, StandardCharsets.UTF_8.name());
+            }
+        } catch (IOException | RuntimeException e) {
+            input.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The local store of a deduplicating backup set, keeping track of every chunk ever backed up.
+ * <p>
+ * New chunks are appended to pack files, which are named after the hash of their contents once they're full. Packs are
+ * never modified afterwards, and stay pending until they've been uploaded to every backup method. The index maps the
+ * hash of every chunk to its location in a pack, and remembers the chunks of every file in the last backup, so
+ * unchanged files don't have to be read again.
+ */
+public class ChunkStore {
+    /**
+     * The name of the folder containing the store, inside the folder containing the local backups of the backup set
+     */
+    public static final String FOLDER_NAME = "chunks";
+    public static final String PACK_EXTENSION = ".pack";
+
+    private static final String INDEX_FILE = "index.json";
+    private static final String PENDING_PACKS_FILE = "pending-packs.txt";
+    private static final String CURRENT_PACK_FILE = "current.pack.tmp";
+    private static final int PACK_SIZE = 16 * 1024 * 1024;
+
+    private final File folder;
+    private final Map<String, ChunkLocation> chunks = new HashMap<>();
+    private final Map<String, FileEntry> previousFiles = new HashMap<>();
+    private final List<String> newPacks = new ArrayList<>();
+    private DigestOutputStream currentPack;
+    private long currentPackSize;
+    private final List<String> currentPackChunks = new ArrayList<>();
+
+    private ChunkStore(@NotNull File folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * Opens the store in the specified folder, creating it if it doesn't exist.
+     * <p>
+     * If the index is missing or unreadable, the store starts empty, so every chunk is backed up again.
+     * @param folder the folder
+     * @return the store
+     * @throws IOException if creating the folder failed
+     */
+    @NotNull
+    public static ChunkStore open(@NotNull File folder) throws IOException {
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Failed to create chunk store folder " + folder.getPath());
+        }
+        ChunkStore store = new ChunkStore(folder);
+        File indexFile = new File(folder, INDEX_FILE);
+        if (indexFile.exists()) {
+            try {
+                JSONObject index = new JSONObject(new String(Files.readAllBytes(indexFile.toPath()), StandardCharsets.UTF_8));
+                JSONObject chunks = index.getJSONObject("chunks");
+                for (String hash : chunks.keySet()) {
+                    store.chunks.put(hash, ChunkLocation.fromJson(chunks.getJSONObject(hash)));
+                }
+                JSONArray files = index.getJSONArray("files");
+                for (int i = 0; i < files.length(); i++) {
+                    FileEntry file = FileEntry.fromJson(files.getJSONObject(i));
+                    store.previousFiles.put(file.path, file);
+                }
+            } catch (IOException | JSONException e) {
+                store.chunks.clear();
+                store.previousFiles.clear();
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Whether the chunk with the specified hash is stored.
+     * @param hash the hash of the chunk
+     * @return whether the chunk is stored
+     */
+    public boolean contains(@NotNull String hash) {
+        return chunks.containsKey(hash);
+    }
+
+    /**
+     * Gets the location of the chunk with the specified hash.
+     * <p>
+     * Locations of chunks added since the store was opened are only known once the store is closed.
+     * @param hash the hash of the chunk
+     * @return the location, or {@code null} if the chunk isn't stored
+     */
+    @Nullable
+    public ChunkLocation getLocation(@NotNull String hash) {
+        return chunks.get(hash);
+    }
+
+    /**
+     * Gets the entry of the file with the specified name in the last backup, if all its chunks are still stored.
+     * @param path the name of the file in the backup
+     * @return the entry, or {@code null} if the file wasn't in the last backup
+     */
+    @Nullable
+    public FileEntry getPreviousFile(@NotNull String path) {
+        FileEntry file = previousFiles.get(path);
+        if (file == null) {
+            return null;
+        }
+        for (String hash : file.chunks) {
+            if (!contains(hash)) {
+                return null;
+            }
+        }
+        return file;
+    }
+
+    /**
+     * Adds a chunk to the current pack.
+     * @param hash the hash of the uncompressed chunk
+     * @param data the chunk, as stored
+     * @param length the length of the chunk, as stored
+     * @param size the size of the uncompressed chunk
+     * @param compressed whether the chunk is compressed
+     * @throws IOException if writing the chunk failed
+     */
+    public void addChunk(@NotNull String hash, byte @NotNull [] data, int length, int size, boolean compressed) throws IOException {
+        if (currentPack == null) {
+            File packFile = new File(folder, CURRENT_PACK_FILE);
+            currentPack = new DigestOutputStream(
+                new BufferedOutputStream(new FileOutputStream(packFile)),
+                BackupManifest.newDigest());
+            currentPackSize = 0;
+        }
+        currentPack.write(data, 0, length);
+        // The pack name is only known once the pack is complete
+        chunks.put(hash, new ChunkLocation(null, currentPackSize, length, size, compressed));
+        currentPackChunks.add(hash);
+        currentPackSize += length;
+        if (currentPackSize >= PACK_SIZE) {
+            finishPack();
+        }
+    }
+
+    /**
+     * Completes the current pack, saves the index with the files of this backup, and marks the new packs as pending upload.
+     * @param files the files in this backup
+     * @throws IOException if writing the pack or the index failed
+     */
+    public void close(@NotNull List<FileEntry> files) throws IOException {
+        finishPack();
+        previousFiles.clear();
+        for (FileEntry file : files) {
+            previousFiles.put(file.path, file);
+        }
+        saveIndex();
+        if (!newPacks.isEmpty()) {
+            Files.write(
+                new File(folder, PENDING_PACKS_FILE).toPath(),
+                newPacks,
+                StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    private void finishPack() throws IOException {
+        if (currentPack == null) {
+            return;
+        }
+        MessageDigest digest = currentPack.getMessageDigest();
+        currentPack.close();
+        currentPack = null;
+        String packName = BackupManifest.toHex(digest.digest()) + PACK_EXTENSION;
+        Files.move(
+            new File(folder, CURRENT_PACK_FILE).toPath(),
+            new File(folder, packName).toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+        for (String hash : currentPackChunks) {
+            chunks.put(hash, chunks.get(hash).inPack(packName));
+        }
+        currentPackChunks.clear();
+        newPacks.add(packName);
+    }
+
+    private void saveIndex() throws IOException {
+        JSONObject chunksJson = new JSONObject();
+        for (Map.Entry<String, ChunkLocation> chunk : chunks.entrySet()) {
+            chunksJson.put(chunk.getKey(), chunk.getValue().toJson());
+        }
+        JSONArray filesJson = new JSONArray();
+        for (FileEntry file : previousFiles.values()) {
+            filesJson.put(file.toJson());
+        }
+        JSONObject index = new JSONObject();
+        index.put("chunks", chunksJson);
+        index.put("files", filesJson);
+        Path temporaryFile = new File(folder, INDEX_FILE + ".tmp").toPath();
+        try (OutputStream output = Files.newOutputStream(temporaryFile)) {
+            output.write(index.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        Files.move(temporaryFile, new File(folder, INDEX_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Gets the packs in the store in the specified folder which haven't been uploaded to every backup method yet.
+     * @param folder the folder of the store
+     * @return the pack files
+     * @throws IOException if reading the list of pending packs failed
+     */
+    @NotNull
+    public static List<File> getPendingPacks(@NotNull File folder) throws IOException {
+        File pendingPacksFile = new File(folder, PENDING_PACKS_FILE);
+        if (!pendingPacksFile.exists()) {
+            return Collections.emptyList();
+        }
+        Set<String> packNames = new LinkedHashSet<>(Files.readAllLines(pendingPacksFile.toPath(), StandardCharsets.UTF_8));
+        List<File> packs = new ArrayList<>();
+        for (String packName : packNames) {
+            File pack = new File(folder, packName);
+            if (!packName.isEmpty() && pack.exists()) {
+                packs.add(pack);
+            }
+        }
+        return packs;
+    }
+
+    /**
+     * Marks every pending pack in the store in the specified folder as uploaded.
+     * @param folder the folder of the store
+     * @param deleteLocalCopies whether to delete the local copies of the packs, once they're stored remotely
+     * @throws IOException if updating the list of pending packs failed
+     */
+    public static void markPacksUploaded(@NotNull File folder, boolean deleteLocalCopies) throws IOException {
+        if (deleteLocalCopies) {
+            for (File pack : getPendingPacks(folder)) {
+                Files.deleteIfExists(pack.toPath());
+            }
+        }
+        Files.deleteIfExists(new File(folder, PENDING_PACKS_FILE).toPath());
+    }
+
+    /**
+     * The location of a chunk in a pack
+     */
+    public static final class ChunkLocation {
+        private final String pack;
+        private final long offset;
+        private final int length;
+        private final int size;
+        private final boolean compressed;
+
+        /**
+         * Creates an instance of the {@code ChunkLocation} object
+         * @param pack the name of the pack file
+         * @param offset the offset of the chunk in the pack
+         * @param length the length of the chunk, as stored
+         * @param size the size of the uncompressed chunk
+         * @param compressed whether the chunk is compressed with deflate
+         */
+        public ChunkLocation(String pack, long offset, int length, int size, boolean compressed) {
+            this.pack = pack;
+            this.offset = offset;
+            this.length = length;
+            this.size = size;
+            this.compressed = compressed;
+        }
+
+        /**
+         * Gets the name of the pack file containing the chunk.
+         * @return the name of the pack file
+         */
+        public String getPack() {
+            return pack;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Gets the length of the chunk, as stored in the pack.
+         * @return the length in bytes
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * Gets the size of the uncompressed chunk.
+         * @return the size in bytes
+         */
+        public int getSize() {
+            return size;
+        }
+
+        public boolean isCompressed() {
+            return compressed;
+        }
+
+        @NotNull
+        @Contract ("_ -> new")
+        private ChunkLocation inPack(String pack) {
+            return new ChunkLocation(pack, offset, length, size, compressed);
+        }
+
+        @NotNull
+        public JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("pack", pack);
+            json.put("offset", offset);
+            json.put("length", length);
+            json.put("size", size);
+            json.put("compression", compressed ? "deflate" : "none");
+            return json;
+        }
+
+        @NotNull
+        @Contract ("_ -> new")
+        public static ChunkLocation fromJson(@NotNull JSONObject json) {
+            return new ChunkLocation(
+                json.getString("pack"),
+                json.getLong("offset"),
+                json.getInt("length"),
+                json.getInt("size"),
+                "deflate".equals(json.getString("compression")));
+        }
+    }
+
+    /**
+     * A file in a backup, as the list of chunks it consists of
+     */
+    public static final class FileEntry {
+        private final String path;
+        private final long size;
+        private final long modifiedTime;
+        private final List<String> chunks;
+
+        /**
+         * Creates an instance of the {@code FileEntry} object
+         * @param path the name of the file in the backup
+         * @param size the size of the file
+         * @param modifiedTime the modification time of the file in milliseconds
+         * @param chunks the hashes of the chunks of the file, in order
+         */
+        public FileEntry(String path, long size, long modifiedTime, List<String> chunks) {
+            this.path = path;
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.chunks = chunks;
+        }
+
+        /**
+         * Whether the file has the same size and modification time as when this entry was created.
+         * @param attributes the current attributes of the file
+         * @return whether the file is unchanged
+         */
+        public boolean matches(@NotNull BasicFileAttributes attributes) {
+            return size == attributes.size() && modifiedTime == attributes.lastModifiedTime().toMillis();
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Gets the modification time of the file.
+         * @return the modification time in milliseconds
+         */
+        public long getModifiedTime() {
+            return modifiedTime;
+        }
+
+        public List<String> getChunks() {
+            return chunks;
+        }
+
+        @NotNull
+        public JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("path", path);
+            json.put("size", size);
+            json.put("modified", modifiedTime);
+            json.put("chunks", new JSONArray(chunks));
+            return json;
+        }
+
+        @NotNull
+        @Contract ("_ -> new")
+        public static FileEntry fromJson(@NotNull JSONObject json) {
+            JSONArray chunksJson = json.getJSONArray("chunks");
+            List<String> chunks = new ArrayList<>(chunksJson.length());
+            for (int i = 0; i < chunksJson.length(); i++) {
+                chunks.add(chunksJson.getString(i));
+            }
+            return new FileEntry(
+                json.getString("path"),
+                json.getLong("size"),
+                json.getLong("modified"),
+                chunks);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decides, per entry, whether the contents of a file are worth compressing.
+ * <p>
+ * Files matching one of the store globs, such as region files or nested archives, are stored without compression.
+ * Any other file is compressed, unless compressing its first block saves less than the minimum savings.
+ */
+public class CompressionPolicy {
+    private final List<PathMatcher> storeMatchers = new ArrayList<>();
+    private final int minimumSavings;
+
+    /**
+     * Creates an instance of the {@code CompressionPolicy} object
+     * @param storeGlobs a list of glob patterns of files to store without compression
+     * @param minimumSavings the minimum percentage of the size of a file that compressing it should save, or 0 to always compress
+     */
+    public CompressionPolicy(@NotNull String[] storeGlobs, int minimumSavings) {
+        for (String storeGlob : storeGlobs) {
+            storeMatchers.add(FileSystems.getDefault().getPathMatcher("glob:" + storeGlob));
+        }
+        this.minimumSavings = minimumSavings;
+    }
+
+    /**
+     * Gets whether the specified file should be compressed, based on its path alone.
+     * <p>
+     * The globs are matched against both the path of the file relative to the folder being backed up, and its name.
+     * @param relativePath the path of the file relative to the folder being backed up
+     * @return whether to compress the file
+     */
+    public boolean shouldCompress(@NotNull String relativePath) {
+        Path path = Paths.get(relativePath);
+        Path fileName = path.getFileName();
+        for (PathMatcher storeMatcher : storeMatchers) {
+            if (storeMatcher.matches(path) || (fileName != null && storeMatcher.matches(fileName))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets whether a file should still be compressed, based on how well its first block compressed.
+     * @param size the uncompressed size of the first block
+     * @param compressedSize the compressed size of the first block
+     * @return whether to compress the rest of the file
+     */
+    @Contract (pure = true)
+    public boolean isWorthCompressing(int size, int compressedSize) {
+        if (minimumSavings == 0) {
+            return true;
+        }
+        return (long) (size - compressedSize) * 100 >= (long) size * minimumSavings;
+    }
+}
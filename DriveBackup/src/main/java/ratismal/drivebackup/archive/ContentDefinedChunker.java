@@ -0,0 +1,129 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Splits a stream into chunks at positions determined by its contents, using the FastCDC algorithm.
+ * <p>
+ * As the boundaries of chunks only depend on the bytes around them, inserting or removing data only changes the chunks
+ * around the change, so identical parts of files are split into identical chunks between backups.
+ */
+public class ContentDefinedChunker {
+    /**
+     * The seed the gear table is generated from, which must never change, as that would change every chunk boundary
+     */
+    private static final long GEAR_SEED = 0x44726976654261L;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // The algorithm of java.util.Random is fully specified, so this generates the same table on every platform
+        Random random = new Random(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minimumSize;
+    private final int averageSize;
+    private final int maximumSize;
+    /**
+     * The mask used before the average size is reached, with more bits to make cutting less likely
+     */
+    private final long smallMask;
+    /**
+     * The mask used after the average size is reached, with fewer bits to make cutting more likely
+     */
+    private final long largeMask;
+    private final byte[] buffer;
+    private InputStream input;
+    private int start;
+    private int end;
+    private boolean endOfStream;
+
+    /**
+     * Creates an instance of the {@code ContentDefinedChunker} object
+     * @param averageSize the desired average size of chunks in bytes, which is rounded down to a power of 2
+     */
+    public ContentDefinedChunker(int averageSize) {
+        int bits = 31 - Integer.numberOfLeadingZeros(Math.max(averageSize, 256));
+        this.averageSize = 1 << bits;
+        minimumSize = this.averageSize / 4;
+        maximumSize = this.averageSize * 4;
+        // Normalized chunking, the gear hash shifts left, so the top bits depend on the most bytes
+        smallMask = -1L << (64 - (bits + 2));
+        largeMask = -1L << (64 - (bits - 2));
+        buffer = new byte[maximumSize];
+    }
+
+    /**
+     * Starts splitting the specified stream into chunks.
+     * @param input the stream
+     */
+    public void reset(@NotNull InputStream input) {
+        this.input = input;
+        start = 0;
+        end = 0;
+        endOfStream = false;
+    }
+
+    /**
+     * Reads the next chunk from the stream.
+     * <p>
+     * The chunk is stored at the start of {@link #getBuffer()}, and is only valid until the next call to this method.
+     * @return the size of the chunk, or 0 at the end of the stream
+     * @throws IOException if reading from the stream failed
+     */
+    public int nextChunk() throws IOException {
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+            end -= start;
+            start = 0;
+        }
+        while (!endOfStream && end < buffer.length) {
+            int read = input.read(buffer, end, buffer.length - end);
+            if (read == -1) {
+                endOfStream = true;
+            } else {
+                end += read;
+            }
+        }
+        int length = findCutPoint(end);
+        start = length;
+        return length;
+    }
+
+    /**
+     * Gets the buffer the current chunk is stored in.
+     * @return the buffer
+     */
+    public byte @NotNull [] getBuffer() {
+        return buffer;
+    }
+
+    private int findCutPoint(int length) {
+        if (length <= minimumSize) {
+            return length;
+        }
+        int normalSize = Math.min(length, averageSize);
+        int maxSize = Math.min(length, maximumSize);
+        long fingerprint = 0;
+        int i = minimumSize;
+        for (; i < normalSize; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[i] & 0xFF];
+            if ((fingerprint & smallMask) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < maxSize; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[i] & 0xFF];
+            if ((fingerprint & largeMask) == 0) {
+                return i + 1;
+            }
+        }
+        return maxSize;
+    }
+}
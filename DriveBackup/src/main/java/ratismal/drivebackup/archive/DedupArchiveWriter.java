@@ -0,0 +1,137 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import ratismal.drivebackup.archive.ChunkStore.ChunkLocation;
+import ratismal.drivebackup.archive.ChunkStore.FileEntry;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a deduplicating backup, which stores the contents of files as content-defined chunks in a {@link ChunkStore}.
+ * <p>
+ * Only chunks which aren't in the store yet are written, to new packs. The archive itself is a snapshot, a JSON file
+ * listing the chunks of every file and the location of every chunk it references, so that the snapshot and the packs
+ * are all that's needed to restore the backup.
+ */
+public class DedupArchiveWriter implements ArchiveWriter {
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final OutputStream output;
+    private final ChunkStore store;
+    private final ContentDefinedChunker chunker;
+    private final Deflater deflater;
+    private final CompressionPolicy compressionPolicy;
+    private final MessageDigest digest = BackupManifest.newDigest();
+    private final byte[] compressBuffer;
+    private final List<FileEntry> files = new ArrayList<>();
+
+    /**
+     * Creates an instance of the {@code DedupArchiveWriter} object
+     * @param output where to write the snapshot to
+     * @param store the store to write new chunks to
+     * @param averageChunkSize the desired average size of chunks in bytes
+     * @param level the deflate compression level of chunks
+     * @param compressionPolicy the policy deciding which chunks are compressed
+     */
+    public DedupArchiveWriter(@NotNull OutputStream output, @NotNull ChunkStore store, int averageChunkSize, int level, @NotNull CompressionPolicy compressionPolicy) {
+        this.output = output;
+        this.store = store;
+        this.compressionPolicy = compressionPolicy;
+        chunker = new ContentDefinedChunker(averageChunkSize);
+        deflater = new Deflater(level, true);
+        compressBuffer = new byte[chunker.getBuffer().length];
+    }
+
+    @Override
+    public boolean putEntry(@NotNull String name, @NotNull InputStream input, @Nullable BasicFileAttributes attributes, boolean compress) throws IOException {
+        long modifiedTime = attributes != null ? attributes.lastModifiedTime().toMillis() : System.currentTimeMillis();
+        FileEntry previousFile = store.getPreviousFile(name);
+        if (attributes != null && previousFile != null && previousFile.matches(attributes)) {
+            files.add(previousFile);
+            return true;
+        }
+        chunker.reset(input);
+        List<String> chunks = new ArrayList<>();
+        long size = 0;
+        while (true) {
+            int length;
+            try {
+                length = chunker.nextChunk();
+            } catch (IOException e) {
+                return false;
+            }
+            if (length == 0) {
+                break;
+            }
+            byte[] chunk = chunker.getBuffer();
+            digest.update(chunk, 0, length);
+            String hash = BackupManifest.toHex(digest.digest());
+            if (!store.contains(hash)) {
+                storeChunk(hash, chunk, length, compress);
+            }
+            chunks.add(hash);
+            size += length;
+        }
+        files.add(new FileEntry(name, size, modifiedTime, chunks));
+        return true;
+    }
+
+    private void storeChunk(String hash, byte[] chunk, int length, boolean compress) throws IOException {
+        if (compress) {
+            deflater.reset();
+            deflater.setInput(chunk, 0, length);
+            deflater.finish();
+            int compressedLength = 0;
+            while (!deflater.finished() && compressedLength < length) {
+                compressedLength += deflater.deflate(compressBuffer, compressedLength, compressBuffer.length - compressedLength);
+            }
+            if (deflater.finished() && compressionPolicy.isWorthCompressing(length, compressedLength)) {
+                store.addChunk(hash, compressBuffer, compressedLength, length, true);
+                return;
+            }
+        }
+        store.addChunk(hash, chunk, length, length, false);
+    }
+
+    /**
+     * Completes the new packs and writes the snapshot.
+     * @throws IOException if writing the packs, the index or the snapshot failed
+     */
+    @Override
+    public void close() throws IOException {
+        try (Writer writer = new OutputStreamWriter(output, StandardCharsets.UTF_8)) {
+            deflater.end();
+            store.close(files);
+            JSONObject chunksJson = new JSONObject();
+            JSONArray filesJson = new JSONArray();
+            for (FileEntry file : files) {
+                for (String hash : file.getChunks()) {
+                    ChunkLocation location = store.getLocation(hash);
+                    if (location != null) {
+                        chunksJson.put(hash, location.toJson());
+                    }
+                }
+                filesJson.put(file.toJson());
+            }
+            JSONObject snapshot = new JSONObject();
+            snapshot.put("version", SNAPSHOT_VERSION);
+            snapshot.put("created", System.currentTimeMillis());
+            snapshot.put("files", filesJson);
+            snapshot.put("chunks", chunksJson);
+            snapshot.write(writer);
+        }
+    }
+}
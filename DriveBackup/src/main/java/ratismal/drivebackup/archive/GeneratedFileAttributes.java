@@ -0,0 +1,81 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+/**
+ * The attributes of an archive entry which isn't backed by a file, such as one generated in memory.
+ */
+public class GeneratedFileAttributes implements BasicFileAttributes {
+    private final long size;
+    private final FileTime time;
+
+    /**
+     * Creates an instance of the {@code GeneratedFileAttributes} object
+     * @param size the size of the entry
+     * @param time the time the entry was created, used as every timestamp of the entry
+     */
+    public GeneratedFileAttributes(long size, @NotNull FileTime time) {
+        this.size = size;
+        this.time = time;
+    }
+
+    /**
+     * Creates the attributes of an entry created now.
+     * @param size the size of the entry
+     * @return the attributes
+     */
+    @NotNull
+    @Contract ("_ -> new")
+    public static GeneratedFileAttributes now(long size) {
+        return new GeneratedFileAttributes(size, FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    @Override
+    public FileTime lastModifiedTime() {
+        return time;
+    }
+
+    @Override
+    public FileTime lastAccessTime() {
+        return time;
+    }
+
+    @Override
+    public FileTime creationTime() {
+        return time;
+    }
+
+    @Override
+    public boolean isRegularFile() {
+        return true;
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return false;
+    }
+
+    @Override
+    public boolean isSymbolicLink() {
+        return false;
+    }
+
+    @Override
+    public boolean isOther() {
+        return false;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public Object fileKey() {
+        return null;
+    }
+}
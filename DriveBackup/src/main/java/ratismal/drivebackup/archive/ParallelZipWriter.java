@@ -0,0 +1,525 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a standard ZIP archive while deflating the contents of each entry on a pool of worker threads.
+ * <p>
+ * Entries are split into fixed size blocks, which are deflated independently and joined back together in order,
+ * the same way pigz does it. Each block ends with a sync flush and is primed with the last 32 KiB of the previous
+ * block, so the result is a single valid deflate stream with almost the same ratio as a single threaded one.
+ * <p>
+ * Since the compressed size of an entry is only known once all of its blocks are done, sizes and checksums are
+ * written in a data descriptor after the entry data. This means the archive is written strictly sequentially.
+ * <p>
+ * Entries which aren't worth compressing are written as a deflate stream made of stored blocks, rather than using the
+ * stored method, as the stored method requires the size and checksum of an entry to be known before its data.
+ */
+public class ParallelZipWriter implements ArchiveWriter {
+    /**
+     * The amount of uncompressed data deflated by a single task
+     */
+    private static final int BLOCK_SIZE = 128 * 1024;
+
+    /**
+     * The size of the deflate history window, used to prime each block with the end of the previous one
+     */
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /**
+     * A final, empty, fixed Huffman deflate block, terminating a stream made of sync flushed blocks
+     */
+    private static final byte[] FINAL_BLOCK = {0x03, 0x00};
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int TIMESTAMP_EXTRA_ID = 0x5455;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    /**
+     * How close to the ZIP64 limit the size of a file has to be for its entry to get a ZIP64 extra, as the file growing
+     * while it's backed up, or deflate expanding incompressible data, can push the sizes of the entry past the limit
+     */
+    private static final long ZIP64_MARGIN = 64L * 1024 * 1024;
+    /**
+     * The largest entry written without a ZIP64 extra, so its sizes always fit in the data descriptor
+     */
+    private static final long MAX_ZIP32_SIZE = ZIP64_MAGIC - ZIP64_MARGIN;
+
+    private final OutputStream output;
+    private final ExecutorService executor;
+    private final int level;
+    private final int maxPendingBlocks;
+    private final CompressionPolicy policy;
+    private final List<CentralRecord> entries = new ArrayList<>();
+    private long written;
+    private boolean finished;
+
+    /**
+     * Creates an instance of the {@code ParallelZipWriter} object
+     * @param output where to write the archive to
+     * @param level the deflate compression level
+     * @param executor the pool of workers to deflate blocks on
+     * @param workers the number of workers in the pool
+     * @param policy the policy deciding whether the contents of an entry are worth compressing
+     */
+    public ParallelZipWriter(@NotNull OutputStream output, int level, @NotNull ExecutorService executor, int workers, @NotNull CompressionPolicy policy) {
+        this.output = new BufferedOutputStream(output, 64 * 1024);
+        this.level = level;
+        this.policy = policy;
+        this.executor = executor;
+        // Keep the workers busy while the next block is being read, without buffering the whole entry in memory
+        this.maxPendingBlocks = Math.max(2, workers * 4);
+    }
+
+    @Override
+    public boolean putEntry(@NotNull String name, @NotNull InputStream input, @Nullable BasicFileAttributes attributes, boolean compress) throws IOException {
+        if (finished) {
+            throw new IOException("Archive has already been finished");
+        }
+        byte[] encodedName = name.getBytes(StandardCharsets.UTF_8);
+        long expectedSize = attributes != null ? attributes.size() : -1L;
+        boolean zip64 = expectedSize < 0 || expectedSize >= MAX_ZIP32_SIZE;
+        long maxSize = zip64 ? Long.MAX_VALUE : MAX_ZIP32_SIZE;
+        CentralRecord record = new CentralRecord(encodedName, written, zip64, attributes);
+        writeLocalHeader(record);
+        CRC32 crc = new CRC32();
+        Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        boolean complete = true;
+        // Sample the first block of an entry to check whether it's worth compressing the rest
+        boolean sampling = compress;
+        int blockLevel = compress ? level : Deflater.NO_COMPRESSION;
+        byte[] previousBlock = null;
+        try {
+            while (true) {
+                byte[] block = new byte[BLOCK_SIZE];
+                int read;
+                try {
+                    read = readBlock(input, block);
+                } catch (IOException e) {
+                    complete = false;
+                    break;
+                }
+                // The file grew past what the local header allows for, so the rest of it is left out
+                boolean truncated = read > maxSize - record.size;
+                int length = truncated ? (int) (maxSize - record.size) : read;
+                if (truncated) {
+                    complete = false;
+                }
+                if (length == 0) {
+                    break;
+                }
+                crc.update(block, 0, length);
+                record.size += length;
+                byte[] dictionary = previousBlock;
+                int currentLevel = blockLevel;
+                Future<byte[]> future = executor.submit(() -> deflateBlock(block, length, dictionary, currentLevel));
+                if (sampling) {
+                    sampling = false;
+                    int compressedLength = writeBlock(future);
+                    record.compressedSize += compressedLength;
+                    if (!policy.isWorthCompressing(length, compressedLength)) {
+                        blockLevel = Deflater.NO_COMPRESSION;
+                    }
+                } else {
+                    pending.add(future);
+                }
+                while (pending.size() >= maxPendingBlocks) {
+                    record.compressedSize += writeBlock(pending.poll());
+                }
+                if (length < BLOCK_SIZE || truncated) {
+                    break;
+                }
+                previousBlock = block;
+            }
+            while (!pending.isEmpty()) {
+                record.compressedSize += writeBlock(pending.poll());
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+        }
+        writeBytes(FINAL_BLOCK);
+        record.compressedSize += FINAL_BLOCK.length;
+        record.crc = crc.getValue();
+        writeDataDescriptor(record);
+        entries.add(record);
+        return complete;
+    }
+
+    /**
+     * Writes the central directory, completing the archive, without closing the underlying stream.
+     * @throws IOException if writing to the archive failed
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        long centralStart = written;
+        for (CentralRecord record : entries) {
+            writeCentralHeader(record);
+        }
+        long centralSize = written - centralStart;
+        writeEnd(centralStart, centralSize);
+        output.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Fills the specified buffer from the stream, only returning less than a full block at the end of the stream.
+     * @return the number of bytes read
+     */
+    private static int readBlock(@NotNull InputStream input, byte @NotNull [] block) throws IOException {
+        int length = 0;
+        while (length < block.length) {
+            int read = input.read(block, length, block.length - length);
+            if (read < 0) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * Deflates a single block into a raw, sync flushed, deflate stream.
+     * @param block the uncompressed data
+     * @param length the number of bytes in the block
+     * @param dictionary the previous block, or {@code null} for the first block of an entry
+     * @param level the compression level, {@link Deflater#NO_COMPRESSION} to write stored blocks
+     * @return the compressed data
+     */
+    private static byte @NotNull [] deflateBlock(byte @NotNull [] block, int length, byte @Nullable [] dictionary, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null && level != Deflater.NO_COMPRESSION) {
+                deflater.setDictionary(dictionary, dictionary.length - DICTIONARY_SIZE, DICTIONARY_SIZE);
+            }
+            deflater.setInput(block, 0, length);
+            byte[] compressed = new byte[length + (length >> 3) + 64];
+            int compressedLength = 0;
+            while (true) {
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength, Deflater.SYNC_FLUSH);
+                if (compressedLength < compressed.length) {
+                    break;
+                }
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            return Arrays.copyOf(compressed, compressedLength);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Waits for the specified block to be deflated, then writes it to the archive.
+     * @return the compressed size of the block
+     */
+    private int writeBlock(@NotNull Future<byte[]> future) throws IOException {
+        byte[] compressed;
+        try {
+            compressed = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress block", e.getCause());
+        }
+        writeBytes(compressed);
+        return compressed.length;
+    }
+
+    private void writeLocalHeader(@NotNull CentralRecord record) throws IOException {
+        byte[] timestamps = localTimestampExtra(record);
+        int extraLength = timestamps.length + (record.zip64 ? 20 : 0);
+        writeInt(LOCAL_HEADER_SIGNATURE);
+        writeShort(record.zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+        writeShort(FLAG_DATA_DESCRIPTOR | FLAG_UTF8);
+        writeShort(METHOD_DEFLATED);
+        writeInt(record.dosTime);
+        // CRC and sizes follow the data in the data descriptor
+        writeInt(0);
+        writeInt(record.zip64 ? ZIP64_MAGIC : 0);
+        writeInt(record.zip64 ? ZIP64_MAGIC : 0);
+        writeShort(record.name.length);
+        writeShort(extraLength);
+        writeBytes(record.name);
+        if (record.zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(16);
+            writeLong(0);
+            writeLong(0);
+        }
+        writeBytes(timestamps);
+    }
+
+    private void writeDataDescriptor(@NotNull CentralRecord record) throws IOException {
+        writeInt(DATA_DESCRIPTOR_SIGNATURE);
+        writeInt(record.crc);
+        if (record.zip64) {
+            writeLong(record.compressedSize);
+            writeLong(record.size);
+        } else if (record.compressedSize >= ZIP64_MAGIC || record.size >= ZIP64_MAGIC) {
+            // 8 byte sizes are only allowed if the local header has a ZIP64 extra
+            throw new IOException("Entry exceeded 4 GiB without a ZIP64 extra");
+        } else {
+            writeInt(record.compressedSize);
+            writeInt(record.size);
+        }
+    }
+
+    private void writeCentralHeader(@NotNull CentralRecord record) throws IOException {
+        boolean sizeOverflow = record.size >= ZIP64_MAGIC;
+        boolean compressedSizeOverflow = record.compressedSize >= ZIP64_MAGIC;
+        boolean offsetOverflow = record.offset >= ZIP64_MAGIC;
+        int zip64Length = (sizeOverflow ? 8 : 0) + (compressedSizeOverflow ? 8 : 0) + (offsetOverflow ? 8 : 0);
+        boolean zip64 = zip64Length > 0;
+        byte[] timestamps = centralTimestampExtra(record);
+        int version = zip64 || record.zip64 ? VERSION_ZIP64 : VERSION_DEFAULT;
+        writeInt(CENTRAL_HEADER_SIGNATURE);
+        writeShort(version);
+        writeShort(version);
+        writeShort(FLAG_DATA_DESCRIPTOR | FLAG_UTF8);
+        writeShort(METHOD_DEFLATED);
+        writeInt(record.dosTime);
+        writeInt(record.crc);
+        writeInt(compressedSizeOverflow ? ZIP64_MAGIC : record.compressedSize);
+        writeInt(sizeOverflow ? ZIP64_MAGIC : record.size);
+        writeShort(record.name.length);
+        writeShort((zip64 ? zip64Length + 4 : 0) + timestamps.length);
+        // comment length, disk number, internal and external attributes
+        writeShort(0);
+        writeShort(0);
+        writeShort(0);
+        writeInt(0);
+        writeInt(offsetOverflow ? ZIP64_MAGIC : record.offset);
+        writeBytes(record.name);
+        if (zip64) {
+            writeShort(ZIP64_EXTRA_ID);
+            writeShort(zip64Length);
+            if (sizeOverflow) {
+                writeLong(record.size);
+            }
+            if (compressedSizeOverflow) {
+                writeLong(record.compressedSize);
+            }
+            if (offsetOverflow) {
+                writeLong(record.offset);
+            }
+        }
+        writeBytes(timestamps);
+    }
+
+    private void writeEnd(long centralStart, long centralSize) throws IOException {
+        int count = entries.size();
+        if (count >= ZIP64_MAGIC_COUNT || centralStart >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC) {
+            long zip64EndStart = written;
+            writeInt(ZIP64_END_SIGNATURE);
+            writeLong(44);
+            writeShort(VERSION_ZIP64);
+            writeShort(VERSION_ZIP64);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(centralSize);
+            writeLong(centralStart);
+            writeInt(ZIP64_LOCATOR_SIGNATURE);
+            writeInt(0);
+            writeLong(zip64EndStart);
+            writeInt(1);
+        }
+        writeInt(END_SIGNATURE);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+        writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+        writeInt(Math.min(centralSize, ZIP64_MAGIC));
+        writeInt(Math.min(centralStart, ZIP64_MAGIC));
+        writeShort(0);
+    }
+
+    /**
+     * Gets the extended timestamp extra field for a local header, containing all known file times.
+     */
+    private static byte @NotNull [] localTimestampExtra(@NotNull CentralRecord record) {
+        if (record.modifiedTime == null) {
+            return new byte[0];
+        }
+        boolean hasAccess = record.accessTime != null;
+        boolean hasCreation = record.creationTime != null;
+        int dataLength = 1 + 4 + (hasAccess ? 4 : 0) + (hasCreation ? 4 : 0);
+        byte[] extra = new byte[4 + dataLength];
+        int flags = 1 | (hasAccess ? 2 : 0) | (hasCreation ? 4 : 0);
+        int offset = putExtraHeader(extra, dataLength, flags);
+        offset = putInt(extra, offset, record.modifiedTime);
+        if (hasAccess) {
+            offset = putInt(extra, offset, record.accessTime);
+        }
+        if (hasCreation) {
+            putInt(extra, offset, record.creationTime);
+        }
+        return extra;
+    }
+
+    /**
+     * Gets the extended timestamp extra field for a central header, which only ever contains the modification time.
+     */
+    private static byte @NotNull [] centralTimestampExtra(@NotNull CentralRecord record) {
+        if (record.modifiedTime == null) {
+            return new byte[0];
+        }
+        int flags = 1 | (record.accessTime != null ? 2 : 0) | (record.creationTime != null ? 4 : 0);
+        byte[] extra = new byte[4 + 5];
+        int offset = putExtraHeader(extra, 5, flags);
+        putInt(extra, offset, record.modifiedTime);
+        return extra;
+    }
+
+    private static int putExtraHeader(byte @NotNull [] extra, int dataLength, int flags) {
+        extra[0] = (byte) TIMESTAMP_EXTRA_ID;
+        extra[1] = (byte) (TIMESTAMP_EXTRA_ID >>> 8);
+        extra[2] = (byte) dataLength;
+        extra[3] = (byte) (dataLength >>> 8);
+        extra[4] = (byte) flags;
+        return 5;
+    }
+
+    private static int putInt(byte @NotNull [] extra, int offset, int value) {
+        extra[offset] = (byte) value;
+        extra[offset + 1] = (byte) (value >>> 8);
+        extra[offset + 2] = (byte) (value >>> 16);
+        extra[offset + 3] = (byte) (value >>> 24);
+        return offset + 4;
+    }
+
+    private void writeShort(int value) throws IOException {
+        output.write(value & 0xFF);
+        output.write((value >>> 8) & 0xFF);
+        written += 2;
+    }
+
+    private void writeInt(long value) throws IOException {
+        writeShort((int) (value & 0xFFFF));
+        writeShort((int) ((value >>> 16) & 0xFFFF));
+    }
+
+    private void writeLong(long value) throws IOException {
+        writeInt(value & ZIP64_MAGIC);
+        writeInt(value >>> 32);
+    }
+
+    private void writeBytes(byte @NotNull [] bytes) throws IOException {
+        output.write(bytes);
+        written += bytes.length;
+    }
+
+    /**
+     * Converts the specified time to the MS-DOS date and time format used by ZIP headers.
+     */
+    private static long toDosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (time.getYear() - 1980) << 25)
+            | ((long) time.getMonthValue() << 21)
+            | ((long) time.getDayOfMonth() << 16)
+            | ((long) time.getHour() << 11)
+            | ((long) time.getMinute() << 5)
+            | ((long) time.getSecond() >> 1);
+    }
+
+    /**
+     * Converts the specified file time to a unix timestamp, if it fits into an extended timestamp field.
+     */
+    @Nullable
+    private static Integer toUnixTime(@Nullable FileTime time) {
+        if (time == null) {
+            return null;
+        }
+        long seconds = time.toMillis() / 1000;
+        if (seconds < Integer.MIN_VALUE || seconds > Integer.MAX_VALUE) {
+            return null;
+        }
+        return (int) seconds;
+    }
+
+    /**
+     * Everything needed to write the central directory header of an entry
+     */
+    private static final class CentralRecord {
+        private final byte[] name;
+        private final long offset;
+        private final boolean zip64;
+        private final long dosTime;
+        private final Integer modifiedTime;
+        private final Integer accessTime;
+        private final Integer creationTime;
+        private long crc;
+        private long size;
+        private long compressedSize;
+
+        private CentralRecord(byte @NotNull [] name, long offset, boolean zip64, @Nullable BasicFileAttributes attributes) {
+            this.name = name;
+            this.offset = offset;
+            this.zip64 = zip64;
+            if (attributes != null) {
+                this.dosTime = toDosTime(attributes.lastModifiedTime().toMillis());
+                this.modifiedTime = toUnixTime(attributes.lastModifiedTime());
+                this.accessTime = modifiedTime != null ? toUnixTime(attributes.lastAccessTime()) : null;
+                this.creationTime = modifiedTime != null ? toUnixTime(attributes.creationTime()) : null;
+            } else {
+                this.dosTime = toDosTime(System.currentTimeMillis());
+                this.modifiedTime = null;
+                this.accessTime = null;
+                this.creationTime = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * The changes to a region file since a previous backup, as the chunks which were saved or deleted since.
+ * <p>
+ * A delta starts with a magic number, a version and the number of changed chunks. Each changed chunk is stored as its
+ * index, its timestamp, and its length and contents in stored form, with a length of 0 for deleted chunks.
+ * Applying the deltas of every incremental backup to the region file of the last full backup, in order, restores the
+ * region file.
+ */
+public class RegionDelta {
+    /**
+     * The extension appended to the name of region files to get the name of their delta
+     */
+    public static final String EXTENSION = ".delta";
+
+    private static final int MAGIC = 0x44425244;
+    private static final int VERSION = 1;
+
+    private RegionDelta() {
+    }
+
+    /**
+     * Creates a delta of the specified region file.
+     * @param file the region file
+     * @param region the header of the region file
+     * @param previousTimestamps the timestamps of the chunks in the previous backup, 0 for chunks which didn't exist
+     * @return the delta
+     * @throws IOException if reading the file failed, or a changed chunk is corrupted
+     */
+    public static byte @NotNull [] create(@NotNull RandomAccessFile file, @NotNull RegionFile region, int @NotNull [] previousTimestamps) throws IOException {
+        int[] timestamps = region.getTimestamps();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        int changedChunks = 0;
+        for (int i = 0; i < RegionFile.CHUNK_COUNT; i++) {
+            if (timestamps[i] != previousTimestamps[i] || region.exists(i) != (previousTimestamps[i] != 0)) {
+                changedChunks++;
+            }
+        }
+        output.writeInt(MAGIC);
+        output.writeByte(VERSION);
+        output.writeShort(changedChunks);
+        for (int i = 0; i < RegionFile.CHUNK_COUNT; i++) {
+            if (timestamps[i] == previousTimestamps[i] && region.exists(i) == (previousTimestamps[i] != 0)) {
+                continue;
+            }
+            output.writeShort(i);
+            output.writeInt(timestamps[i]);
+            if (region.exists(i)) {
+                byte[] chunk = region.readChunk(file, i);
+                output.writeInt(chunk.length);
+                output.write(chunk);
+            } else {
+                output.writeInt(0);
+            }
+        }
+        output.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Applies a delta to the specified region file, replacing it with the updated region file.
+     * @param file the region file, which is created if it doesn't exist
+     * @param delta the delta
+     * @throws IOException if reading or writing the region file failed, or the delta is invalid
+     */
+    public static void apply(@NotNull File file, @NotNull InputStream delta) throws IOException {
+        int[] timestamps = new int[RegionFile.CHUNK_COUNT];
+        byte[][] chunks = file.exists() ? RegionFile.readChunks(file, timestamps) : new byte[RegionFile.CHUNK_COUNT][];
+        DataInputStream input = new DataInputStream(delta);
+        if (input.readInt() != MAGIC || input.readUnsignedByte() != VERSION) {
+            throw new IOException("Not a region delta");
+        }
+        int changedChunks = input.readUnsignedShort();
+        for (int i = 0; i < changedChunks; i++) {
+            int index = input.readUnsignedShort();
+            if (index >= RegionFile.CHUNK_COUNT) {
+                throw new IOException("Chunk index " + index + " out of range");
+            }
+            timestamps[index] = input.readInt();
+            int length = input.readInt();
+            if (length == 0) {
+                chunks[index] = null;
+            } else {
+                chunks[index] = new byte[length];
+                input.readFully(chunks[index]);
+            }
+        }
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        RegionFile.write(temporaryFile, chunks, timestamps);
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -0,0 +1,206 @@
+package ratismal.drivebackup.archive;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * An Anvil region file, the format Minecraft stores the chunks of a world in.
+ * <p>
+ * A region file starts with a header of two tables with an entry for each of its 1024 chunks, the location of the chunk
+ * in 4 KiB sectors and the time the chunk was last saved. Each chunk is stored as its length, its compression type,
+ * and its compressed data. Chunks are handled in their stored form, so they never have to be decompressed.
+ */
+public class RegionFile {
+    public static final String EXTENSION = ".mca";
+    public static final int CHUNK_COUNT = 1024;
+    public static final int SECTOR_SIZE = 4096;
+    private static final int HEADER_SIZE = SECTOR_SIZE * 2;
+    private static final int MAX_SECTORS = 255;
+
+    private final int[] locations;
+    private final int[] timestamps;
+
+    private RegionFile(int[] locations, int[] timestamps) {
+        this.locations = locations;
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * Whether the file with the specified path is a region file, based on its extension.
+     * @param path the path of the file
+     * @return whether the file is a region file
+     */
+    @Contract (pure = true)
+    public static boolean isRegionFile(@NotNull String path) {
+        return path.endsWith(EXTENSION);
+    }
+
+    /**
+     * Reads the header of the specified region file.
+     * @param file the region file
+     * @return the region file, or {@code null} if the file is too small to be a region file
+     * @throws IOException if reading the file failed
+     */
+    @Nullable
+    public static RegionFile readHeader(@NotNull RandomAccessFile file) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return null;
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        file.seek(0);
+        file.readFully(header);
+        int[] locations = new int[CHUNK_COUNT];
+        int[] timestamps = new int[CHUNK_COUNT];
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            locations[i] = readInt(header, i * 4);
+            timestamps[i] = readInt(header, SECTOR_SIZE + i * 4);
+        }
+        return new RegionFile(locations, timestamps);
+    }
+
+    /**
+     * Reads the timestamps of the chunks in the region file at the specified path.
+     * @param file the region file
+     * @return the timestamps, or {@code null} if the file isn't a valid region file
+     * @see #getTimestamps()
+     */
+    @Nullable
+    public static int[] readTimestamps(@NotNull File file) {
+        try (RandomAccessFile regionFile = new RandomAccessFile(file, "r")) {
+            RegionFile region = readHeader(regionFile);
+            return region != null ? region.getTimestamps() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the time every chunk was last saved, in seconds since the epoch.
+     * @return the timestamps, 0 for chunks which don't exist
+     */
+    public int @NotNull [] getTimestamps() {
+        int[] chunkTimestamps = new int[CHUNK_COUNT];
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            if (exists(i)) {
+                chunkTimestamps[i] = timestamps[i];
+            }
+        }
+        return chunkTimestamps;
+    }
+
+    /**
+     * Whether the chunk with the specified index exists.
+     * @param index the index of the chunk in the region
+     * @return whether the chunk exists
+     */
+    public boolean exists(int index) {
+        return locations[index] != 0;
+    }
+
+    /**
+     * Reads the chunk with the specified index, in its stored form.
+     * @param file the region file
+     * @param index the index of the chunk in the region
+     * @return the compression type of the chunk followed by its compressed data
+     * @throws IOException if reading the file failed, or the chunk is corrupted
+     */
+    public byte @NotNull [] readChunk(@NotNull RandomAccessFile file, int index) throws IOException {
+        long offset = (long) (locations[index] >>> 8) * SECTOR_SIZE;
+        int sectors = locations[index] & 0xFF;
+        if (offset < HEADER_SIZE || offset + (long) sectors * SECTOR_SIZE > file.length()) {
+            throw new IOException("Chunk " + index + " is outside of the region file");
+        }
+        file.seek(offset);
+        int length = file.readInt();
+        if (length <= 0 || length > sectors * SECTOR_SIZE - 4) {
+            throw new IOException("Chunk " + index + " has an invalid length");
+        }
+        byte[] chunk = new byte[length];
+        file.readFully(chunk);
+        return chunk;
+    }
+
+    /**
+     * Writes a region file containing the specified chunks.
+     * @param file the file to write to
+     * @param chunks the chunks in their stored form, {@code null} for chunks which don't exist
+     * @param timestamps the time every chunk was last saved
+     * @throws IOException if writing the file failed, or a chunk is too large for a region file
+     */
+    public static void write(@NotNull File file, byte[] @NotNull [] chunks, int @NotNull [] timestamps) throws IOException {
+        int[] locations = new int[CHUNK_COUNT];
+        int sector = HEADER_SIZE / SECTOR_SIZE;
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            if (chunks[i] == null) {
+                continue;
+            }
+            int sectors = (chunks[i].length + 4 + SECTOR_SIZE - 1) / SECTOR_SIZE;
+            if (sectors > MAX_SECTORS) {
+                throw new IOException("Chunk " + i + " is too large for a region file");
+            }
+            locations[i] = sector << 8 | sectors;
+            sector += sectors;
+        }
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            for (int location : locations) {
+                output.writeInt(location);
+            }
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                output.writeInt(chunks[i] != null ? timestamps[i] : 0);
+            }
+            byte[] padding = new byte[SECTOR_SIZE];
+            for (byte[] chunk : chunks) {
+                if (chunk == null) {
+                    continue;
+                }
+                output.writeInt(chunk.length);
+                output.write(chunk);
+                int remainder = (chunk.length + 4) % SECTOR_SIZE;
+                if (remainder != 0) {
+                    output.write(padding, 0, SECTOR_SIZE - remainder);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads every chunk of the specified region file, in its stored form.
+     * @param file the region file
+     * @param timestamps where to store the time every chunk was last saved
+     * @return the chunks, {@code null} for chunks which don't exist
+     * @throws IOException if reading the file failed, or a chunk is corrupted
+     */
+    public static byte[] @NotNull [] readChunks(@NotNull File file, int @NotNull [] timestamps) throws IOException {
+        byte[][] chunks = new byte[CHUNK_COUNT][];
+        try (RandomAccessFile regionFile = new RandomAccessFile(file, "r")) {
+            RegionFile region = readHeader(regionFile);
+            if (region == null) {
+                // Minecraft creates empty region files, which contain no chunks
+                return chunks;
+            }
+            for (int i = 0; i < CHUNK_COUNT; i++) {
+                if (region.exists(i)) {
+                    chunks[i] = region.readChunk(regionFile, i);
+                    timestamps[i] = region.timestamps[i];
+                }
+            }
+        }
+        return chunks;
+    }
+
+    @Contract (pure = true)
+    private static int readInt(byte @NotNull [] bytes, int offset) {
+        return (bytes[offset] & 0xFF) << 24
+            | (bytes[offset + 1] & 0xFF) << 16
+            | (bytes[offset + 2] & 0xFF) << 8
+            | (bytes[offset + 3] & 0xFF);
+    }
+}
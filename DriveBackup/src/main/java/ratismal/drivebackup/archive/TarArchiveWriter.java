@@ -0,0 +1,128 @@
+package ratismal.drivebackup.archive;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import net.jpountz.xxhash.XXHashFactory;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Writes a tar archive, compressed as a whole with Zstandard or LZ4.
+ * <p>
+ * Tar headers contain the size of an entry, so an entry always contains exactly as many bytes as the file had when its
+ * attributes were read. If the file shrinks while it's being read, the rest of the entry is filled with zeros.
+ */
+public class TarArchiveWriter implements ArchiveWriter {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final TarArchiveOutputStream tarOutputStream;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private TarArchiveWriter(@NotNull OutputStream compressedOutput) {
+        tarOutputStream = new TarArchiveOutputStream(compressedOutput, StandardCharsets.UTF_8.name());
+        tarOutputStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+        tarOutputStream.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        tarOutputStream.setAddPaxHeadersForNonAsciiNames(true);
+    }
+
+    /**
+     * Creates a writer for a Zstandard compressed tar archive.
+     * @param output where to write the archive to
+     * @param level the Zstandard compression level
+     * @param workers the number of threads Zstandard compresses with
+     * @return the writer
+     * @throws IOException if setting up the compressor failed
+     */
+    @NotNull
+    public static TarArchiveWriter zstd(@NotNull OutputStream output, int level, int workers) throws IOException {
+        ZstdOutputStream zstdOutputStream = new ZstdOutputStream(new BufferedOutputStream(output, BUFFER_SIZE), level);
+        if (workers > 1) {
+            zstdOutputStream.setWorkers(workers);
+        }
+        return new TarArchiveWriter(zstdOutputStream);
+    }
+
+    /**
+     * Creates a writer for an LZ4 compressed tar archive.
+     * @param output where to write the archive to
+     * @param level the LZ4 compression level, 0 for the fast compressor, or the level of the high compression compressor
+     * @return the writer
+     * @throws IOException if setting up the compressor failed
+     */
+    @NotNull
+    public static TarArchiveWriter lz4(@NotNull OutputStream output, int level) throws IOException {
+        LZ4Factory factory = LZ4Factory.fastestInstance();
+        LZ4Compressor compressor = level == 0 ? factory.fastCompressor() : factory.highCompressor(level);
+        LZ4FrameOutputStream lz4OutputStream = new LZ4FrameOutputStream(
+            new BufferedOutputStream(output, BUFFER_SIZE),
+            LZ4FrameOutputStream.BLOCKSIZE.SIZE_4MB,
+            -1L,
+            compressor,
+            XXHashFactory.fastestInstance().hash32(),
+            LZ4FrameOutputStream.FLG.Bits.BLOCK_INDEPENDENCE);
+        return new TarArchiveWriter(lz4OutputStream);
+    }
+
+    @Override
+    public boolean putEntry(@NotNull String name, @NotNull InputStream input, @Nullable BasicFileAttributes attributes, boolean compress) throws IOException {
+        if (attributes == null) {
+            // The size of the entry has to be known before writing its contents
+            return false;
+        }
+        TarArchiveEntry entry = new TarArchiveEntry(name, true);
+        long size = attributes.size();
+        entry.setSize(size);
+        entry.setModTime(attributes.lastModifiedTime());
+        entry.setCreationTime(attributes.creationTime());
+        entry.setLastAccessTime(attributes.lastAccessTime());
+        tarOutputStream.putArchiveEntry(entry);
+        boolean complete = true;
+        long remaining = size;
+        while (remaining > 0) {
+            int read;
+            try {
+                read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            } catch (IOException e) {
+                // Only failing to read the file skips the rest of it, failing to write the archive is thrown
+                complete = false;
+                break;
+            }
+            if (read < 0) {
+                break;
+            }
+            tarOutputStream.write(buffer, 0, read);
+            remaining -= read;
+        }
+        if (remaining > 0) {
+            complete = false;
+            fillWithZeros(remaining);
+        }
+        tarOutputStream.closeArchiveEntry();
+        return complete;
+    }
+
+    @Override
+    public void close() throws IOException {
+        tarOutputStream.close();
+    }
+
+    private void fillWithZeros(long count) throws IOException {
+        byte[] zeros = new byte[(int) Math.min(BUFFER_SIZE, count)];
+        while (count > 0) {
+            int length = (int) Math.min(zeros.length, count);
+            tarOutputStream.write(zeros, 0, length);
+            count -= length;
+        }
+    }
+}
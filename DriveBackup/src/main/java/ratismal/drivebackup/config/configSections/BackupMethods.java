@@ -24,10 +24,12 @@ public class BackupMethods {
 
     public static class GoogleDriveBackupMethod extends BackupMethod {
         public final String sharedDriveId;
+        public final int chunkSize;
 
-        public GoogleDriveBackupMethod(boolean enabled, String sharedDriveId) {
+        public GoogleDriveBackupMethod(boolean enabled, String sharedDriveId, int chunkSize) {
             super(enabled);
             this.sharedDriveId = sharedDriveId;
+            this.chunkSize = chunkSize;
         }
     }
 
@@ -38,8 +40,13 @@ public class BackupMethods {
     }
 
     public static class DropboxBackupMethod extends BackupMethod {
-        public DropboxBackupMethod(boolean enabled) {
+        public final int chunkSize;
+        public final int concurrentUploads;
+
+        public DropboxBackupMethod(boolean enabled, int chunkSize, int concurrentUploads) {
             super(enabled);
+            this.chunkSize = chunkSize;
+            this.concurrentUploads = concurrentUploads;
         }
     }
 
@@ -80,13 +87,18 @@ public class BackupMethods {
         public final String accessKey;
         public final String secretKey;
         public final String bucket;
+        public final int partSize;
+        public final int uploadThreads;
 
-        public S3BackupMethod(boolean enabled, String endpoint, String accessKey, String secretKey, String bucket) {
+        public S3BackupMethod(boolean enabled, String endpoint, String accessKey, String secretKey, String bucket, 
+                int partSize, int uploadThreads) {
             super(enabled);
             this.endpoint = endpoint;
             this.accessKey = accessKey;
             this.secretKey = secretKey;
             this.bucket = bucket;
+            this.partSize = partSize;
+            this.uploadThreads = uploadThreads;
         }
     }
 
@@ -152,15 +164,33 @@ public class BackupMethods {
         if (!Strings.isNullOrEmpty(googleSharedDriveId)) {
             logger.log(intl("shared-drive-deprecated"));
         }
+        int googleDriveChunkSize = config.getInt("googledrive.chunk-size", 8);
+        if (googleDriveChunkSize < 1) {
+            logger.log(intl("google-drive-method-chunk-size-invalid"));
+            googleDriveChunkSize = 8;
+        }
         GoogleDriveBackupMethod googleDriveMethod = new GoogleDriveBackupMethod(
             config.getBoolean("googledrive.enabled"),
-            googleSharedDriveId
+            googleSharedDriveId,
+            googleDriveChunkSize
             );
         OneDriveBackupMethod oneDriveMethod = new OneDriveBackupMethod(
             config.getBoolean("onedrive.enabled")
             );
+        int dropboxChunkSize = config.getInt("dropbox.chunk-size", 8);
+        if (dropboxChunkSize < 4 || dropboxChunkSize > 148 || dropboxChunkSize % 4 != 0) {
+            logger.log(intl("dropbox-method-chunk-size-invalid"));
+            dropboxChunkSize = 8;
+        }
+        int dropboxConcurrentUploads = config.getInt("dropbox.concurrent-uploads", 4);
+        if (dropboxConcurrentUploads < 1) {
+            logger.log(intl("dropbox-method-concurrent-uploads-invalid"));
+            dropboxConcurrentUploads = 4;
+        }
         DropboxBackupMethod dropboxMethod = new DropboxBackupMethod(
-            config.getBoolean("dropbox.enabled")
+            config.getBoolean("dropbox.enabled"),
+            dropboxChunkSize,
+            dropboxConcurrentUploads
             );
         WebDAVBackupMethod webdavMethod = new WebDAVBackupMethod(
             config.getBoolean("webdav.enabled"), 
@@ -178,12 +208,24 @@ public class BackupMethods {
             config.getInt("nextcloud.chunk-size", 10_000_000)
             );
 
+        int s3PartSize = config.getInt("s3.part-size", 16);
+        if (s3PartSize < 5 || s3PartSize > 1024) {
+            logger.log(intl("s3-method-part-size-invalid"));
+            s3PartSize = 16;
+        }
+        int s3UploadThreads = config.getInt("s3.upload-threads", 4);
+        if (s3UploadThreads < 1) {
+            logger.log(intl("s3-method-upload-threads-invalid"));
+            s3UploadThreads = 4;
+        }
         S3BackupMethod s3Method = new S3BackupMethod(
             config.getBoolean("s3.enabled"),
             config.getString("s3.endpoint"),
             config.getString("s3.access-key"),
             config.getString("s3.secret-key"),
-            config.getString("s3.bucket")
+            config.getString("s3.bucket"),
+            s3PartSize,
+            s3UploadThreads
             );
 
         boolean ftpEnabled = config.getBoolean("ftp.enabled");
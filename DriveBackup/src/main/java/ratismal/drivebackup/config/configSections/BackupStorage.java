@@ -4,6 +4,7 @@ import org.bukkit.configuration.Configuration;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import ratismal.drivebackup.archive.ArchiveFormat;
 import ratismal.drivebackup.util.Logger;
 
 import java.util.zip.Deflater;
@@ -15,9 +16,27 @@ public class BackupStorage {
     public final int threadPriority;
     public final int keepCount;
     public final int localKeepCount;
+    public final int keepHourly;
+    public final int keepDaily;
+    public final int keepWeekly;
+    public final int keepMonthly;
+    public final ArchiveFormat archiveFormat;
     public final int zipCompression;
+    public final int zstdCompression;
+    public final int lz4Compression;
+    public final int dedupChunkSize;
+    public final int compressionThreads;
+    public final int backupSetThreads;
+    public final int backupSetThreadsPerDisk;
+    public final int compressionMinimumSavings;
+    public final String[] storeUncompressed;
     public final boolean backupsRequirePlayers;
     public final boolean disableSavingDuringBackups;
+    public final boolean streamingUploads;
+    public final int uploadThreads;
+    public final boolean incrementalBackups;
+    public final int fullBackupInterval;
+    public final boolean regionFileDeltas;
     public final String localDirectory;
     public final String remoteDirectory;
 
@@ -26,9 +45,27 @@ public class BackupStorage {
         int threadPriority, 
         int keepCount, 
         int localKeepCount,
+        int keepHourly,
+        int keepDaily,
+        int keepWeekly,
+        int keepMonthly,
+        ArchiveFormat archiveFormat,
         int zipCompression,
+        int zstdCompression,
+        int lz4Compression,
+        int dedupChunkSize,
+        int compressionThreads,
+        int backupSetThreads,
+        int backupSetThreadsPerDisk,
+        int compressionMinimumSavings,
+        String[] storeUncompressed,
         boolean backupsRequirePlayers,
         boolean disableSavingDuringBackups,
+        boolean streamingUploads,
+        int uploadThreads,
+        boolean incrementalBackups,
+        int fullBackupInterval,
+        boolean regionFileDeltas,
         String localDirectory,
         String remoteDirectory
         ) {
@@ -37,9 +74,27 @@ public class BackupStorage {
         this.threadPriority = threadPriority;
         this.keepCount = keepCount;
         this.localKeepCount = localKeepCount;
+        this.keepHourly = keepHourly;
+        this.keepDaily = keepDaily;
+        this.keepWeekly = keepWeekly;
+        this.keepMonthly = keepMonthly;
+        this.archiveFormat = archiveFormat;
         this.zipCompression = zipCompression;
+        this.zstdCompression = zstdCompression;
+        this.lz4Compression = lz4Compression;
+        this.dedupChunkSize = dedupChunkSize;
+        this.compressionThreads = compressionThreads;
+        this.backupSetThreads = backupSetThreads;
+        this.backupSetThreadsPerDisk = backupSetThreadsPerDisk;
+        this.compressionMinimumSavings = compressionMinimumSavings;
+        this.storeUncompressed = storeUncompressed;
         this.backupsRequirePlayers = backupsRequirePlayers;
         this.disableSavingDuringBackups = disableSavingDuringBackups;
+        this.streamingUploads = streamingUploads;
+        this.uploadThreads = uploadThreads;
+        this.incrementalBackups = incrementalBackups;
+        this.fullBackupInterval = fullBackupInterval;
+        this.regionFileDeltas = regionFileDeltas;
         this.localDirectory = localDirectory;
         this.remoteDirectory = remoteDirectory;
     }
@@ -71,6 +126,31 @@ public class BackupStorage {
             logger.log(intl("local-keep-count-invalid"));
             localKeepCount = defaultConfig.getInt("local-keep-count");
         }
+        int keepHourly = config.getInt("keep-hourly");
+        if (keepHourly < 0) {
+            logger.log(intl("keep-hourly-invalid"));
+            keepHourly = defaultConfig.getInt("keep-hourly");
+        }
+        int keepDaily = config.getInt("keep-daily");
+        if (keepDaily < 0) {
+            logger.log(intl("keep-daily-invalid"));
+            keepDaily = defaultConfig.getInt("keep-daily");
+        }
+        int keepWeekly = config.getInt("keep-weekly");
+        if (keepWeekly < 0) {
+            logger.log(intl("keep-weekly-invalid"));
+            keepWeekly = defaultConfig.getInt("keep-weekly");
+        }
+        int keepMonthly = config.getInt("keep-monthly");
+        if (keepMonthly < 0) {
+            logger.log(intl("keep-monthly-invalid"));
+            keepMonthly = defaultConfig.getInt("keep-monthly");
+        }
+        ArchiveFormat archiveFormat = ArchiveFormat.fromConfigName(config.getString("archive-format"));
+        if (archiveFormat == null) {
+            logger.log(intl("archive-format-invalid"));
+            archiveFormat = ArchiveFormat.ZIP;
+        }
         int zipCompression = config.getInt("zip-compression");
         if (zipCompression < Deflater.BEST_SPEED) {
             logger.log(intl("zip-compression-too-low"));
@@ -79,14 +159,70 @@ public class BackupStorage {
             logger.log(intl("zip-compression-too-high"));
             zipCompression = Deflater.BEST_COMPRESSION;
         }
+        int zstdCompression = config.getInt("zstd-compression");
+        if (zstdCompression < 1 || zstdCompression > 22) {
+            logger.log(intl("zstd-compression-invalid"));
+            zstdCompression = defaultConfig.getInt("zstd-compression");
+        }
+        int lz4Compression = config.getInt("lz4-compression");
+        if (lz4Compression < 0 || lz4Compression > 17) {
+            logger.log(intl("lz4-compression-invalid"));
+            lz4Compression = defaultConfig.getInt("lz4-compression");
+        }
+        int dedupChunkSize = config.getInt("dedup-chunk-size");
+        if (dedupChunkSize < 64 || dedupChunkSize > 8192) {
+            logger.log(intl("dedup-chunk-size-invalid"));
+            dedupChunkSize = defaultConfig.getInt("dedup-chunk-size");
+        }
+        int compressionThreads = config.getInt("compression-threads");
+        if (compressionThreads < 0) {
+            logger.log(intl("compression-threads-invalid"));
+            compressionThreads = 0;
+        }
+        if (compressionThreads == 0) {
+            compressionThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        }
+        int backupSetThreads = config.getInt("backup-set-threads");
+        if (backupSetThreads < 1) {
+            logger.log(intl("backup-set-threads-invalid"));
+            backupSetThreads = defaultConfig.getInt("backup-set-threads");
+        }
+        int backupSetThreadsPerDisk = config.getInt("backup-set-threads-per-disk");
+        if (backupSetThreadsPerDisk < 1) {
+            logger.log(intl("backup-set-threads-per-disk-invalid"));
+            backupSetThreadsPerDisk = defaultConfig.getInt("backup-set-threads-per-disk");
+        }
+        int compressionMinimumSavings = config.getInt("compression-minimum-savings");
+        if (compressionMinimumSavings < 0 || compressionMinimumSavings > 100) {
+            logger.log(intl("compression-minimum-savings-invalid"));
+            compressionMinimumSavings = defaultConfig.getInt("compression-minimum-savings");
+        }
+        String[] storeUncompressed = config.getStringList("store-uncompressed").toArray(new String[0]);
         boolean backupsRequirePlayers = config.getBoolean("backups-require-players");
         boolean disableSavingDuringBackups = config.getBoolean("disable-saving-during-backups");
+        boolean streamingUploads = config.getBoolean("streaming-uploads");
+        int uploadThreads = config.getInt("upload-threads");
+        if (uploadThreads < 0) {
+            logger.log(intl("upload-threads-invalid"));
+            uploadThreads = 0;
+        }
+        boolean incrementalBackups = config.getBoolean("incremental-backups");
+        int fullBackupInterval = config.getInt("full-backup-interval");
+        if (fullBackupInterval < 1) {
+            logger.log(intl("full-backup-interval-invalid"));
+            fullBackupInterval = defaultConfig.getInt("full-backup-interval");
+        }
+        if (incrementalBackups && archiveFormat != ArchiveFormat.DEDUP && keepCount != -1 && keepCount < fullBackupInterval) {
+            logger.log(intl("keep-count-below-full-backup-interval"));
+            keepCount = fullBackupInterval;
+        }
+        boolean regionFileDeltas = config.getBoolean("region-file-deltas");
         String localDirectory = config.getString("local-save-directory");
         if (localDirectory.startsWith("/")) {
             logger.log(intl("local-save-directory-not-relative"));
             localDirectory = localDirectory.substring(1);
         }
         String remoteDirectory = config.getString("remote-save-directory");
-        return new BackupStorage(delay, threadPriority, keepCount, localKeepCount, zipCompression, backupsRequirePlayers, disableSavingDuringBackups, localDirectory, remoteDirectory);
+        return new BackupStorage(delay, threadPriority, keepCount, localKeepCount, keepHourly, keepDaily, keepWeekly, keepMonthly, archiveFormat, zipCompression, zstdCompression, lz4Compression, dedupChunkSize, compressionThreads, backupSetThreads, backupSetThreadsPerDisk, compressionMinimumSavings, storeUncompressed, backupsRequirePlayers, disableSavingDuringBackups, streamingUploads, uploadThreads, incrementalBackups, fullBackupInterval, regionFileDeltas, localDirectory, remoteDirectory);
     }
 }
@@ -14,6 +14,7 @@ import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.util.Logger;
 import ratismal.drivebackup.config.configSections.ExternalBackups.ExternalFTPSource.ExternalBackupListEntry;
 import ratismal.drivebackup.config.configSections.ExternalBackups.ExternalMySQLSource.MySQLDatabaseBackup;
+import ratismal.drivebackup.uploaders.mysql.DumpCompression;
 import ratismal.drivebackup.util.LocalDateTimeFormatter;
 
 import static ratismal.drivebackup.config.Localization.intl;
@@ -89,6 +90,10 @@ public class ExternalBackups {
         }
 
         public final boolean ssl;
+        public final int dumpThreads;
+        public final int insertBatchRows;
+        public final int insertBatchSize;
+        public final DumpCompression dumpCompression;
         public final MySQLDatabaseBackup[] databaseList;
 
         private ExternalMySQLSource(
@@ -98,11 +103,19 @@ public class ExternalBackups {
             String password, 
             LocalDateTimeFormatter formatter,
             boolean ssl, 
+            int dumpThreads,
+            int insertBatchRows,
+            int insertBatchSize,
+            DumpCompression dumpCompression,
             MySQLDatabaseBackup[] databaseList
             ) {
             super(hostname, port, username, password, formatter);
 
             this.ssl = ssl;
+            this.dumpThreads = dumpThreads;
+            this.insertBatchRows = insertBatchRows;
+            this.insertBatchSize = insertBatchSize;
+            this.dumpCompression = dumpCompression;
             this.databaseList = databaseList;
         }
     }
@@ -243,6 +256,54 @@ public class ExternalBackups {
                         logger.log(intl("external-database-ssl-invalid"), "entry", entryIndex);
                         // Use false
                     }
+                    int dumpThreads = 1;
+                    if (rawListEntry.containsKey("dump-threads")) {
+                        try {
+                            dumpThreads = (Integer) rawListEntry.get("dump-threads");
+                            if (dumpThreads < 1) {
+                                throw new ClassCastException();
+                            }
+                        } catch (ClassCastException e) {
+                            logger.log(intl("external-database-dump-threads-invalid"), "entry", entryIndex);
+                            dumpThreads = 1;
+                        }
+                    }
+                    int insertBatchRows = 1000;
+                    if (rawListEntry.containsKey("insert-batch-rows")) {
+                        try {
+                            insertBatchRows = (Integer) rawListEntry.get("insert-batch-rows");
+                            if (insertBatchRows < 1) {
+                                throw new ClassCastException();
+                            }
+                        } catch (ClassCastException e) {
+                            logger.log(intl("external-database-insert-batch-rows-invalid"), "entry", entryIndex);
+                            insertBatchRows = 1000;
+                        }
+                    }
+                    int insertBatchSize = 1024;
+                    if (rawListEntry.containsKey("insert-batch-size")) {
+                        try {
+                            insertBatchSize = (Integer) rawListEntry.get("insert-batch-size");
+                            if (insertBatchSize < 1) {
+                                throw new ClassCastException();
+                            }
+                        } catch (ClassCastException e) {
+                            logger.log(intl("external-database-insert-batch-size-invalid"), "entry", entryIndex);
+                            insertBatchSize = 1024;
+                        }
+                    }
+                    DumpCompression dumpCompression = DumpCompression.ZSTD;
+                    if (rawListEntry.containsKey("dump-compression")) {
+                        try {
+                            dumpCompression = DumpCompression.fromConfigName((String) rawListEntry.get("dump-compression"));
+                        } catch (ClassCastException e) {
+                            dumpCompression = null;
+                        }
+                        if (dumpCompression == null) {
+                            logger.log(intl("external-database-dump-compression-invalid"), "entry", entryIndex);
+                            dumpCompression = DumpCompression.ZSTD;
+                        }
+                    }
                     List<Map<?, ?>> rawDatabaseList;
                     try {
                         rawDatabaseList = (List<Map<?, ?>>) rawListEntry.get("databases");
@@ -278,6 +339,10 @@ public class ExternalBackups {
                             password, 
                             formatter, 
                             ssl, 
+                            dumpThreads,
+                            insertBatchRows,
+                            insertBatchSize,
+                            dumpCompression,
                             databaseList.toArray(new MySQLDatabaseBackup[0]))
                     );
                     break;
@@ -0,0 +1,214 @@
+package ratismal.drivebackup.uploaders;
+
+import okhttp3.FormBody;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.jetbrains.annotations.NotNull;
+import org.json.JSONObject;
+import ratismal.drivebackup.config.ConfigParser;
+import ratismal.drivebackup.plugin.DriveBackup;
+import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
+import ratismal.drivebackup.util.MessageUtil;
+import ratismal.drivebackup.util.NamedThreadFactory;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the access tokens of the authenticated users, so that all uploaders of a provider share a token, rather than
+ * each getting a new one for every backup.
+ * <p>
+ * A token is refreshed shortly before it expires. While a token is in use, it's refreshed in the background, so that
+ * requests don't have to wait for it to be refreshed.
+ */
+public final class AccessTokenManager {
+    /**
+     * How long before a token expires it's refreshed
+     */
+    private static final long REFRESH_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * How long a token is assumed to be valid for if the provider doesn't say
+     */
+    private static final long DEFAULT_EXPIRES_IN_SECONDS = 3600;
+
+    private static final Map<AuthenticationProvider, TokenState> tokens = new ConcurrentHashMap<>();
+    private static ScheduledExecutorService refresher;
+
+    private AccessTokenManager() {
+    }
+
+    /**
+     * Gets an access token for the specified provider, refreshing it if it's about to expire.
+     * @param provider the provider
+     * @return the access token
+     * @throws IOException if the token had to be refreshed, and refreshing it failed
+     */
+    @NotNull
+    public static String getAccessToken(@NotNull AuthenticationProvider provider) throws IOException {
+        TokenState state = tokens.computeIfAbsent(provider, key -> new TokenState());
+        synchronized (state) {
+            if (state.accessToken == null || System.currentTimeMillis() >= state.expiresAt - REFRESH_MARGIN_MILLIS) {
+                refresh(provider, state);
+            }
+            state.lastUsed = System.currentTimeMillis();
+            return state.accessToken;
+        }
+    }
+
+    /**
+     * Refreshes the access token for the specified provider, as the provider rejected it, unless it was already refreshed.
+     * @param provider the provider
+     * @param rejectedToken the access token which was rejected
+     * @return the new access token
+     * @throws IOException if refreshing the token failed
+     */
+    @NotNull
+    public static String refreshAccessToken(@NotNull AuthenticationProvider provider, String rejectedToken) throws IOException {
+        TokenState state = tokens.computeIfAbsent(provider, key -> new TokenState());
+        synchronized (state) {
+            if (state.accessToken == null || state.accessToken.equals(rejectedToken)) {
+                refresh(provider, state);
+            }
+            state.lastUsed = System.currentTimeMillis();
+            return state.accessToken;
+        }
+    }
+
+    /**
+     * Forgets the tokens for the specified provider, as the user linked or unlinked their account.
+     * @param provider the provider
+     */
+    public static void invalidate(@NotNull AuthenticationProvider provider) {
+        TokenState state = tokens.remove(provider);
+        if (state != null) {
+            synchronized (state) {
+                if (state.refreshTask != null) {
+                    state.refreshTask.cancel(false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets a new access token for the specified provider, and schedules refreshing it before it expires.
+     * @param provider the provider
+     * @param state the tokens of the provider
+     * @throws IOException if the request failed, or the user isn't authenticated
+     */
+    private static void refresh(@NotNull AuthenticationProvider provider, @NotNull TokenState state) throws IOException {
+        if (state.refreshToken == null) {
+            state.refreshToken = Authenticator.getRefreshToken(provider);
+        }
+        if (state.refreshToken.isEmpty()) {
+            throw new IOException(provider.getName() + " account is not linked");
+        }
+        FormBody.Builder requestBody = new FormBody.Builder();
+        String tokenEndpoint;
+        try {
+            requestBody.add("client_id", Obfusticate.decrypt(provider.getClientId()));
+            switch (provider) {
+                case ONEDRIVE:
+                    requestBody.add("scope", "offline_access Files.ReadWrite");
+                    requestBody.add("redirect_uri", "https://login.microsoftonline.com/common/oauth2/nativeclient");
+                    tokenEndpoint = "https://login.microsoftonline.com/common/oauth2/v2.0/token";
+                    break;
+                case DROPBOX:
+                    requestBody.add("client_secret", Obfusticate.decrypt(provider.getClientSecret()));
+                    tokenEndpoint = "https://api.dropbox.com/oauth2/token";
+                    break;
+                default:
+                    requestBody.add("client_secret", Obfusticate.decrypt(provider.getClientSecret()));
+                    tokenEndpoint = "https://oauth2.googleapis.com/token";
+                    break;
+            }
+        } catch (Exception e) {
+            throw new IOException("Failed to decrypt " + provider.getName() + " client credentials", e);
+        }
+        requestBody
+            .add("refresh_token", state.refreshToken)
+            .add("grant_type", "refresh_token");
+        Request request = new Request.Builder()
+            .url(tokenEndpoint)
+            .post(requestBody.build())
+            .build();
+        try (Response response = DriveBackup.httpClient.newCall(request).execute()) {
+            //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
+            JSONObject parsedResponse = new JSONObject(response.body().string());
+            if (!response.isSuccessful()) {
+                String error = parsedResponse.optString("error");
+                String description = parsedResponse.optString("error_description");
+                throw new IOException(String.format("%s : %s", error, description));
+            }
+            state.accessToken = parsedResponse.getString("access_token");
+            // OneDrive rotates refresh tokens
+            String refreshToken = parsedResponse.optString("refresh_token", state.refreshToken);
+            if (!refreshToken.equals(state.refreshToken)) {
+                state.refreshToken = refreshToken;
+                try {
+                    Authenticator.saveRefreshToken(provider, refreshToken);
+                } catch (IOException e) {
+                    MessageUtil.sendConsoleException(e);
+                }
+            }
+            long expiresIn = parsedResponse.optLong("expires_in", DEFAULT_EXPIRES_IN_SECONDS);
+            state.refreshedAt = System.currentTimeMillis();
+            state.expiresAt = state.refreshedAt + TimeUnit.SECONDS.toMillis(expiresIn);
+        }
+        scheduleRefresh(provider, state);
+    }
+
+    private static void scheduleRefresh(@NotNull AuthenticationProvider provider, @NotNull TokenState state) {
+        if (state.refreshTask != null) {
+            state.refreshTask.cancel(false);
+        }
+        long delay = Math.max(0, state.expiresAt - REFRESH_MARGIN_MILLIS - System.currentTimeMillis());
+        state.refreshTask = getRefresher().schedule(() -> refreshInBackground(provider, state), delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Refreshes the access token for the specified provider before it expires, if it was used since it was last
+     * refreshed, so that tokens aren't refreshed forever while no backup is running.
+     * @param provider the provider
+     * @param state the tokens of the provider
+     */
+    private static void refreshInBackground(@NotNull AuthenticationProvider provider, @NotNull TokenState state) {
+        synchronized (state) {
+            if (tokens.get(provider) != state || state.lastUsed < state.refreshedAt) {
+                return;
+            }
+            try {
+                refresh(provider, state);
+            } catch (Exception e) {
+                // The token is refreshed again when it's next used
+                MessageUtil.sendConsoleException(e);
+            }
+        }
+    }
+
+    @NotNull
+    private static synchronized ScheduledExecutorService getRefresher() {
+        if (refresher == null) {
+            refresher = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("TokenRefresh", ConfigParser.getConfig().backupStorage.threadPriority));
+        }
+        return refresher;
+    }
+
+    /**
+     * The tokens of a provider
+     */
+    private static final class TokenState {
+        private String refreshToken;
+        private String accessToken;
+        private long expiresAt;
+        private long refreshedAt;
+        private long lastUsed;
+        private ScheduledFuture<?> refreshTask;
+    }
+}
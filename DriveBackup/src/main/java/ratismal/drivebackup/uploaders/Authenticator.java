@@ -143,6 +143,7 @@ public class Authenticator {
                         response.close();
                         if (parsedResponse.has("refresh_token")) {
                             saveRefreshToken(provider, (String) parsedResponse.get("refresh_token"));
+                            AccessTokenManager.invalidate(provider);
                             linkSuccess(initiator, provider, logger);
                             cancelPollTask();
                         } else if (
@@ -175,6 +176,7 @@ public class Authenticator {
             if (credStoreFile.exists()) {
                 credStoreFile.delete();
             }
+            AccessTokenManager.invalidate(provider);
         } catch (Exception exception) {
             logger.log(intl("unlink-provider-failed"), "provider", provider.getName());
             MessageUtil.sendConsoleException(exception);
@@ -0,0 +1,63 @@
+package ratismal.drivebackup.uploaders;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A request body streaming a range of bytes of a file, so that uploading a chunk of a file doesn't require reading the
+ * chunk into memory first.
+ * <p>
+ * The file is opened again every time the body is written, so the request can be retried.
+ */
+public class FileRangeRequestBody extends RequestBody {
+    private final File file;
+    private final long offset;
+    private final long length;
+    private final MediaType contentType;
+
+    /**
+     * Creates an instance of the {@code FileRangeRequestBody} object
+     * @param file the file
+     * @param offset the offset of the first byte of the range in the file
+     * @param length the number of bytes in the range
+     * @param contentType the content type of the body
+     */
+    public FileRangeRequestBody(@NotNull File file, long offset, long length, @Nullable MediaType contentType) {
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.contentType = contentType;
+    }
+
+    @Nullable
+    @Override
+    public MediaType contentType() {
+        return contentType;
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    @Override
+    public void writeTo(@NotNull BufferedSink sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.position(offset);
+            try (Source source = Okio.source(Channels.newInputStream(channel))) {
+                sink.write(source, length);
+            }
+        }
+    }
+}
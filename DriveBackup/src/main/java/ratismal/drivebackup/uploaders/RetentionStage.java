@@ -0,0 +1,125 @@
+package ratismal.drivebackup.uploaders;
+
+import org.jetbrains.annotations.NotNull;
+import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.config.ConfigParser;
+import ratismal.drivebackup.util.MessageUtil;
+import ratismal.drivebackup.util.NamedThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Prunes old backups from the backup methods in the background, at a lower priority than backing up, so that uploading
+ * the next backup doesn't wait for the old ones to be listed and deleted.
+ * <p>
+ * A prune which is requested while the same one is still waiting to run is only run once. Failing to prune doesn't
+ * mark the upload as failed, failures are reported once all prunes finished instead.
+ */
+public class RetentionStage implements AutoCloseable {
+    private final ExecutorService executor;
+    private final UploadLogger logger;
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    private final List<Future<?>> tasks = Collections.synchronizedList(new ArrayList<>());
+    private final Map<Uploader, Boolean> failedUploaders = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an instance of the {@code RetentionStage} object
+     * @param uploaderCount the number of uploaders which are going to prune, which are pruned at once
+     * @param logger the logger to log failures to
+     */
+    public RetentionStage(int uploaderCount, UploadLogger logger) {
+        this.logger = logger;
+        int threadPriority = ConfigParser.getConfig().backupStorage.threadPriority;
+        executor = Executors.newFixedThreadPool(
+            Math.max(1, uploaderCount),
+            new NamedThreadFactory("Prune", Math.max(Thread.MIN_PRIORITY, threadPriority - 1))
+            );
+    }
+
+    /**
+     * Schedules pruning the old backups of the specified type from the specified uploader.
+     * @param uploader the uploader
+     * @param type the type of file (ex. plugins, world)
+     * @param failureMessage the message to log if pruning fails
+     * @param task the task pruning the backups
+     */
+    void schedule(@NotNull Uploader uploader, String type, String failureMessage, @NotNull PruneTask task) {
+        String key = uploader.getId() + "/" + type;
+        if (!pending.add(key)) {
+            return;
+        }
+        tasks.add(executor.submit(() -> {
+            pending.remove(key);
+            run(uploader, type, failureMessage, task);
+        }));
+    }
+
+    /**
+     * Prunes old backups, recording whether it failed.
+     * @param uploader the uploader
+     * @param type the type of file (ex. plugins, world)
+     * @param failureMessage the message to log if pruning fails
+     * @param task the task pruning the backups
+     */
+    private void run(@NotNull Uploader uploader, String type, String failureMessage, @NotNull PruneTask task) {
+        try {
+            task.prune(type);
+        } catch (Exception e) {
+            failedUploaders.put(uploader, Boolean.TRUE);
+            logger.log(failureMessage);
+            MessageUtil.sendConsoleException(e);
+        }
+    }
+
+    /**
+     * Waits for all scheduled prunes to finish.
+     */
+    public void awaitCompletion() {
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                tasks.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                MessageUtil.sendConsoleException(e);
+            }
+        }
+    }
+
+    /**
+     * Whether pruning old backups from the specified uploader failed
+     * @param uploader the uploader
+     * @return whether pruning failed
+     */
+    public boolean isPruneFailed(Uploader uploader) {
+        return failedUploaders.containsKey(uploader);
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A task pruning old backups
+     */
+    @FunctionalInterface
+    public interface PruneTask {
+        /**
+         * Prunes the old backups of the specified type.
+         * @param type the type of file (ex. plugins, world)
+         * @throws Exception if pruning failed
+         */
+        void prune(String type) throws Exception;
+    }
+}
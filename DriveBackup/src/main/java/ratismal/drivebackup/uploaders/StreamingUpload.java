@@ -0,0 +1,158 @@
+package ratismal.drivebackup.uploaders;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.config.ConfigParser;
+import ratismal.drivebackup.util.FanOutPipe;
+import ratismal.drivebackup.util.MessageUtil;
+import ratismal.drivebackup.util.NamedThreadFactory;
+import ratismal.drivebackup.util.Timer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static ratismal.drivebackup.config.Localization.intl;
+
+/**
+ * Uploads a backup to several uploaders while it's being created, without waiting for it to be written to disk first.
+ * <p>
+ * The backup is written to a {@link FanOutPipe}, which every uploader reads from concurrently on its own thread.
+ * Optionally, the backup is also written to a local file, for uploaders which don't support streaming.
+ */
+public class StreamingUpload {
+    /**
+     * The size of the chunks the backup is passed to the uploaders in
+     */
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * The maximum number of chunks buffered for the slowest uploader before creating the backup is paused
+     */
+    private static final int MAX_CHUNKS = 32;
+
+    private final List<Uploader> uploaders;
+    private final UploadLogger logger;
+    private FanOutPipe pipe;
+    private ExecutorService executor;
+    private final List<Future<?>> tasks = new ArrayList<>();
+    private File localFile;
+
+    /**
+     * Creates an instance of the {@code StreamingUpload} object
+     * @param uploaders the uploaders to upload to, which must all implement {@link StreamingUploader}
+     * @param logger the logger to send progress messages to
+     */
+    public StreamingUpload(@NotNull List<Uploader> uploaders, UploadLogger logger) {
+        this.uploaders = uploaders;
+        this.logger = logger;
+    }
+
+    /**
+     * Starts uploading a backup.
+     * @param fileName the name of the backup file
+     * @param type the type of file (ex. plugins, world)
+     * @param localFile the file to also write the backup to, or {@code null} to not keep a local copy
+     * @return the stream to write the backup to
+     */
+    @NotNull
+    public OutputStream start(@NotNull String fileName, @NotNull String type, @Nullable File localFile) {
+        this.localFile = localFile;
+        pipe = new FanOutPipe(CHUNK_SIZE, MAX_CHUNKS);
+        int threads = uploaders.size() + (localFile != null ? 1 : 0);
+        executor = Executors.newFixedThreadPool(
+            threads,
+            new NamedThreadFactory("Upload", ConfigParser.getConfig().backupStorage.threadPriority)
+            );
+        for (Uploader uploader : uploaders) {
+            InputStream input = pipe.newReader();
+            tasks.add(executor.submit(() -> upload(uploader, input, fileName, type)));
+        }
+        if (localFile != null) {
+            InputStream input = pipe.newReader();
+            tasks.add(executor.submit(() -> writeLocalFile(input, localFile)));
+        }
+        return pipe.getOutputStream();
+    }
+
+    /**
+     * Marks the backup as complete, and waits for all uploads to finish.
+     * @throws IOException if writing the local file failed
+     */
+    public void finish() throws IOException {
+        try {
+            pipe.finish();
+        } finally {
+            awaitTasks();
+        }
+        if (localFile != null && !localFile.exists()) {
+            throw new IOException("Failed to write local backup file");
+        }
+    }
+
+    /**
+     * Aborts the uploads, as creating the backup failed, and waits for the uploaders to clean up.
+     * @param exception the reason creating the backup failed
+     */
+    public void abort(@NotNull Exception exception) {
+        pipe.fail(new IOException("Failed to create backup", exception));
+        awaitTasks();
+    }
+
+    private void awaitTasks() {
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                MessageUtil.sendConsoleException(e);
+            }
+        }
+        executor.shutdownNow();
+    }
+
+    private void upload(@NotNull Uploader uploader, @NotNull InputStream input, String fileName, String type) {
+        logger.info(
+            intl("backup-method-uploading"),
+            "upload-method", uploader.getName());
+        Timer timer = new Timer();
+        timer.start();
+        try (InputStream stream = input) {
+            ((StreamingUploader) uploader).uploadStream(stream, fileName, type);
+            timer.end();
+            if (!uploader.isErrorWhileUploading()) {
+                logger.info(timer.getUploadTimeMessage(pipe.getSize()));
+            } else {
+                logger.info(intl("backup-method-upload-failed"));
+            }
+        } catch (Exception e) {
+            uploader.setErrorOccurred(true);
+            logger.info(intl("backup-method-upload-failed"));
+            MessageUtil.sendConsoleException(e);
+        }
+    }
+
+    private static void writeLocalFile(@NotNull InputStream input, @NotNull File localFile) {
+        try (InputStream stream = input; OutputStream output = new FileOutputStream(localFile)) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = stream.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            localFile.delete();
+            MessageUtil.sendConsoleException(e);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package ratismal.drivebackup.uploaders;
+
+import java.io.InputStream;
+
+/**
+ * An {@link Uploader} which can upload a backup while it's being created, without it being written to disk first.
+ */
+public interface StreamingUploader {
+
+    /**
+     * Uploads a backup while it's being created, reading it from the specified stream until the end of the stream.
+     * <p>
+     * Errors are handled the same way as in {@link Uploader#uploadFile(java.io.File, String)}.
+     * If reading the stream fails, the partially uploaded file must not be kept.
+     * @param input the contents of the backup
+     * @param fileName the name of the backup file
+     * @param type the type of file (ex. plugins, world)
+     */
+    void uploadStream(InputStream input, String fileName, String type);
+}
@@ -0,0 +1,151 @@
+package ratismal.drivebackup.uploaders;
+
+import org.jetbrains.annotations.NotNull;
+import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.config.ConfigParser;
+import ratismal.drivebackup.util.MessageUtil;
+import ratismal.drivebackup.util.NamedThreadFactory;
+import ratismal.drivebackup.util.Timer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static ratismal.drivebackup.config.Localization.intl;
+
+/**
+ * Uploads backup files to several uploaders at once, so that the total upload time is that of the slowest uploader
+ * rather than the sum of all of them.
+ * <p>
+ * Each uploader uploads the files in its own task. An uploader failing, even with an exception, only marks that
+ * uploader as having failed, and doesn't affect the others.
+ */
+public class UploadDispatcher implements AutoCloseable {
+    private final ExecutorService executor;
+    private final UploadLogger logger;
+
+    /**
+     * Creates an instance of the {@code UploadDispatcher} object
+     * @param uploaderCount the number of uploaders which are going to be uploaded to
+     * @param logger the logger to log the progress of the uploads to
+     */
+    public UploadDispatcher(int uploaderCount, UploadLogger logger) {
+        this.logger = logger;
+        int threads = ConfigParser.getConfig().backupStorage.uploadThreads;
+        if (threads == 0 || threads > uploaderCount) {
+            threads = Math.max(1, uploaderCount);
+        }
+        executor = Executors.newFixedThreadPool(
+            threads,
+            new NamedThreadFactory("Upload", ConfigParser.getConfig().backupStorage.threadPriority)
+            );
+    }
+
+    /**
+     * Uploads the specified files to every specified uploader, and waits for all uploads to finish.
+     * @param uploaders the uploaders to upload to
+     * @param files the files to upload, in the order each uploader uploads them
+     * @param type the type of file (ex. plugins, world)
+     */
+    public void upload(@NotNull List<Uploader> uploaders, @NotNull List<File> files, String type) {
+        List<Future<?>> tasks = new ArrayList<>(uploaders.size());
+        for (Uploader uploader : uploaders) {
+            tasks.add(executor.submit(() -> upload(uploader, files, type)));
+        }
+        for (Future<?> task : tasks) {
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                MessageUtil.sendConsoleException(e);
+            }
+        }
+    }
+
+    private void upload(@NotNull Uploader uploader, @NotNull List<File> files, String type) {
+        logger.info(
+            intl("backup-method-uploading"),
+            "upload-method", uploader.getName());
+        Timer timer = new Timer();
+        timer.start();
+        long size = 0;
+        try {
+            for (File file : files) {
+                uploader.uploadFile(file, type);
+                size += file.length();
+            }
+        } catch (Exception e) {
+            uploader.setErrorOccurred(true);
+            MessageUtil.sendConsoleException(e);
+        }
+        timer.end();
+        if (!uploader.isErrorWhileUploading()) {
+            logger.info(timer.getUploadTimeMessage(size));
+        } else {
+            logger.info(intl("backup-method-upload-failed"));
+        }
+    }
+
+    /**
+     * Uploads the specified chunk packs to every specified uploader, and waits for all uploads to finish.
+     * @param uploaders the uploaders to upload to
+     * @param packs the packs to upload
+     * @param type the type of file (ex. plugins, world)
+     * @return the uploaders which received every pack
+     */
+    @NotNull
+    public List<Uploader> uploadChunkPacks(@NotNull List<Uploader> uploaders, @NotNull List<File> packs, String type) {
+        List<Future<Boolean>> tasks = new ArrayList<>(uploaders.size());
+        for (Uploader uploader : uploaders) {
+            tasks.add(executor.submit(() -> uploadChunkPacks(uploader, packs, type)));
+        }
+        List<Uploader> succeeded = new ArrayList<>(uploaders.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                if (tasks.get(i).get()) {
+                    succeeded.add(uploaders.get(i));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                MessageUtil.sendConsoleException(e);
+            }
+        }
+        return succeeded;
+    }
+
+    private boolean uploadChunkPacks(@NotNull Uploader uploader, @NotNull List<File> packs, String type) {
+        logger.info(
+            intl("backup-method-uploading"),
+            "upload-method", uploader.getName());
+        Timer timer = new Timer();
+        timer.start();
+        long size = 0;
+        for (File pack : packs) {
+            size += pack.length();
+        }
+        try {
+            uploader.uploadChunkPacks(packs, type);
+        } catch (Exception e) {
+            uploader.setErrorOccurred(true);
+            MessageUtil.sendConsoleException(e);
+            logger.info(intl("backup-method-upload-failed"));
+            return false;
+        }
+        timer.end();
+        logger.info(timer.getUploadTimeMessage(size));
+        return true;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+}
@@ -2,8 +2,13 @@ package ratismal.drivebackup.uploaders;
 
 import ratismal.drivebackup.UploadThread;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
+import ratismal.drivebackup.uploaders.RetentionStage.PruneTask;
+import ratismal.drivebackup.util.MessageUtil;
 
 import java.io.IOException;
+import java.util.List;
+
+import static ratismal.drivebackup.config.Localization.intl;
 
 public abstract class Uploader {
     private String name;
@@ -11,6 +16,7 @@ public abstract class Uploader {
     private boolean authenticated;
     private boolean errorOccurred;
     private AuthenticationProvider authProvider;
+    private RetentionStage retentionStage;
     protected UploadThread.UploadLogger logger;
     
     protected Uploader(String name, String id) {
@@ -48,7 +54,67 @@ public abstract class Uploader {
     protected void setErrorOccurred(boolean errorOccurred) {
         this.errorOccurred = errorOccurred;
     }
+
+    /**
+     * Sets the retention stage to prune old backups in, rather than pruning them right after uploading a backup
+     * @param retentionStage the retention stage
+     */
+    public void setRetentionStage(RetentionStage retentionStage) {
+        this.retentionStage = retentionStage;
+    }
+
+    /**
+     * Prunes the old backups of the specified type, in the background if a retention stage is set.
+     * <p>
+     * Failing to prune doesn't mark the upload as failed.
+     * @param type the type of file (ex. plugins, world)
+     * @param task the task pruning the backups
+     */
+    protected void schedulePrune(String type, PruneTask task) {
+        schedulePrune(type, intl("backup-method-prune-failed"), task);
+    }
+
+    /**
+     * Prunes the old backups of the specified type, in the background if a retention stage is set.
+     * <p>
+     * Failing to prune doesn't mark the upload as failed.
+     * @param type the type of file (ex. plugins, world)
+     * @param failureMessage the message to log if pruning fails
+     * @param task the task pruning the backups
+     */
+    protected void schedulePrune(String type, String failureMessage, PruneTask task) {
+        if (retentionStage != null) {
+            retentionStage.schedule(this, type, failureMessage, task);
+            return;
+        }
+        try {
+            task.prune(type);
+        } catch (Exception e) {
+            logger.log(failureMessage);
+            MessageUtil.sendConsoleException(e);
+        }
+    }
+
+    /**
+     * Reports the progress of the file currently being uploaded, to be shown in the backup status.
+     * @param uploaded the number of bytes uploaded
+     * @param total the size of the file in bytes
+     */
+    protected void reportProgress(long uploaded, long total) {
+        UploadThread.setUploadProgress(name, uploaded, total);
+    }
     public abstract void test(java.io.File testFile);
     public abstract void uploadFile(java.io.File file, String type) throws IOException;
+
+    /**
+     * Uploads the specified chunk packs of a deduplicating backup into the chunks folder inside the folder for the specified
+     * file type.
+     * <p>
+     * Packs aren't backups, so unlike {@link #uploadFile}, this doesn't prune old backups or resume interrupted uploads.
+     * @param packs the packs
+     * @param type the type of file (ex. plugins, world)
+     * @throws Exception if uploading a pack failed
+     */
+    public abstract void uploadChunkPacks(List<java.io.File> packs, String type) throws Exception;
     public abstract void close();
 }
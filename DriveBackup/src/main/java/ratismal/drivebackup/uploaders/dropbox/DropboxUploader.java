@@ -1,61 +1,81 @@
 package ratismal.drivebackup.uploaders.dropbox;
 
-import okhttp3.FormBody;
 import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
-import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.json.JSONArray;
 import org.json.JSONObject;
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.ChunkStore;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.ConfigParser.Config;
 import ratismal.drivebackup.plugin.DriveBackup;
-import ratismal.drivebackup.uploaders.Authenticator;
+import ratismal.drivebackup.uploaders.AccessTokenManager;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
-import ratismal.drivebackup.uploaders.Obfusticate;
+import ratismal.drivebackup.uploaders.FileRangeRequestBody;
+import ratismal.drivebackup.uploaders.StreamingUploader;
 import ratismal.drivebackup.uploaders.Uploader;
+import ratismal.drivebackup.util.FileUtil;
 import ratismal.drivebackup.util.MessageUtil;
+import ratismal.drivebackup.util.NamedThreadFactory;
 import ratismal.drivebackup.util.NetUtil;
+import ratismal.drivebackup.util.RetentionPolicy;
 
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import static ratismal.drivebackup.config.Localization.intl;
 
-public class DropboxUploader extends Uploader {
+public class DropboxUploader extends Uploader implements StreamingUploader {
 
     public static final String UPLOADER_NAME = "Dropbox";
 
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+
+    /**
+     * The largest file which can be uploaded in a single request, larger files are uploaded using an upload session
+     */
+    private static final long MAX_SINGLE_UPLOAD_SIZE = 150L * 1024 * 1024;
+
+    private static final int MAX_APPEND_ATTEMPTS = 4;
+    private static final long APPEND_BACKOFF_MILLIS = 1000;
+
     /**
-     * Global Dropbox tokens
+     * The most files which can be deleted in a single batch
      */
-    private String accessToken = "";
-    private String refreshToken;
+    private static final int DELETE_BATCH_SIZE = 1000;
+    private static final long DELETE_POLL_MILLIS = 500;
+    private static final long MAX_DELETE_POLL_MILLIS = 10_000;
+    private static final int MAX_DELETE_POLLS = 60;
 
     /**
      * Tests the Dropbox account by uploading a small file
      *  @param testFile the file to upload during the test
      */
     public void test(@NotNull java.io.File testFile) {
-        try (DataInputStream dis = new DataInputStream(Files.newInputStream(testFile.toPath()))) {
-            byte[] content = new byte[(int) testFile.length()];
-            dis.readFully(content);
-            MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+        try {
             MediaType JSON = MediaType.parse("application/json; charset=utf-8");
-            RequestBody requestBody = RequestBody.create(content, OCTET_STREAM);
+            RequestBody requestBody = RequestBody.create(testFile, OCTET_STREAM);
             String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
             JSONObject dropbox_json = new JSONObject();
             dropbox_json.put("path", "/" + destination + "/" + testFile.getName());
             String dropbox_arg = dropbox_json.toString();
             Request request = new Request.Builder()
-                .addHeader("Authorization", "Bearer " + accessToken)
+                .addHeader("Authorization", "Bearer " + getAccessToken())
                 .addHeader("Dropbox-API-Arg", dropbox_arg)
                 .url("https://content.dropboxapi.com/2/files/upload")
                 .post(requestBody)
@@ -71,7 +91,7 @@ public class DropboxUploader extends Uploader {
             deleteJson.put("path", "/" + destination + "/" + testFile.getName());
             RequestBody deleteRequestBody = RequestBody.create(deleteJson.toString(), JSON);
             request = new Request.Builder()
-                .addHeader("Authorization", "Bearer " + accessToken)
+                .addHeader("Authorization", "Bearer " + getAccessToken())
                 .url("https://api.dropboxapi.com/2/files/delete_v2")
                 .post(deleteRequestBody)
                 .build();
@@ -87,12 +107,6 @@ public class DropboxUploader extends Uploader {
             setErrorOccurred(true);
         }
     }
-    
-    @Contract (pure = true)
-    @Override
-    public boolean isAuthenticated() {
-        return !accessToken.isEmpty();
-    }
 
     /**
      * Uploads the specified file to the authenticated user's Dropbox inside a
@@ -103,98 +117,294 @@ public class DropboxUploader extends Uploader {
      */
     public void uploadFile(@NotNull final java.io.File file, @NotNull final String type) {
         String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
-        long fileSize = file.length();
-        MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
         String folder = type.replaceAll("\\.{1,2}\\/", "");
         folder = folder.replace(".\\", "");
-        try (DataInputStream dis = new DataInputStream(Files.newInputStream(file.toPath()))) {
-            if (fileSize > 150000000L /* 150MB */) {
-                // Chunked upload
-                // 10 MB chunk
-                final int CHUNKED_UPLOAD_CHUNK_SIZE = (1024 * 1024 * 10);
-                long uploaded = 0L;
-                byte[] buff = new byte[CHUNKED_UPLOAD_CHUNK_SIZE];
-                String sessionId = null;
-                // (1) Start
-                if (sessionId == null) {
-                    dis.readFully(buff);
-                    RequestBody requestBody = RequestBody.create(buff, OCTET_STREAM);
-                    Request request = new Request.Builder()
-                        .addHeader("Authorization", "Bearer " + accessToken)
-                        .post(requestBody)
-                        .url("https://content.dropboxapi.com/2/files/upload_session/start")
-                        .build();
-                    Response response = DriveBackup.httpClient.newCall(request).execute();
-                    JSONObject parsedResponse = new JSONObject(response.body().string());
-                    sessionId = parsedResponse.getString("session_id");
-                    response.close();
-                    uploaded += CHUNKED_UPLOAD_CHUNK_SIZE;
-                }
-                // (2) Append
-                while (fileSize - uploaded > CHUNKED_UPLOAD_CHUNK_SIZE) {
-                    dis.readFully(buff);
-                    RequestBody requestBody = RequestBody.create(buff, OCTET_STREAM);
-                    JSONObject dropbox_cursor = new JSONObject();
-                    dropbox_cursor.put("session_id", sessionId);
-                    dropbox_cursor.put("offset", uploaded);
-                    JSONObject dropbox_json = new JSONObject();
-                    dropbox_json.put("cursor", dropbox_cursor);
-                    String dropbox_arg = dropbox_json.toString();
-                    Request request = new Request.Builder()
-                        .addHeader("Dropbox-API-Arg", dropbox_arg)
-                        .addHeader("Authorization", "Bearer " + accessToken)
-                        .post(requestBody)
-                        .url("https://content.dropboxapi.com/2/files/upload_session/append_v2")
-                        .build();
-                    Response response = DriveBackup.httpClient.newCall(request).execute();
-                    response.close();
-                    uploaded += CHUNKED_UPLOAD_CHUNK_SIZE;
-                }
-                // (3) Finish
-                int remainingSize = (int) (fileSize - uploaded);
-                byte[] remaining = new byte[remainingSize];
-                dis.readFully(remaining);
-                RequestBody requestBody = RequestBody.create(remaining, OCTET_STREAM);
-                JSONObject dropboxCursor = new JSONObject();
-                dropboxCursor.put("session_id", sessionId);
-                dropboxCursor.put("offset", uploaded);
-                JSONObject dropboxCommit = new JSONObject();
-                dropboxCommit.put("path", "/" + destination + "/" + folder + "/" + file.getName());
-                JSONObject dropboxJson = new JSONObject();
-                dropboxJson.put("cursor", dropboxCursor);
-                dropboxJson.put("commit", dropboxCommit);
-                String dropbox_arg = dropboxJson.toString();
-                Request request = new Request.Builder()
-                    .addHeader("Dropbox-API-Arg", dropbox_arg)
-                    .addHeader("Authorization", "Bearer " + accessToken)
-                    .post(requestBody)
-                    .url("https://content.dropboxapi.com/2/files/upload_session/finish")
-                    .build();
-                Response response = DriveBackup.httpClient.newCall(request).execute();
-                response.close();
-            } else {
-                // Single upload
-                byte[] content = new byte[ (int) fileSize];
-                dis.readFully(content);
-                RequestBody requestBody = RequestBody.create(content, OCTET_STREAM);
-                JSONObject dropbox_json = new JSONObject();
-                dropbox_json.put("path", "/" + destination + "/" + folder + "/" + file.getName());
-                String dropbox_arg = dropbox_json.toString();
-                Request request = new Request.Builder()
-                    .addHeader("Authorization", "Bearer " + accessToken)
-                    .addHeader("Dropbox-API-Arg", dropbox_arg)
-                    .url("https://content.dropboxapi.com/2/files/upload")
-                    .post(requestBody)
-                    .build();
-                Response response = DriveBackup.httpClient.newCall(request).execute();
-                response.close();
+        try {
+            uploadToPath(file, "/" + destination + "/" + folder + "/" + file.getName());
+            schedulePrune(folder, this::pruneBackups);
+        } catch (Exception exception) {
+            NetUtil.catchException(exception, "api.dropboxapi.com", logger);
+            MessageUtil.sendConsoleException(exception);
+            setErrorOccurred(true);
+        }
+    }
+
+    @Override
+    public void uploadChunkPacks(@NotNull List<java.io.File> packs, @NotNull String type) throws Exception {
+        String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
+        String folder = type.replaceAll("\\.{1,2}\\/", "");
+        folder = folder.replace(".\\", "");
+        for (java.io.File pack : packs) {
+            uploadToPath(pack, "/" + destination + "/" + folder + "/" + ChunkStore.FOLDER_NAME + "/" + pack.getName());
+        }
+    }
+
+    /**
+     * Uploads the specified file to the specified path, using an upload session if it's too large for a single request.
+     * @param file the file
+     * @param path the path to upload the file to
+     * @throws IOException if a request failed
+     */
+    private void uploadToPath(@NotNull java.io.File file, String path) throws IOException {
+        long fileSize = file.length();
+        int concurrentUploads = ConfigParser.getConfig().backupMethods.dropbox.concurrentUploads;
+        if (fileSize > MAX_SINGLE_UPLOAD_SIZE && concurrentUploads > 1) {
+            uploadFileInConcurrentSession(file, path, concurrentUploads);
+        } else if (fileSize > MAX_SINGLE_UPLOAD_SIZE) {
+            uploadFileInSession(file, path);
+        } else {
+            JSONObject dropbox_json = new JSONObject();
+            dropbox_json.put("path", path);
+            String dropbox_arg = dropbox_json.toString();
+            Request request = new Request.Builder()
+                .addHeader("Authorization", "Bearer " + getAccessToken())
+                .addHeader("Dropbox-API-Arg", dropbox_arg)
+                .url("https://content.dropboxapi.com/2/files/upload")
+                .post(RequestBody.create(file, OCTET_STREAM))
+                .build();
+            executeRequest(request).close();
+        }
+    }
+
+    /**
+     * Uploads the specified file using an upload session, streaming each chunk from the file.
+     * @param file the file
+     * @param path the path to upload the file to
+     * @throws IOException if a request failed
+     */
+    private void uploadFileInSession(@NotNull java.io.File file, String path) throws IOException {
+        long fileSize = file.length();
+        long chunkSize = getChunkSize();
+        Request startRequest = new Request.Builder()
+            .addHeader("Authorization", "Bearer " + getAccessToken())
+            .post(new FileRangeRequestBody(file, 0, chunkSize, OCTET_STREAM))
+            .url("https://content.dropboxapi.com/2/files/upload_session/start")
+            .build();
+        String sessionId;
+        try (Response response = executeRequest(startRequest)) {
+            sessionId = new JSONObject(response.body().string()).getString("session_id");
+        }
+        long uploaded = chunkSize;
+        // The last chunk is sent along with the commit
+        while (fileSize - uploaded > chunkSize) {
+            JSONObject cursor = new JSONObject();
+            cursor.put("session_id", sessionId);
+            cursor.put("offset", uploaded);
+            JSONObject appendArg = new JSONObject();
+            appendArg.put("cursor", cursor);
+            Request appendRequest = new Request.Builder()
+                .addHeader("Dropbox-API-Arg", appendArg.toString())
+                .addHeader("Authorization", "Bearer " + getAccessToken())
+                .post(new FileRangeRequestBody(file, uploaded, chunkSize, OCTET_STREAM))
+                .url("https://content.dropboxapi.com/2/files/upload_session/append_v2")
+                .build();
+            executeRequest(appendRequest).close();
+            uploaded += chunkSize;
+        }
+        JSONObject cursor = new JSONObject();
+        cursor.put("session_id", sessionId);
+        cursor.put("offset", uploaded);
+        JSONObject commit = new JSONObject();
+        commit.put("path", path);
+        JSONObject finishArg = new JSONObject();
+        finishArg.put("cursor", cursor);
+        finishArg.put("commit", commit);
+        Request finishRequest = new Request.Builder()
+            .addHeader("Dropbox-API-Arg", finishArg.toString())
+            .addHeader("Authorization", "Bearer " + getAccessToken())
+            .post(new FileRangeRequestBody(file, uploaded, fileSize - uploaded, OCTET_STREAM))
+            .url("https://content.dropboxapi.com/2/files/upload_session/finish")
+            .build();
+        executeRequest(finishRequest).close();
+    }
+
+    /**
+     * Uploads the specified file using a concurrent upload session, appending several chunks at once.
+     * <p>
+     * Every chunk but the last is appended in any order, and retried from its offset if appending it fails. The last
+     * chunk closes the session, so it's only appended once all others were, after which the session is finished.
+     * @param file the file
+     * @param path the path to upload the file to
+     * @param concurrentUploads the number of chunks to append at once
+     * @throws IOException if a request failed, or a chunk failed to be appended too many times
+     */
+    private void uploadFileInConcurrentSession(@NotNull java.io.File file, String path, int concurrentUploads) throws IOException {
+        long fileSize = file.length();
+        long chunkSize = getChunkSize();
+        JSONObject startArg = new JSONObject();
+        startArg.put("session_type", "concurrent");
+        Request startRequest = new Request.Builder()
+            .addHeader("Dropbox-API-Arg", startArg.toString())
+            .addHeader("Authorization", "Bearer " + getAccessToken())
+            .post(RequestBody.create(new byte[0], OCTET_STREAM))
+            .url("https://content.dropboxapi.com/2/files/upload_session/start")
+            .build();
+        String sessionId;
+        try (Response response = executeRequest(startRequest)) {
+            sessionId = new JSONObject(response.body().string()).getString("session_id");
+        }
+        long lastChunkOffset = (fileSize - 1) / chunkSize * chunkSize;
+        ExecutorService executor = Executors.newFixedThreadPool(
+            concurrentUploads,
+            new NamedThreadFactory("Dropbox-Upload", ConfigParser.getConfig().backupStorage.threadPriority)
+            );
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (long offset = 0; offset < lastChunkOffset; offset += chunkSize) {
+                long chunkOffset = offset;
+                tasks.add(executor.submit(() -> {
+                    appendChunk(file, sessionId, chunkOffset, chunkSize, false);
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                await(task);
             }
+        } finally {
+            executor.shutdownNow();
+        }
+        appendChunk(file, sessionId, lastChunkOffset, fileSize - lastChunkOffset, true);
+        JSONObject cursor = new JSONObject();
+        cursor.put("session_id", sessionId);
+        cursor.put("offset", fileSize);
+        JSONObject commit = new JSONObject();
+        commit.put("path", path);
+        JSONObject finishArg = new JSONObject();
+        finishArg.put("cursor", cursor);
+        finishArg.put("commit", commit);
+        Request finishRequest = new Request.Builder()
+            .addHeader("Dropbox-API-Arg", finishArg.toString())
+            .addHeader("Authorization", "Bearer " + getAccessToken())
+            .post(RequestBody.create(new byte[0], OCTET_STREAM))
+            .url("https://content.dropboxapi.com/2/files/upload_session/finish")
+            .build();
+        executeRequest(finishRequest).close();
+    }
+
+    /**
+     * Appends a chunk of the specified file to an upload session, retrying with exponential backoff if it fails.
+     * @param file the file
+     * @param sessionId the ID of the upload session
+     * @param offset the offset of the chunk in the file
+     * @param length the length of the chunk
+     * @param close whether to close the session, as this is the last chunk
+     * @throws IOException if appending the chunk failed too many times
+     */
+    private void appendChunk(@NotNull java.io.File file, String sessionId, long offset, long length, boolean close) throws IOException {
+        JSONObject cursor = new JSONObject();
+        cursor.put("session_id", sessionId);
+        cursor.put("offset", offset);
+        JSONObject appendArg = new JSONObject();
+        appendArg.put("cursor", cursor);
+        appendArg.put("close", close);
+        long backoffMillis = APPEND_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            Request appendRequest = new Request.Builder()
+                .addHeader("Dropbox-API-Arg", appendArg.toString())
+                .addHeader("Authorization", "Bearer " + getAccessToken())
+                .post(new FileRangeRequestBody(file, offset, length, OCTET_STREAM))
+                .url("https://content.dropboxapi.com/2/files/upload_session/append_v2")
+                .build();
             try {
-                pruneBackups(folder);
-            } catch (Exception e) {
-                logger.log(intl("backup-method-prune-failed"));
+                executeRequest(appendRequest).close();
+                return;
+            } catch (InterruptedIOException e) {
                 throw e;
+            } catch (IOException e) {
+                if (attempt >= MAX_APPEND_ATTEMPTS) {
+                    throw e;
+                }
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(backoffMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while retrying chunk at offset " + offset);
+            }
+            backoffMillis *= 2;
+        }
+    }
+
+    private static void await(@NotNull Future<?> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while appending chunks");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Gets the size of the chunks to upload files in using an upload session, as specified by the user in the {@code config.yml}.
+     * @return the size of the chunks in bytes
+     */
+    private static int getChunkSize() {
+        return ConfigParser.getConfig().backupMethods.dropbox.chunkSize * 1024 * 1024;
+    }
+
+    /**
+     * Uploads a backup to the authenticated user's Dropbox inside a folder for the specified file type, while it's being created.
+     * <p>
+     * The backup is always uploaded using an upload session, as its size isn't known in advance.
+     * @param input the contents of the backup
+     * @param fileName the name of the backup file
+     * @param type the type of file (ex. plugins, world)
+     */
+    @Override
+    public void uploadStream(InputStream input, String fileName, String type) {
+        String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
+        String folder = type.replaceAll("\\.{1,2}\\/", "");
+        folder = folder.replace(".\\", "");
+        try {
+            Request startRequest = new Request.Builder()
+                .addHeader("Authorization", "Bearer " + getAccessToken())
+                .post(RequestBody.create(new byte[0], OCTET_STREAM))
+                .url("https://content.dropboxapi.com/2/files/upload_session/start")
+                .build();
+            String sessionId;
+            try (Response response = executeRequest(startRequest)) {
+                sessionId = new JSONObject(response.body().string()).getString("session_id");
+            }
+            byte[] buffer = new byte[getChunkSize()];
+            long uploaded = 0L;
+            int length;
+            // The last, partial chunk is sent along with the commit
+            while ((length = FileUtil.readChunk(input, buffer)) == buffer.length) {
+                JSONObject cursor = new JSONObject();
+                cursor.put("session_id", sessionId);
+                cursor.put("offset", uploaded);
+                JSONObject appendArg = new JSONObject();
+                appendArg.put("cursor", cursor);
+                Request appendRequest = new Request.Builder()
+                    .addHeader("Dropbox-API-Arg", appendArg.toString())
+                    .addHeader("Authorization", "Bearer " + getAccessToken())
+                    .post(RequestBody.create(buffer, OCTET_STREAM, 0, length))
+                    .url("https://content.dropboxapi.com/2/files/upload_session/append_v2")
+                    .build();
+                executeRequest(appendRequest).close();
+                uploaded += length;
             }
+            JSONObject cursor = new JSONObject();
+            cursor.put("session_id", sessionId);
+            cursor.put("offset", uploaded);
+            JSONObject commit = new JSONObject();
+            commit.put("path", "/" + destination + "/" + folder + "/" + fileName);
+            JSONObject finishArg = new JSONObject();
+            finishArg.put("cursor", cursor);
+            finishArg.put("commit", commit);
+            Request finishRequest = new Request.Builder()
+                .addHeader("Dropbox-API-Arg", finishArg.toString())
+                .addHeader("Authorization", "Bearer " + getAccessToken())
+                .post(RequestBody.create(buffer, OCTET_STREAM, 0, length))
+                .url("https://content.dropboxapi.com/2/files/upload_session/finish")
+                .build();
+            executeRequest(finishRequest).close();
+            schedulePrune(folder, this::pruneBackups);
         } catch (Exception exception) {
             NetUtil.catchException(exception, "api.dropboxapi.com", logger);
             MessageUtil.sendConsoleException(exception);
@@ -203,10 +413,27 @@ public class DropboxUploader extends Uploader {
     }
 
     /**
-     * Deletes the oldest files past the number to retain from the FTP server inside
+     * Executes a request to the Dropbox API, checking that it succeeded.
+     * @param request the request
+     * @return the response, which must be closed by the caller
+     * @throws IOException if the request failed
+     */
+    @NotNull
+    private static Response executeRequest(@NotNull Request request) throws IOException {
+        Response response = DriveBackup.httpClient.newCall(request).execute();
+        if (response.code() != 200) {
+            String message = "Request to " + request.url().encodedPath() + " failed with status " + response.code() + ": " + response.body().string();
+            response.close();
+            throw new IOException(message);
+        }
+        return response;
+    }
+
+    /**
+     * Deletes the files which aren't retained from the FTP server inside
      * the specified folder for the file type.
      * <p>
-     * The number of files to retain is specified by the user in the
+     * The number of files, and hours, days, weeks and months of files to retain is specified by the user in the
      * {@code config.yml}
      * 
      * @param type the type of file (ex. plugins, world)
@@ -217,35 +444,91 @@ public class DropboxUploader extends Uploader {
         type = type.replace("./", "");
         type = type.replace(".\\", "");
         String destination = config.backupStorage.remoteDirectory;
-        int fileLimit = config.backupStorage.keepCount;
-        if (fileLimit == -1) {
+        RetentionPolicy retentionPolicy = RetentionPolicy.remote();
+        if (retentionPolicy.isUnlimited()) {
             return;
         }
         TreeMap<Instant, String> files = getZipFiles(destination, type);
-        if (files.size() > fileLimit) {
+        List<Map.Entry<Instant, String>> filesToDelete = retentionPolicy.getBackupsToDelete(files.entrySet(), Map.Entry::getKey, Map.Entry::getValue);
+        if (!filesToDelete.isEmpty()) {
             logger.info(intl("backup-method-limit-reached"),
                 "file-count", String.valueOf(files.size()),
                 "upload-method", getName(),
-                "file-limit", String.valueOf(fileLimit));
-            while (files.size() > fileLimit) {
-                JSONObject deleteJson = new JSONObject();
-                deleteJson.put("path", "/" + destination + "/" + type + "/" + files.firstEntry().getValue());
-                RequestBody deleteRequestBody = RequestBody.create(deleteJson.toString(),
-                                                        MediaType.parse("application/json"));
-                Request deleteRequest = new Request.Builder()
-                    .addHeader("Authorization", "Bearer " + accessToken)
-                    .url("https://api.dropboxapi.com/2/files/delete_v2")
-                    .post(deleteRequestBody)
-                    .build();
-                Response deleteResponse = DriveBackup.httpClient.newCall(deleteRequest).execute();
-                deleteResponse.close();
-                files.remove(files.firstKey());
+                "file-limit", String.valueOf(retentionPolicy.getKeepCount()));
+            List<String> paths = new ArrayList<>();
+            for (Map.Entry<Instant, String> file : filesToDelete) {
+                paths.add("/" + destination + "/" + type + "/" + file.getValue());
             }
+            deleteFiles(paths);
         }
     }
 
     /**
-     * Returns a list of ZIP files, and their modification dates inside the given folder.
+     * Deletes the specified files in batches, waiting for Dropbox to finish deleting each batch.
+     * <p>
+     * Files which were already deleted are ignored.
+     * @param paths the paths of the files
+     * @throws IOException if a request failed, or a file couldn't be deleted
+     * @throws InterruptedException if interrupted while waiting for a batch to be deleted
+     */
+    private void deleteFiles(@NotNull List<String> paths) throws IOException, InterruptedException {
+        for (int start = 0; start < paths.size(); start += DELETE_BATCH_SIZE) {
+            JSONArray entries = new JSONArray();
+            for (String path : paths.subList(start, Math.min(start + DELETE_BATCH_SIZE, paths.size()))) {
+                entries.put(new JSONObject().put("path", path));
+            }
+            JSONObject status = postJson("https://api.dropboxapi.com/2/files/delete_batch", new JSONObject().put("entries", entries));
+            String jobId = status.optString("async_job_id");
+            long pollMillis = DELETE_POLL_MILLIS;
+            for (int poll = 0; !"complete".equals(status.getString(".tag")); poll++) {
+                if ("failed".equals(status.getString(".tag"))) {
+                    throw new IOException("Failed to delete files: " + status.get("failed"));
+                }
+                if (poll >= MAX_DELETE_POLLS) {
+                    throw new IOException("Timed out waiting for files to be deleted");
+                }
+                TimeUnit.MILLISECONDS.sleep(pollMillis);
+                pollMillis = Math.min(pollMillis * 2, MAX_DELETE_POLL_MILLIS);
+                status = postJson("https://api.dropboxapi.com/2/files/delete_batch/check", new JSONObject().put("async_job_id", jobId));
+            }
+            JSONArray results = status.getJSONArray("entries");
+            for (int i = 0; i < results.length(); i++) {
+                JSONObject result = results.getJSONObject(i);
+                if ("failure".equals(result.getString(".tag")) && !isNotFound(result.getJSONObject("failure"))) {
+                    throw new IOException("Failed to delete " + entries.getJSONObject(i).getString("path") + ": " + result.get("failure"));
+                }
+            }
+        }
+    }
+
+    private static boolean isNotFound(@NotNull JSONObject deleteError) {
+        JSONObject lookupError = deleteError.optJSONObject("path_lookup");
+        return lookupError != null && "not_found".equals(lookupError.optString(".tag"));
+    }
+
+    /**
+     * Sends a request with a JSON body to the Dropbox API.
+     * @param url the URL of the endpoint
+     * @param body the body of the request
+     * @return the body of the response
+     * @throws IOException if the request failed
+     */
+    @NotNull
+    private static JSONObject postJson(String url, @NotNull JSONObject body) throws IOException {
+        Request request = new Request.Builder()
+            .addHeader("Authorization", "Bearer " + getAccessToken())
+            .url(url)
+            .post(RequestBody.create(body.toString(), MediaType.parse("application/json")))
+            .build();
+        try (Response response = executeRequest(request)) {
+            return new JSONObject(response.body().string());
+        }
+    }
+
+    /**
+     * Returns a list of backup archives, and their modification dates inside the given folder.
+     * <p>
+     * Folders are listed in pages, so every page is requested until Dropbox reports there are no more entries.
      * @return a map of files, and their modification dates
      * @throws Exception
      */
@@ -254,23 +537,22 @@ public class DropboxUploader extends Uploader {
         TreeMap<Instant, String> files = new TreeMap<>();
         JSONObject json = new JSONObject();
         json.put("path", "/" + destination + "/" + type);
-        RequestBody requestBody = RequestBody.create(json.toString(), MediaType.parse("application/json"));
-        Request request = new Request.Builder()
-            .addHeader("Authorization", "Bearer " + accessToken)
-            .url("https://api.dropboxapi.com/2/files/list_folder")
-            .post(requestBody)
-            .build();
-        Response response = DriveBackup.httpClient.newCall(request).execute();
-        JSONObject parsedResponse = new JSONObject(response.body().string());
-        JSONArray resFiles = parsedResponse.getJSONArray("entries");
-        response.close();
-        for (int i = 0; i < resFiles.length(); i++) {
-            JSONObject file = resFiles.getJSONObject(i);
-            if (file.getString("name").endsWith(".zip")) {
-                files.put(Instant.parse(file.getString("server_modified")), file.getString("name"));
+        JSONObject parsedResponse = postJson("https://api.dropboxapi.com/2/files/list_folder", json);
+        while (true) {
+            JSONArray resFiles = parsedResponse.getJSONArray("entries");
+            for (int i = 0; i < resFiles.length(); i++) {
+                JSONObject file = resFiles.getJSONObject(i);
+                if ("file".equals(file.optString(".tag")) && ArchiveFormat.isArchive(file.getString("name"))) {
+                    files.put(Instant.parse(file.getString("server_modified")), file.getString("name"));
+                }
             }
+            if (!parsedResponse.optBoolean("has_more")) {
+                return files;
+            }
+            JSONObject cursor = new JSONObject();
+            cursor.put("cursor", parsedResponse.getString("cursor"));
+            parsedResponse = postJson("https://api.dropboxapi.com/2/files/list_folder/continue", cursor);
         }
-        return files;
     }
 
     /**
@@ -281,8 +563,8 @@ public class DropboxUploader extends Uploader {
         setAuthProvider(AuthenticationProvider.DROPBOX);
         this.logger = logger;
         try {
-            refreshToken = Authenticator.getRefreshToken(AuthenticationProvider.DROPBOX);
-            retrieveNewAccessToken();
+            getAccessToken();
+            setAuthenticated(true);
         } catch (Exception e) {
             MessageUtil.sendConsoleException(e);
             setErrorOccurred(true);
@@ -290,26 +572,13 @@ public class DropboxUploader extends Uploader {
     }
 
     /**
-     * Gets a new Dropbox access token for the authenticated user
+     * Gets the Dropbox access token for the authenticated user, shared by all Dropbox uploaders
+     * @return the access token
+     * @throws IOException if the token had to be refreshed, and refreshing it failed
      */
-    private void retrieveNewAccessToken() throws Exception {
-        RequestBody requestBody = new FormBody.Builder()
-            .add("client_id", Obfusticate.decrypt(AuthenticationProvider.DROPBOX.getClientId()))
-            .add("client_secret", Obfusticate.decrypt(AuthenticationProvider.DROPBOX.getClientSecret()))
-            .add("refresh_token", refreshToken)
-            .add("grant_type", "refresh_token")
-            .build();
-        Request request = new Request.Builder()
-            .url("https://api.dropbox.com/oauth2/token")
-            .post(requestBody)
-            .build();
-        Response response = DriveBackup.httpClient.newCall(request).execute();
-        JSONObject parsedResponse = new JSONObject(response.body().string());
-        response.close();
-        if (!response.isSuccessful()) {
-            return;
-        }
-        accessToken = parsedResponse.getString("access_token");
+    @NotNull
+    private static String getAccessToken() throws IOException {
+        return AccessTokenManager.getAccessToken(AuthenticationProvider.DROPBOX);
     }
 
     /**
@@ -8,19 +8,25 @@ import org.apache.commons.net.ftp.FTPSClient;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.ChunkStore;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.configSections.BackupMethods.FTPBackupMethod;
 import ratismal.drivebackup.uploaders.Uploader;
 import ratismal.drivebackup.util.MessageUtil;
 import ratismal.drivebackup.util.NetUtil;
+import ratismal.drivebackup.util.RetentionPolicy;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
@@ -217,6 +223,26 @@ public class FTPUploader extends Uploader {
         }
     }
 
+    @Override
+    public void uploadChunkPacks(List<File> packs, String type) throws Exception {
+        type = type.replace(".."  + sep(), "");
+        if (sftpClient != null) {
+            sftpClient.uploadChunkPacks(packs, type);
+            return;
+        }
+        resetWorkingDirectory();
+        createThenEnter(_remoteBaseFolder);
+        createThenEnter(type);
+        createThenEnter(ChunkStore.FOLDER_NAME);
+        for (File pack : packs) {
+            try (FileInputStream fs = new FileInputStream(pack)) {
+                if (!ftpClient.storeFile(pack.getName(), fs)) {
+                    throw new IOException("Failed to upload " + pack.getName() + ": " + ftpClient.getReplyString());
+                }
+            }
+        }
+    }
+
     /**
      * Downloads the specifed file from the (S)FTP server into a folder for the specified file type.
      * @param filePath the path of the file
@@ -274,41 +300,42 @@ public class FTPUploader extends Uploader {
     }
 
     /**
-     * Deletes the oldest files past the number to retain from the FTP server inside the specified folder for the file type.
+     * Deletes the files which aren't retained from the FTP server inside the specified folder for the file type.
      * <p>
-     * The number of files to retain is specified by the user in the {@code config.yml}
+     * The number of files, and hours, days, weeks and months of files to retain is specified by the user in the {@code config.yml}
      * @param type the type of file (ex. plugins, world)
      * @throws Exception
      */
     private void pruneBackups(String type) throws Exception {
-        int fileLimit = ConfigParser.getConfig().backupStorage.keepCount;
-        if (fileLimit == -1) {
+        RetentionPolicy retentionPolicy = RetentionPolicy.remote();
+        if (retentionPolicy.isUnlimited()) {
             return;
         }
         TreeMap<Date, FTPFile> files = getZipFiles();
-        if (files.size() > fileLimit) {
+        List<Map.Entry<Date, FTPFile>> filesToDelete = retentionPolicy.getBackupsToDelete(
+            files.entrySet(), entry -> entry.getKey().toInstant(), entry -> entry.getValue().getName());
+        if (!filesToDelete.isEmpty()) {
             logger.info(
                 intl("backup-method-limit-reached"), 
                 "file-count", String.valueOf(files.size()),
                 "upload-method", getName(),
-                "file-limit", String.valueOf(fileLimit));
-            while (files.size() > fileLimit) {
-                ftpClient.deleteFile(files.firstEntry().getValue().getName());
-                files.remove(files.firstKey());
+                "file-limit", String.valueOf(retentionPolicy.getKeepCount()));
+            for (Map.Entry<Date, FTPFile> file : filesToDelete) {
+                ftpClient.deleteFile(file.getValue().getName());
             }
         }
     }
 
     /**
-     * Returns a list of ZIP files, and their modification dates inside the current working directory.
-     * @return a map of ZIP files, and their modification dates
+     * Returns a list of backup archives, and their modification dates inside the current working directory.
+     * @return a map of backup archives, and their modification dates
      * @throws Exception
      */
     @NotNull
     private TreeMap<Date, FTPFile> getZipFiles() throws Exception {
         TreeMap<Date, FTPFile> files = new TreeMap<>();
         for (FTPFile file : ftpClient.mlistDir()) {
-            if (file.getName().endsWith(".zip")) {
+            if (ArchiveFormat.isArchive(file.getName())) {
                 files.put(file.getTimestamp().getTime(), file);
             }
         }
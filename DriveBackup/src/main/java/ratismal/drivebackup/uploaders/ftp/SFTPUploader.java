@@ -3,10 +3,13 @@ package ratismal.drivebackup.uploaders.ftp;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.ChunkStore;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.ConfigParser.Config;
 import ratismal.drivebackup.config.configSections.BackupMethods.FTPBackupMethod;
 import ratismal.drivebackup.plugin.DriveBackup;
+import ratismal.drivebackup.util.RetentionPolicy;
 
 import java.io.File;
 import java.io.FileOutputStream;
@@ -169,6 +172,23 @@ public class SFTPUploader {
         }
     }
 
+    /**
+     * Uploads the specified chunk packs of a deduplicating backup to the SFTP server inside the chunks folder of the
+     * folder for the specified file type, without pruning old backups.
+     * @param packs the packs
+     * @param type the type of file (ex. plugins, world)
+     * @throws Exception
+     */
+    public void uploadChunkPacks(List<File> packs, String type) throws Exception {
+        resetWorkingDirectory();
+        createThenEnter(_remoteBaseFolder);
+        createThenEnter(type);
+        createThenEnter(ChunkStore.FOLDER_NAME);
+        for (File pack : packs) {
+            sftpClient.put(pack.getAbsolutePath(), pack.getName());
+        }
+    }
+
     /**
      * Downloads the specified file from the SFTP server into a folder for the specified file type.
      * @param filePath the path of the file
@@ -207,32 +227,33 @@ public class SFTPUploader {
     }
 
     /**
-     * Deletes the oldest files past the number to retain from the SFTP server inside the current working directory.
+     * Deletes the files which aren't retained from the SFTP server inside the current working directory.
      * <p>
-     * The number of files to retain is specified by the user in the {@code config.yml}
+     * The number of files, and hours, days, weeks and months of files to retain is specified by the user in the {@code config.yml}
      * @throws Exception
      */
     private void pruneBackups() throws Exception {
-        int fileLimit = ConfigParser.getConfig().backupStorage.keepCount;
-        if (fileLimit == -1) {
+        RetentionPolicy retentionPolicy = RetentionPolicy.remote();
+        if (retentionPolicy.isUnlimited()) {
             return;
         }
         TreeMap<Date, RemoteResourceInfo> files = getZipFiles();
-        if (files.size() > fileLimit) {
+        List<Map.Entry<Date, RemoteResourceInfo>> filesToDelete = retentionPolicy.getBackupsToDelete(
+            files.entrySet(), entry -> entry.getKey().toInstant(), entry -> entry.getValue().getName());
+        if (!filesToDelete.isEmpty()) {
             logger.info(
                 intl("backup-method-limit-reached"), 
                 "file-count", String.valueOf(files.size()),
                 "upload-method", "(S)FTP",
-                "file-limit", String.valueOf(fileLimit));
-            while (files.size() > fileLimit) {
-                sftpClient.rm(files.firstEntry().getValue().getName());
-                files.remove(files.firstEntry().getKey());
+                "file-limit", String.valueOf(retentionPolicy.getKeepCount()));
+            for (Map.Entry<Date, RemoteResourceInfo> file : filesToDelete) {
+                sftpClient.rm(file.getValue().getName());
             }
         }
     }
 
     /**
-     * Returns a list of ZIP files, and their modification dates inside the current working directory.
+     * Returns a list of backup archives, and their modification dates inside the current working directory.
      * @return a map of the files and their modification dates
      * @throws Exception
      */
@@ -240,7 +261,7 @@ public class SFTPUploader {
     private TreeMap<Date, RemoteResourceInfo> getZipFiles() throws Exception {
         TreeMap<Date, RemoteResourceInfo> files = new TreeMap<>();
         for (RemoteResourceInfo file : sftpClient.ls()) {
-            if (file.getName().endsWith(".zip")) {
+            if (ArchiveFormat.isArchive(file.getName())) {
                 files.put(new Date(file.getAttributes().getMtime()), file);
             }
         }
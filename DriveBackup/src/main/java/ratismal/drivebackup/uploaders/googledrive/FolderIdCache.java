@@ -0,0 +1,103 @@
+package ratismal.drivebackup.uploaders.googledrive;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
+import ratismal.drivebackup.plugin.DriveBackup;
+import ratismal.drivebackup.util.MessageUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persists the IDs of the folders backups are uploaded to in Google Drive, so that the folders don't have to be looked
+ * up folder by folder before every upload.
+ * <p>
+ * Folders are stored by their path, starting with the ID of the drive they're in. Cached IDs aren't checked before
+ * they're used; if a folder turns out to have been deleted, the folders in its drive are invalidated and looked up again.
+ */
+final class FolderIdCache {
+    private static final String FILE_NAME = "googledrive-folders.json";
+
+    /**
+     * The cached folder IDs by path, or {@code null} if they haven't been loaded yet
+     */
+    private static Map<String, String> folderIds;
+
+    private FolderIdCache() {
+    }
+
+    /**
+     * Gets the cached ID of the folder with the specified path.
+     * @param path the path of the folder, starting with the ID of its drive
+     * @return the ID, or {@code null} if it isn't cached
+     */
+    @Nullable
+    static synchronized String get(String path) {
+        return load().get(path);
+    }
+
+    /**
+     * Caches the ID of the folder with the specified path.
+     * @param path the path of the folder, starting with the ID of its drive
+     * @param folderId the ID of the folder
+     */
+    static synchronized void put(String path, String folderId) {
+        if (!folderId.equals(load().put(path, folderId))) {
+            save();
+        }
+    }
+
+    /**
+     * Removes the cached IDs of the folders in the specified drive, as one of them no longer exists.
+     * @param driveId the ID of the drive
+     */
+    static synchronized void invalidate(String driveId) {
+        String prefix = driveId + "/";
+        if (load().keySet().removeIf(path -> path.startsWith(prefix))) {
+            save();
+        }
+    }
+
+    @NotNull
+    private static Map<String, String> load() {
+        if (folderIds != null) {
+            return folderIds;
+        }
+        folderIds = new HashMap<>();
+        File file = getFile();
+        if (file.exists()) {
+            try {
+                JSONObject json = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+                for (String path : json.keySet()) {
+                    folderIds.put(path, json.getString(path));
+                }
+            } catch (Exception e) {
+                MessageUtil.sendConsoleException(e);
+            }
+        }
+        return folderIds;
+    }
+
+    private static void save() {
+        File file = getFile();
+        try {
+            Path temporaryFile = new File(file.getPath() + ".tmp").toPath();
+            Files.write(temporaryFile, new JSONObject(folderIds).toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporaryFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            MessageUtil.sendConsoleException(e);
+        }
+    }
+
+    @NotNull
+    private static File getFile() {
+        return new File(DriveBackup.getInstance().getDataFolder(), FILE_NAME);
+    }
+}
@@ -1,9 +1,11 @@
 package ratismal.drivebackup.uploaders.googledrive;
 
-import com.google.api.client.auth.oauth2.BearerToken;
-import com.google.api.client.auth.oauth2.Credential;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.FileContent;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
@@ -11,12 +13,10 @@ import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.Strings;
 import com.google.api.services.drive.Drive;
-import com.google.api.services.drive.model.ChildList;
-import com.google.api.services.drive.model.ChildReference;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 import com.google.api.services.drive.model.ParentReference;
-import okhttp3.FormBody;
+import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
@@ -25,21 +25,27 @@ import org.bukkit.entity.Player;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.ChunkStore;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.plugin.DriveBackup;
+import ratismal.drivebackup.uploaders.AccessTokenManager;
 import ratismal.drivebackup.uploaders.Authenticator;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
-import ratismal.drivebackup.uploaders.Obfusticate;
+import ratismal.drivebackup.uploaders.FileRangeRequestBody;
 import ratismal.drivebackup.uploaders.Uploader;
 import ratismal.drivebackup.util.MessageUtil;
 import ratismal.drivebackup.util.NetUtil;
+import ratismal.drivebackup.util.RetentionPolicy;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 
@@ -52,7 +58,23 @@ import static ratismal.drivebackup.config.Localization.intl;
 public class GoogleDriveUploader extends Uploader {
     
     public static final String APPLICATION_VND_GOOGLE_APPS_FOLDER = "application/vnd.google-apps.folder";
-    private String refreshToken;
+    private static final MediaType jsonMediaType = MediaType.parse("application/json; charset=utf-8");
+    private static final String UPLOAD_ENDPOINT = "https://www.googleapis.com/upload/drive/v2/files?uploadType=resumable&supportsAllDrives=true";
+    private static final long MEBIBYTE = 1024L * 1024;
+    private static final int MAX_ATTEMPTS = 6;
+    private static final long BACKOFF_MILLIS = 1000;
+    private static final int BACKOFF_FACTOR = 2;
+
+    /**
+     * The most requests Google Drive accepts in a single batch request
+     */
+    private static final int DELETE_BATCH_SIZE = 100;
+
+    /**
+     * Returned instead of an offset when an upload session received the whole file
+     */
+    private static final long UPLOAD_COMPLETE = -1;
+
 
     /**
      * A cached instance of shared drives
@@ -85,8 +107,10 @@ public class GoogleDriveUploader extends Uploader {
         this.logger = logger;
         setAuthProvider(AuthenticationProvider.GOOGLE_DRIVE);
         try {
-            refreshToken = Authenticator.getRefreshToken(AuthenticationProvider.GOOGLE_DRIVE);
-            retrieveNewAccessToken();
+            getAccessToken();
+            service = new Drive.Builder(httpTransport, JSON_FACTORY, getRequestInitializer())
+                .setApplicationName("DriveBackupV2")
+                .build();
             String sharedDriveId = ConfigParser.getConfig().backupMethods.googleDrive.sharedDriveId;
             if (!Strings.isNullOrEmpty(sharedDriveId)) {
                 drives = service.drives().list().execute().getItems();
@@ -101,33 +125,13 @@ public class GoogleDriveUploader extends Uploader {
     }
 
     /**
-     * Gets a new Google Drive access token for the authenticated user.
+     * Gets the Google Drive access token for the authenticated user, shared by all Google Drive uploaders
+     * @return the access token
+     * @throws IOException if the token had to be refreshed, and refreshing it failed
      */
-    private void retrieveNewAccessToken() throws Exception {
-        RequestBody requestBody = new FormBody.Builder()
-            .add("client_id", Obfusticate.decrypt(AuthenticationProvider.GOOGLE_DRIVE.getClientId()))
-            .add("client_secret", Obfusticate.decrypt(AuthenticationProvider.GOOGLE_DRIVE.getClientSecret()))
-            .add("refresh_token", refreshToken)
-            .add("grant_type", "refresh_token")
-            .build();
-        Request request = new Request.Builder()
-            .url("https://oauth2.googleapis.com/token")
-            .post(requestBody)
-            .build();
-        Response response = DriveBackup.httpClient.newCall(request).execute();
-        JSONObject parsedResponse = new JSONObject(response.body().string());
-        response.close();
-        if (!response.isSuccessful()) {
-            return;
-        }
-        service = new Drive.Builder(
-            httpTransport, 
-            JSON_FACTORY, 
-            setTimeout(new Credential(
-                BearerToken.authorizationHeaderAccessMethod())
-                .setAccessToken(parsedResponse.getString("access_token"))))
-            .setApplicationName("DriveBackupV2")
-            .build();
+    @NotNull
+    private static String getAccessToken() throws IOException {
+        return AccessTokenManager.getAccessToken(AuthenticationProvider.GOOGLE_DRIVE);
     }
 
     @Override
@@ -136,19 +140,19 @@ public class GoogleDriveUploader extends Uploader {
     }
 
     /**
-     * Sets the connect/read timeouts of the Google Drive Client by implementing {@code HttpRequestInitializer}
-     * @param requestInitializer the default {@code HttpRequestInitializer} provided by the Google Drive Client
-     * @return the modified {@code HttpRequestInitializer} with the connect/read timeouts set 
+     * Gets the {@code HttpRequestInitializer} of the Google Drive Client, which authorizes each request with the current
+     * access token and sets the connect/read timeouts
+     * @return the {@code HttpRequestInitializer}
      */
     @NotNull
-    @Contract (value = "_ -> new", pure = true)
-    private static HttpRequestInitializer setTimeout(final HttpRequestInitializer requestInitializer) {
+    @Contract (value = "-> new", pure = true)
+    private static HttpRequestInitializer getRequestInitializer() {
         return httpRequest -> {
-            requestInitializer.initialize(httpRequest);
+            httpRequest.getHeaders().setAuthorization("Bearer " + getAccessToken());
             // 1 minute connect timeout
             httpRequest.setConnectTimeout(1 * 60000);
-            // 4 hours read timeout
-            httpRequest.setReadTimeout(4 * 60 * 60000);
+            // 3 minutes read timeout, backups are uploaded in chunks
+            httpRequest.setReadTimeout(3 * 60000);
         };
     }
 
@@ -188,13 +192,43 @@ public class GoogleDriveUploader extends Uploader {
         return typeFolders;
     }
     
+    /**
+     * Gets the folder for the specified file type, creating the folders it's in if they don't exist.
+     * <p>
+     * The IDs of the folders are cached, and only looked up again if a cached folder no longer exists.
+     * @param type the type of file (ex. plugins, world)
+     * @param sharedDriveId the ID of the shared drive to use, or an empty string to use the user's drive
+     * @return the folder
+     * @throws Exception if looking up or creating a folder failed
+     */
     private File getRemoteDir(String type, String sharedDriveId) throws Exception {
+        try {
+            return getRemoteDir(type, sharedDriveId, true);
+        } catch (GoogleJsonResponseException e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+            // A cached folder was deleted
+            FolderIdCache.invalidate(getDriveId(sharedDriveId));
+            return getRemoteDir(type, sharedDriveId, false);
+        }
+    }
+
+    private File getRemoteDir(String type, String sharedDriveId, boolean useCache) throws Exception {
         List<String> typeFolders = getRemoteDirList(type);
         File folder = null;
+        StringBuilder path = new StringBuilder(getDriveId(sharedDriveId));
         for (String typeFolder : typeFolders) {
             if (".".equals(typeFolder) || "..".equals(typeFolder)) {
                 continue;
             }
+            path.append('/').append(typeFolder);
+            String cachedId = useCache ? FolderIdCache.get(path.toString()) : null;
+            if (cachedId != null) {
+                folder = new File();
+                folder.setId(cachedId);
+                continue;
+            }
             if (folder == null && !sharedDriveId.isEmpty()) {
                 folder = createFolder(typeFolder, sharedDriveId);
             } else if (folder == null) {
@@ -204,10 +238,21 @@ public class GoogleDriveUploader extends Uploader {
             } else {
                 folder = createFolder(typeFolder, folder, false);
             }
+            FolderIdCache.put(path.toString(), folder.getId());
         }
         return folder;
     }
 
+    /**
+     * Gets the ID of the drive backups are uploaded to, which the paths of cached folders start with.
+     * @param sharedDriveId the ID of the shared drive to use, or an empty string to use the user's drive
+     * @return the ID
+     */
+    @NotNull
+    private static String getDriveId(@NotNull String sharedDriveId) {
+        return sharedDriveId.isEmpty() ? "root" : sharedDriveId;
+    }
+
     /**
      * Uploads the specified file to the authenticated user's Google Drive inside a folder for the specified file type.
      * @param file the file
@@ -216,31 +261,235 @@ public class GoogleDriveUploader extends Uploader {
     public void uploadFile(java.io.File file, String type) {
         try {
             String sharedDriveId = ConfigParser.getConfig().backupMethods.googleDrive.sharedDriveId;
-            retrieveNewAccessToken();
-            File folder = getRemoteDir(type, sharedDriveId);
-            File fileMetadata = new File();
-            fileMetadata.setTitle(file.getName());
-            fileMetadata.setDescription("Uploaded by the DriveBackupV2 Minecraft plugin");
-            fileMetadata.setMimeType("application/zip");
-            ParentReference fileParent = new ParentReference();
-            fileParent.setId(folder.getId());
-            fileMetadata.setParents(Collections.singletonList(fileParent));
-            FileContent fileContent = new FileContent("application/zip", file);
-            service.files().insert(fileMetadata, fileContent).setSupportsAllDrives(true).execute();
+            File folder = uploadToFolder(file, type, sharedDriveId);
+            resumeInterruptedUploads(file, folder.getId());
+            schedulePrune(
+                type,
+                intl(!Strings.isNullOrEmpty(sharedDriveId) ? "backup-method-shared-drive-prune-failed" : "backup-method-prune-failed"),
+                folderType -> pruneBackups(folder));
+        } catch (Exception exception) {
+            NetUtil.catchException(exception, "www.googleapis.com", logger);
+            MessageUtil.sendConsoleException(exception);
+            setErrorOccurred(true);
+        }
+    }
+
+    @Override
+    public void uploadChunkPacks(List<java.io.File> packs, String type) throws Exception {
+        String sharedDriveId = ConfigParser.getConfig().backupMethods.googleDrive.sharedDriveId;
+        for (java.io.File pack : packs) {
+            uploadToFolder(pack, type + "/" + ChunkStore.FOLDER_NAME, sharedDriveId);
+        }
+    }
+
+    /**
+     * Uploads the specified file to the folder for the specified file type, looking the folder up again if the cached
+     * one was deleted.
+     * @param file the file
+     * @param type the type of file (ex. plugins, world)
+     * @param sharedDriveId the ID of the shared drive to use, or an empty string to use the user's drive
+     * @return the folder the file was uploaded to
+     * @throws Exception if looking up the folder or uploading failed
+     */
+    private File uploadToFolder(java.io.File file, String type, String sharedDriveId) throws Exception {
+        File folder = getRemoteDir(type, sharedDriveId);
+        try {
+            uploadResumable(file, folder.getId(), ArchiveFormat.getMimeType(file.getName()));
+        } catch (FolderNotFoundException e) {
+            // The cached folder was deleted
+            FolderIdCache.invalidate(getDriveId(sharedDriveId));
+            folder = getRemoteDir(type, sharedDriveId);
+            uploadResumable(file, folder.getId(), ArchiveFormat.getMimeType(file.getName()));
+        }
+        return folder;
+    }
+
+    /**
+     * Resumes the uploads of the other backups in the folder of the specified file to the same folder, which were
+     * interrupted, for example by the server stopping.
+     * <p>
+     * Backups are named after when they were made, so an interrupted upload is only resumed here, along with the next
+     * backup. If resuming an upload fails, its session is kept to try again with the next backup.
+     * @param file the file which was just uploaded
+     * @param folderId the ID of the folder it was uploaded to
+     */
+    private void resumeInterruptedUploads(java.io.File file, String folderId) {
+        for (java.io.File interruptedFile : UploadSessionStore.getInterrupted(file.getAbsoluteFile().getParentFile(), folderId)) {
+            if (interruptedFile.equals(file.getAbsoluteFile())) {
+                continue;
+            }
             try {
-                pruneBackups(folder);
+                uploadResumable(interruptedFile, folderId, ArchiveFormat.getMimeType(interruptedFile.getName()));
+            } catch (InterruptedIOException | InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
             } catch (Exception e) {
-                if (!Strings.isNullOrEmpty(sharedDriveId)) {
-                    logger.log(intl("backup-method-shared-drive-prune-failed"));
+                MessageUtil.sendConsoleException(e);
+            }
+        }
+    }
+
+    /**
+     * Uploads the specified file to the specified folder in chunks, using a resumable upload session.
+     * <p>
+     * If uploading a chunk fails, the upload continues from the last byte Google Drive received. The session is
+     * persisted, so if the upload is interrupted, uploading the same file again resumes it, which
+     * {@link #resumeInterruptedUploads} does with the next backup.
+     * @param file the file
+     * @param folderId the ID of the folder
+     * @param mimeType the MIME type of the file
+     * @throws Exception if the upload failed too many times in a row
+     */
+    private void uploadResumable(java.io.File file, String folderId, String mimeType) throws Exception {
+        long length = file.length();
+        long chunkSize = ConfigParser.getConfig().backupMethods.googleDrive.chunkSize * MEBIBYTE;
+        String sessionUri = UploadSessionStore.get(file, folderId);
+        // The offset is unknown until Google Drive is asked for it, as the session may have been resumed
+        long offset = sessionUri != null ? -1 : 0;
+        int attempt = 1;
+        long backoffMillis = BACKOFF_MILLIS;
+        while (offset != UPLOAD_COMPLETE) {
+            try {
+                if (sessionUri == null) {
+                    sessionUri = startUploadSession(file.getName(), folderId, mimeType, length);
+                    UploadSessionStore.put(file, folderId, sessionUri);
+                    offset = 0;
+                } else if (offset == -1) {
+                    offset = putToSession(sessionUri, RequestBody.create(new byte[0]), "bytes */" + length);
                 } else {
-                    logger.log(intl("backup-method-prune-failed"));
+                    long chunkLength = Math.min(chunkSize, length - offset);
+                    String contentRange = chunkLength == 0
+                        ? "bytes */" + length
+                        : "bytes " + offset + "-" + (offset + chunkLength - 1) + "/" + length;
+                    long newOffset = putToSession(
+                        sessionUri,
+                        new FileRangeRequestBody(file, offset, chunkLength, MediaType.parse(mimeType)),
+                        contentRange);
+                    if (newOffset == UPLOAD_COMPLETE || newOffset > offset) {
+                        attempt = 1;
+                        backoffMillis = BACKOFF_MILLIS;
+                    }
+                    offset = newOffset;
                 }
+                reportProgress(offset == UPLOAD_COMPLETE ? length : offset, length);
+            } catch (ExpiredSessionException e) {
+                UploadSessionStore.remove(file);
+                sessionUri = null;
+                // Restarting the upload counts as an attempt, so a session which keeps expiring doesn't restart forever
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                attempt++;
+            } catch (InterruptedIOException | FolderNotFoundException e) {
                 throw e;
+            } catch (IOException e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                attempt++;
+                TimeUnit.MILLISECONDS.sleep(backoffMillis);
+                backoffMillis *= BACKOFF_FACTOR;
+                // What Google Drive received of a failed chunk is unknown
+                if (sessionUri != null) {
+                    offset = -1;
+                }
             }
-        } catch (Exception exception) {
-            NetUtil.catchException(exception, "www.googleapis.com", logger);
-            MessageUtil.sendConsoleException(exception);
-            setErrorOccurred(true);
+        }
+        UploadSessionStore.remove(file);
+    }
+
+    /**
+     * Starts a resumable upload session for a file with the specified metadata.
+     * @param title the title of the file
+     * @param folderId the ID of the folder to upload the file to
+     * @param mimeType the MIME type of the file
+     * @param length the length of the file in bytes
+     * @return the URI of the session
+     * @throws FolderNotFoundException if the folder doesn't exist
+     * @throws IOException if the request failed
+     */
+    @NotNull
+    private String startUploadSession(String title, String folderId, String mimeType, long length) throws IOException {
+        JSONObject metadata = new JSONObject()
+            .put("title", title)
+            .put("description", "Uploaded by the DriveBackupV2 Minecraft plugin")
+            .put("mimeType", mimeType)
+            .put("parents", new JSONArray().put(new JSONObject().put("id", folderId)));
+        String accessToken = getAccessToken();
+        Request request = new Request.Builder()
+            .addHeader("Authorization", "Bearer " + accessToken)
+            .addHeader("X-Upload-Content-Type", mimeType)
+            .addHeader("X-Upload-Content-Length", String.valueOf(length))
+            .url(UPLOAD_ENDPOINT)
+            .post(RequestBody.create(metadata.toString(), jsonMediaType))
+            .build();
+        try (Response response = DriveBackup.httpClient.newCall(request).execute()) {
+            String location = response.header("Location");
+            if (response.code() == 401) {
+                AccessTokenManager.refreshAccessToken(AuthenticationProvider.GOOGLE_DRIVE, accessToken);
+            }
+            if (response.code() == 404) {
+                throw new FolderNotFoundException(folderId);
+            }
+            if (!response.isSuccessful() || location == null) {
+                throw new IOException("Failed to start upload session, status code " + response.code());
+            }
+            return location;
+        }
+    }
+
+    /**
+     * Sends a chunk of a file, or a request for the upload status if the chunk is empty, to an upload session.
+     * @param sessionUri the URI of the session
+     * @param body the chunk
+     * @param contentRange the {@code Content-Range} header describing the chunk
+     * @return the offset of the first byte Google Drive hasn't received yet, or {@link #UPLOAD_COMPLETE}
+     * @throws ExpiredSessionException if the session expired, and the upload has to be restarted
+     * @throws IOException if the request failed, and should be retried
+     */
+    private long putToSession(String sessionUri, RequestBody body, String contentRange) throws IOException {
+        String accessToken = getAccessToken();
+        Request request = new Request.Builder()
+            .addHeader("Authorization", "Bearer " + accessToken)
+            .addHeader("Content-Range", contentRange)
+            .url(sessionUri)
+            .put(body)
+            .build();
+        try (Response response = DriveBackup.httpClient.newCall(request).execute()) {
+            int code = response.code();
+            if (code == 200 || code == 201) {
+                return UPLOAD_COMPLETE;
+            }
+            if (code == 308) {
+                // Range is in the format "bytes=0-<last received byte>", and missing if nothing was received
+                String range = response.header("Range");
+                return range != null ? Long.parseLong(range.substring(range.indexOf('-') + 1)) + 1 : 0;
+            }
+            if (code == 404 || code == 410) {
+                throw new ExpiredSessionException();
+            }
+            if (code == 401) {
+                AccessTokenManager.refreshAccessToken(AuthenticationProvider.GOOGLE_DRIVE, accessToken);
+            }
+            throw new IOException("Failed to upload to upload session, status code " + code);
+        }
+    }
+
+    /**
+     * Thrown when an upload session no longer exists
+     */
+    private static final class ExpiredSessionException extends IOException {
+        private ExpiredSessionException() {
+            super("Upload session expired");
+        }
+    }
+
+    /**
+     * Thrown when the folder a file is uploaded to no longer exists
+     */
+    private static final class FolderNotFoundException extends IOException {
+        private FolderNotFoundException(String folderId) {
+            super("Folder " + folderId + " not found");
         }
     }
 
@@ -388,7 +637,7 @@ public class GoogleDriveUploader extends Uploader {
                 .setSupportsAllDrives(true)
                 .setIncludeItemsFromAllDrives(true)
                 .setCorpora("drive")
-                .setQ("mimeType='application/vnd.google-apps.folder' and trashed=false and '" + driveId + "' in parents");
+                .setQ(getFolderQuery(name, driveId));
             FileList files = request.execute();
             for (File folderfiles : files.getItems()) {
                 if (folderfiles.getTitle().equals(name)) {
@@ -412,7 +661,7 @@ public class GoogleDriveUploader extends Uploader {
     private File getFolder(String name, File parent, boolean sharedDrive) {
         try {
             Drive.Files.List request = service.files().list()
-                .setQ("mimeType='application/vnd.google-apps.folder' and trashed=false and '" + parent.getId() + "' in parents");
+                .setQ(getFolderQuery(name, parent.getId()));
             if (sharedDrive) {
                 request.setSupportsAllDrives(true)
                 .setIncludeItemsFromAllDrives(true)
@@ -440,8 +689,8 @@ public class GoogleDriveUploader extends Uploader {
     private File getFolder(String name) {
         try {
             Drive.Files.List request = service.files().list()
-                .setQ("mimeType='application/vnd.google-apps.folder' and trashed=false and 'root' in parents");
-            FileList files = request.execute();;
+                .setQ(getFolderQuery(name, "root"));
+            FileList files = request.execute();
             for (File folderfiles : files.getItems()) {
                 if (folderfiles.getTitle().equals(name)) {
                     return folderfiles;
@@ -455,64 +704,115 @@ public class GoogleDriveUploader extends Uploader {
     }
 
     /**
-     * Returns a list of files in the specified folder in the authenticated user's Google Drive, ordered by creation date.
+     * Gets a query matching the folders with the specified name in the specified parent folder.
+     * @param name the name of the folder
+     * @param parentId the ID of the parent folder
+     * @return the query
+     */
+    @NotNull
+    private static String getFolderQuery(@NotNull String name, String parentId) {
+        String escapedName = name.replace("\\", "\\\\").replace("'", "\\'");
+        return "mimeType='" + APPLICATION_VND_GOOGLE_APPS_FOLDER + "' and trashed=false and title='" + escapedName
+            + "' and '" + parentId + "' in parents";
+    }
+
+    /**
+     * Returns a list of the backups in the specified folder in the authenticated user's Google Drive, with their ID and creation date.
      * @param folder the folder containing the files
      * @return a list of files
      * @throws Exception
      */
     @NotNull
-    private List<ChildReference> getFiles(@NotNull File folder) throws Exception {
-        //Create a List to store results
-        List<ChildReference> result = new ArrayList<>();
-        //Set up a request to query all files from all pages.
-        //We are also making sure the files are sorted by created Date.
-        //Oldest at the beginning of List.
-        //Drive.Files.List request = service.files().list().setOrderBy("createdDate");
-        //folder.getId();
-        Drive.Children.List request = service.children().list(folder.getId()).setOrderBy("createdDate");
-        //While there is a page available, request files and add them to the Result List.
+    private List<File> getFiles(@NotNull File folder) throws Exception {
+        List<File> result = new ArrayList<>();
+        // Only the fields needed to prune backups are requested, so listing folders with many backups stays quick
+        Drive.Files.List request = service.files().list()
+            .setSupportsAllDrives(true)
+            .setIncludeItemsFromAllDrives(true)
+            .setCorpora("allDrives")
+            .setQ("'" + folder.getId() + "' in parents and trashed=false and (" + getBackupFilesQuery() + ")")
+            .setFields("nextPageToken, items(id, title, createdDate)");
         do {
-            try {
-                ChildList files = request.execute();
-                result.addAll(files.getItems());
-                request.setPageToken(files.getNextPageToken());
-            } catch (IOException e) {
-                MessageUtil.sendConsoleException(e);
-                request.setPageToken(null);
-            }
+            FileList files = request.execute();
+            result.addAll(files.getItems());
+            request.setPageToken(files.getNextPageToken());
         } while (request.getPageToken() != null &&
                 request.getPageToken().length() > 0);
         return result;
     }
 
     /**
-     * Deletes the oldest files in the specified folder past the number to retain from the authenticated user's Google Drive.
+     * Gets a query matching backups by their MIME type, so other files in backup folders, such as chunk packs, aren't pruned.
+     * @return the query
+     */
+    @NotNull
+    private static String getBackupFilesQuery() {
+        List<String> conditions = new ArrayList<>();
+        for (ArchiveFormat format : ArchiveFormat.values()) {
+            conditions.add("mimeType = '" + format.getMimeType() + "'");
+        }
+        return String.join(" or ", conditions);
+    }
+
+    /**
+     * Deletes the files in the specified folder which aren't retained from the authenticated user's Google Drive.
      * <p>
-     * The number of files to retain is specified by the user in the {@code config.yml}
+     * The number of files, and hours, days, weeks and months of files to retain is specified by the user in the {@code config.yml}
      * @param folder the folder containing the files
      * @throws Exception
      */
     private void pruneBackups(File folder) throws Exception {
-        int fileLimit = ConfigParser.getConfig().backupStorage.keepCount;
-        if (fileLimit == -1) {
+        RetentionPolicy retentionPolicy = RetentionPolicy.remote();
+        if (retentionPolicy.isUnlimited()) {
             return;
         }
-        List<ChildReference> files = getFiles(folder);
-        if (files.size() > fileLimit) {
+        List<File> files = getFiles(folder);
+        List<File> filesToDelete = retentionPolicy.getBackupsToDelete(
+            files, file -> Instant.ofEpochMilli(file.getCreatedDate().getValue()), File::getTitle);
+        if (!filesToDelete.isEmpty()) {
             logger.info(
                 intl("backup-method-limit-reached"), 
                 "file-count", String.valueOf(files.size()),
                 "upload-method", getName(),
-                "file-limit", String.valueOf(fileLimit));
-            for (Iterator<ChildReference> iterator = files.iterator(); iterator.hasNext(); ) {
-                if (files.size() == fileLimit) {
-                    break;
+                "file-limit", String.valueOf(retentionPolicy.getKeepCount()));
+            List<String> fileIds = new ArrayList<>();
+            for (File file : filesToDelete) {
+                fileIds.add(file.getId());
+            }
+            deleteFiles(fileIds);
+        }
+    }
+
+    /**
+     * Deletes the specified files from the authenticated user's Google Drive using batch requests.
+     * <p>
+     * Files which were already deleted are ignored.
+     * @param fileIds the IDs of the files
+     * @throws IOException if a request failed, or a file couldn't be deleted
+     */
+    private void deleteFiles(@NotNull List<String> fileIds) throws IOException {
+        List<String> failures = new ArrayList<>();
+        JsonBatchCallback<Void> callback = new JsonBatchCallback<Void>() {
+            @Override
+            public void onSuccess(Void result, HttpHeaders responseHeaders) {
+            }
+
+            @Override
+            public void onFailure(@NotNull GoogleJsonError error, HttpHeaders responseHeaders) {
+                if (error.getCode() != 404) {
+                    failures.add(error.getMessage());
                 }
-                ChildReference file = iterator.next();
-                Drive.Files.Delete removeItem = service.files().delete(file.getId()).setSupportsAllDrives(true);
-                removeItem.execute();
-                iterator.remove();
             }
+        };
+        for (int start = 0; start < fileIds.size(); start += DELETE_BATCH_SIZE) {
+            BatchRequest batch = service.batch();
+            for (String fileId : fileIds.subList(start, Math.min(start + DELETE_BATCH_SIZE, fileIds.size()))) {
+                service.files().delete(fileId).setSupportsAllDrives(true).queue(batch, callback);
+            }
+            batch.execute();
+        }
+        if (!failures.isEmpty()) {
+            throw new IOException("Failed to delete " + failures.size() + " files: " + String.join(", ", failures));
         }
     }
 }
@@ -0,0 +1,146 @@
+package ratismal.drivebackup.uploaders.googledrive;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONObject;
+import ratismal.drivebackup.plugin.DriveBackup;
+import ratismal.drivebackup.util.MessageUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persists the URIs of resumable upload sessions to Google Drive, so that an interrupted upload can be resumed from the
+ * last byte Google Drive received, even after the server restarts.
+ * <p>
+ * Sessions are stored by the path of the local file, along with its size and modification time, so that a session is
+ * only resumed if the file didn't change since the session was started.
+ */
+final class UploadSessionStore {
+    private static final String FILE_NAME = "googledrive-uploads.json";
+
+    /**
+     * How long a session is resumed for, as Google Drive expires sessions after a week
+     */
+    private static final long SESSION_LIFETIME_MILLIS = TimeUnit.DAYS.toMillis(6);
+
+    private UploadSessionStore() {
+    }
+
+    /**
+     * Gets the URI of the session uploading the specified file to the specified folder, if it can be resumed.
+     * @param file the file
+     * @param folderId the ID of the folder the file is uploaded to
+     * @return the URI, or {@code null} if there is no such session
+     */
+    @Nullable
+    static synchronized String get(@NotNull File file, String folderId) {
+        JSONObject session = load().optJSONObject(file.getAbsolutePath());
+        if (session == null
+            || session.getLong("size") != file.length()
+            || session.getLong("modified") != file.lastModified()
+            || !session.getString("folder").equals(folderId)
+            || session.getLong("created") + SESSION_LIFETIME_MILLIS < System.currentTimeMillis()) {
+            return null;
+        }
+        return session.getString("uri");
+    }
+
+    /**
+     * Gets the files in the specified local folder whose upload to the specified folder was interrupted, and can be resumed.
+     * @param localFolder the absolute path of the local folder
+     * @param folderId the ID of the folder the files are uploaded to
+     * @return the files
+     */
+    @NotNull
+    static synchronized List<File> getInterrupted(@NotNull File localFolder, String folderId) {
+        List<File> files = new ArrayList<>();
+        for (String path : load().keySet()) {
+            File file = new File(path);
+            if (localFolder.equals(file.getParentFile()) && get(file, folderId) != null) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Stores the URI of the session uploading the specified file to the specified folder.
+     * @param file the file
+     * @param folderId the ID of the folder the file is uploaded to
+     * @param uri the URI of the session
+     */
+    static synchronized void put(@NotNull File file, String folderId, String uri) {
+        JSONObject sessions = load();
+        JSONObject session = new JSONObject();
+        session.put("uri", uri);
+        session.put("folder", folderId);
+        session.put("size", file.length());
+        session.put("modified", file.lastModified());
+        session.put("created", System.currentTimeMillis());
+        sessions.put(file.getAbsolutePath(), session);
+        save(sessions);
+    }
+
+    /**
+     * Removes the session uploading the specified file, as it was completed or can't be resumed.
+     * @param file the file
+     */
+    static synchronized void remove(@NotNull File file) {
+        JSONObject sessions = load();
+        if (sessions.remove(file.getAbsolutePath()) != null) {
+            save(sessions);
+        }
+    }
+
+    /**
+     * Loads the stored sessions, dropping the ones which expired, or whose file was deleted.
+     * @return the sessions, by the path of the file they upload
+     */
+    @NotNull
+    private static JSONObject load() {
+        File file = getFile();
+        if (!file.exists()) {
+            return new JSONObject();
+        }
+        try {
+            JSONObject sessions = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            long now = System.currentTimeMillis();
+            for (Iterator<String> iterator = sessions.keys(); iterator.hasNext(); ) {
+                String path = iterator.next();
+                JSONObject session = sessions.optJSONObject(path);
+                if (session == null || session.optLong("created") + SESSION_LIFETIME_MILLIS < now || !new File(path).exists()) {
+                    iterator.remove();
+                }
+            }
+            return sessions;
+        } catch (Exception e) {
+            MessageUtil.sendConsoleException(e);
+            return new JSONObject();
+        }
+    }
+
+    private static void save(@NotNull JSONObject sessions) {
+        File file = getFile();
+        try {
+            Path temporaryFile = new File(file.getPath() + ".tmp").toPath();
+            Files.write(temporaryFile, sessions.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporaryFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            MessageUtil.sendConsoleException(e);
+        }
+    }
+
+    @NotNull
+    private static File getFile() {
+        return new File(DriveBackup.getInstance().getDataFolder(), FILE_NAME);
+    }
+}
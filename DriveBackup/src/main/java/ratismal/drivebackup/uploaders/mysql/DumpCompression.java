@@ -0,0 +1,126 @@
+package ratismal.drivebackup.uploaders.mysql;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ratismal.drivebackup.config.ConfigParser;
+import ratismal.drivebackup.config.configSections.BackupStorage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The formats MySQL dumps can be compressed in while they are written.
+ * <p>
+ * Compressed dumps are stored in backups as they are, rather than being written to disk uncompressed and compressed again
+ * when they are archived.
+ */
+public enum DumpCompression {
+    NONE("none", ""),
+    GZIP("gzip", ".gz"),
+    ZSTD("zstd", ".zst");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final String configName;
+    private final String extension;
+
+    DumpCompression(String configName, String extension) {
+        this.configName = configName;
+        this.extension = extension;
+    }
+
+    /**
+     * Gets the file extension added to dumps compressed in this format, including the leading dot
+     * @return the extension, or an empty string if dumps aren't compressed
+     */
+    public String getExtension() {
+        return extension;
+    }
+
+    /**
+     * Wraps the specified output stream to compress what is written to it, using the compression level and number of
+     * threads specified by the user in the {@code config.yml}.
+     * @param output where to write the compressed dump to
+     * @return the stream to write the dump to
+     * @throws IOException if setting up the compressor failed
+     */
+    @NotNull
+    public OutputStream compress(@NotNull OutputStream output) throws IOException {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+        switch (this) {
+            case GZIP:
+                int level = backupStorage.zipCompression;
+                return new GZIPOutputStream(output, BUFFER_SIZE) {
+                    {
+                        def.setLevel(level);
+                    }
+                };
+            case ZSTD:
+                ZstdOutputStream zstdOutputStream = new ZstdOutputStream(output, backupStorage.zstdCompression);
+                if (backupStorage.compressionThreads > 1) {
+                    zstdOutputStream.setWorkers(backupStorage.compressionThreads);
+                }
+                return zstdOutputStream;
+            default:
+                return output;
+        }
+    }
+
+    /**
+     * Wraps the specified input stream to decompress a dump compressed in this format.
+     * @param input the compressed dump
+     * @return the stream to read the dump from
+     * @throws IOException if the dump isn't compressed in this format
+     */
+    @NotNull
+    public InputStream decompress(@NotNull InputStream input) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPInputStream(input, BUFFER_SIZE);
+            case ZSTD:
+                return new ZstdInputStream(input);
+            default:
+                return input;
+        }
+    }
+
+    /**
+     * Gets the format with the specified name, as used in the {@code config.yml}
+     * @param configName the name
+     * @return the format, or {@code null} if there is no format with that name
+     */
+    @Nullable
+    @Contract (value = "null -> null", pure = true)
+    public static DumpCompression fromConfigName(@Nullable String configName) {
+        if (configName == null) {
+            return null;
+        }
+        for (DumpCompression compression : values()) {
+            if (compression.configName.equalsIgnoreCase(configName)) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the format the dump with the specified file name is compressed in, based on its extension.
+     * @param fileName the file name
+     * @return the format, which is {@link #NONE} if the dump isn't compressed
+     */
+    @NotNull
+    public static DumpCompression fromFileName(@NotNull String fileName) {
+        for (DumpCompression compression : values()) {
+            if (compression != NONE && fileName.endsWith(compression.extension)) {
+                return compression;
+            }
+        }
+        return NONE;
+    }
+}
@@ -0,0 +1,278 @@
+package ratismal.drivebackup.uploaders.mysql;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.regex.Pattern;
+
+/**
+ * Restores MySQL databases dumped by the {@code MySQLUploader} into a database, running the insert statements of each
+ * table over several connections at once.
+ * <p>
+ * Other statements, such as creating tables, are run in order once the inserts before them are done, and settings such as
+ * disabling foreign key checks are applied to every connection. A dump is either a {@code .sql} file, or a folder of
+ * tables dumped in parallel, which are restored in the order listed in its manifest. Dumps compressed while they were
+ * written are decompressed based on their extension. Run it with the MySQL Connector/J
+ * driver on the classpath and the password in the {@code MYSQL_PWD} environment variable with:
+ * <pre>java -cp DriveBackupV2.jar:mysql-connector-j.jar ratismal.drivebackup.uploaders.mysql.MySQLRestorer &lt;host&gt; &lt;port&gt; &lt;database&gt; &lt;username&gt; &lt;threads&gt; &lt;dump&gt;...</pre>
+ */
+public class MySQLRestorer implements AutoCloseable {
+    private static final Pattern INSERT_PATTERN = Pattern.compile("^INSERT\\s", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SESSION_SETTING_PATTERN = Pattern.compile("^(/\\*!\\d*\\s*)?SET\\s", Pattern.CASE_INSENSITIVE);
+
+    private final List<Connection> connections = new ArrayList<>();
+    private final BlockingQueue<Connection> idleConnections = new LinkedBlockingQueue<>();
+    private final ExecutorService executor;
+    /**
+     * Limits the number of insert statements read ahead of the ones running, so the dump isn't read into memory
+     */
+    private final Semaphore pendingInserts;
+    private final List<Future<?>> inserts = new ArrayList<>();
+
+    /**
+     * Creates an instance of the {@code MySQLRestorer} object, connecting to the specified database
+     * @param connectionUrl the JDBC URL of the database
+     * @param username the username
+     * @param password the password (leave blank if none)
+     * @param threads the number of connections to run insert statements over at once
+     * @throws SQLException if connecting failed
+     */
+    public MySQLRestorer(String connectionUrl, String username, String password, int threads) throws SQLException {
+        executor = Executors.newFixedThreadPool(threads);
+        pendingInserts = new Semaphore(threads * 2);
+        try {
+            for (int i = 0; i < threads; i++) {
+                Connection connection = DriverManager.getConnection(connectionUrl, username, password);
+                connections.add(connection);
+                idleConnections.add(connection);
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 6) {
+            System.out.println("Usage: java -cp DriveBackupV2.jar:mysql-connector-j.jar " + MySQLRestorer.class.getName() + " <host> <port> <database> <username> <threads> <dump> [dumps...]");
+            System.out.println("The password is read from the MYSQL_PWD environment variable.");
+            System.exit(1);
+            return;
+        }
+        String password = System.getenv("MYSQL_PWD");
+        String connectionUrl = "jdbc:mysql://" + args[0] + ":" + args[1] + "/" + args[2]
+                + "?useUnicode=true"
+                + "&characterEncoding=UTF-8"
+                + "&serverTimezone=UTC";
+        try (MySQLRestorer restorer = new MySQLRestorer(connectionUrl, args[3], password == null ? "" : password, Integer.parseInt(args[4]))) {
+            for (int i = 5; i < args.length; i++) {
+                System.out.println("Restoring " + args[i]);
+                restorer.restore(new File(args[i]));
+            }
+        } catch (IOException | SQLException | RuntimeException e) {
+            System.out.println("Failed to restore: " + e.getMessage());
+            System.exit(1);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.exit(1);
+            return;
+        }
+        System.out.println("Restore complete");
+    }
+
+    /**
+     * Restores the specified dump into the database.
+     * @param dump the dump file, or the folder of a database dumped in parallel
+     * @throws IOException if reading the dump failed
+     * @throws SQLException if a statement failed
+     * @throws InterruptedException if interrupted while waiting for statements to finish
+     */
+    public void restore(@NotNull File dump) throws IOException, SQLException, InterruptedException {
+        if (!dump.isDirectory()) {
+            restoreFile(dump);
+            return;
+        }
+        String manifestJson = new String(Files.readAllBytes(new File(dump, MySQLUploader.MANIFEST_FILE).toPath()), StandardCharsets.UTF_8);
+        JSONArray tables = new JSONObject(manifestJson).getJSONArray("tables");
+        for (int i = 0; i < tables.length(); i++) {
+            restoreFile(new File(dump, tables.getJSONObject(i).getString("file")));
+        }
+    }
+
+    private void restoreFile(@NotNull File file) throws IOException, SQLException, InterruptedException {
+        InputStream input = DumpCompression.fromFileName(file.getName()).decompress(new BufferedInputStream(new FileInputStream(file)));
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8))) {
+            StatementReader statements = new StatementReader(reader);
+            String statement;
+            while ((statement = statements.next()) != null) {
+                execute(statement);
+            }
+        }
+        awaitInserts();
+    }
+
+    /**
+     * Runs the specified statement, in the background if it's an insert statement.
+     * @param statement the statement
+     * @throws SQLException if the statement, or an insert statement before it, failed
+     * @throws InterruptedException if interrupted while waiting for insert statements to finish
+     */
+    private void execute(@NotNull String statement) throws SQLException, InterruptedException {
+        if (INSERT_PATTERN.matcher(statement).find()) {
+            pendingInserts.acquire();
+            inserts.add(executor.submit(() -> {
+                Connection connection = idleConnections.take();
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute(statement);
+                } finally {
+                    idleConnections.add(connection);
+                    pendingInserts.release();
+                }
+                return null;
+            }));
+            return;
+        }
+        awaitInserts();
+        if (SESSION_SETTING_PATTERN.matcher(statement).find()) {
+            for (Connection connection : connections) {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute(statement);
+                }
+            }
+        } else {
+            try (Statement stmt = connections.get(0).createStatement()) {
+                stmt.execute(statement);
+            }
+        }
+    }
+
+    /**
+     * Waits for the insert statements running in the background to finish.
+     * @throws SQLException if one of them failed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void awaitInserts() throws SQLException, InterruptedException {
+        try {
+            for (Future<?> insert : inserts) {
+                try {
+                    insert.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof SQLException) {
+                        throw (SQLException) cause;
+                    }
+                    throw new SQLException(cause);
+                }
+            }
+        } finally {
+            inserts.clear();
+        }
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        for (Connection connection : connections) {
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Splits a dump into statements, skipping line comments, while keeping versioned comments, such as the ones setting
+     * the character set, as MySQL runs them.
+     */
+    private static class StatementReader {
+        private final BufferedReader reader;
+        private final StringBuilder statement = new StringBuilder();
+
+        private StatementReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        /**
+         * Reads the next statement.
+         * @return the statement without its terminator, or {@code null} if there are no more statements
+         * @throws IOException if reading failed
+         */
+        @Nullable
+        private String next() throws IOException {
+            statement.setLength(0);
+            char quote = 0;
+            int c;
+            while ((c = reader.read()) != -1) {
+                if (quote != 0) {
+                    statement.append((char) c);
+                    if (c == '\\' && quote != '`') {
+                        int escaped = reader.read();
+                        if (escaped == -1) {
+                            break;
+                        }
+                        statement.append((char) escaped);
+                    } else if (c == quote) {
+                        quote = 0;
+                    }
+                    continue;
+                }
+                if (c == '-' && isAtTokenStart()) {
+                    reader.mark(2);
+                    int next = reader.read();
+                    if (next == '-') {
+                        skipLine();
+                        continue;
+                    }
+                    reader.reset();
+                } else if (c == ';') {
+                    String result = statement.toString().trim();
+                    if (result.isEmpty()) {
+                        continue;
+                    }
+                    return result;
+                } else if (c == '\'' || c == '"' || c == '`') {
+                    quote = (char) c;
+                }
+                statement.append((char) c);
+            }
+            String result = statement.toString().trim();
+            return result.isEmpty() ? null : result;
+        }
+
+        private boolean isAtTokenStart() {
+            return statement.length() == 0 || Character.isWhitespace(statement.charAt(statement.length() - 1));
+        }
+
+        private void skipLine() throws IOException {
+            int c;
+            while ((c = reader.read()) != -1 && c != '\n') {
+                // Skip the comment
+            }
+        }
+    }
+}
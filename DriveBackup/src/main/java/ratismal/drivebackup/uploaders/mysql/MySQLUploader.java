@@ -8,10 +8,19 @@ package ratismal.drivebackup.uploaders.mysql;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
@@ -19,42 +28,72 @@ import java.sql.Statement;
 import java.sql.Types;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.jetbrains.annotations.NotNull;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.config.ConfigParser;
+import ratismal.drivebackup.config.configSections.ExternalBackups.ExternalMySQLSource;
 import ratismal.drivebackup.util.MessageUtil;
+import ratismal.drivebackup.util.NamedThreadFactory;
+
+import static ratismal.drivebackup.config.Localization.intl;
 
 public class MySQLUploader {
+    private UploadLogger logger;
+
     private String host;
     private int port;
     private String username;
     private String password;
     private boolean useSsl;
+    private int dumpThreads;
+    private int insertBatchRows;
+    private long insertBatchSize;
+    private DumpCompression dumpCompression;
 
     private boolean errorOccurred;
-    
-    private Statement stmt;
 
     private static final String SQL_START_PATTERN = "-- start";
     private static final String SQL_END_PATTERN = "-- end";
 
     /**
-     * Creates an instance of the {@code mysqlUploader} object using the specified credentials
-     * @param host the hostname of the MySQL database
-     * @param port the port
-     * @param username the username
-     * @param password the password (leave blank if none)
-     * @param useSsl whether to connect to the server using SSL/TLS
+     * The name of the file listing the files of a database dumped in parallel, in the order to restore them in
+     */
+    public static final String MANIFEST_FILE = "manifest.json";
+
+    /**
+     * Creates an instance of the {@code mysqlUploader} object using the credentials and settings specified by the user in the {@code config.yml}
+     * @param logger the logger to log to
+     * @param config the settings of the MySQL server
      */
-    public MySQLUploader(String host, int port, String username, String password, boolean useSsl) {
-        this.host = host;
-        this.port = port;
-        this.username = username;
-        this.password = password;
-        this.useSsl = useSsl;
+    public MySQLUploader(UploadLogger logger, @NotNull ExternalMySQLSource config) {
+        this.logger = logger;
+        this.host = config.hostname;
+        this.port = config.port;
+        this.username = config.username;
+        this.password = config.password;
+        this.useSsl = config.ssl;
+        this.dumpThreads = config.dumpThreads;
+        this.insertBatchRows = config.insertBatchRows;
+        this.insertBatchSize = config.insertBatchSize * 1024L;
+        this.dumpCompression = config.dumpCompression;
     }
 
     /**
@@ -76,11 +115,50 @@ public class MySQLUploader {
 
     /**
      * Downloads the specified MySQL database with the specified name into a folder for the specified database type, excluding the specified tables.
+     * <p>
+     * If more than one dump thread is specified, each table is dumped to its own file in a folder named after the database,
+     * along with a manifest listing the files in the order to restore them in.
      * @param name the name of the MySQL database
      * @param type the type of database (ex. users, purchases)
      * @param blacklist a list of tables to not include
      */
     public void downloadDatabase(String name, String type, List<String> blacklist) {
+        try {
+            Class.forName("com.mysql.cj.jdbc.Driver");
+            File outputPath = new File("external-backups" + File.separator + type);
+            if (!outputPath.exists()) {
+                outputPath.mkdirs();
+            }
+            if (dumpThreads > 1) {
+                downloadDatabaseInParallel(name, new File(outputPath, name), blacklist);
+                return;
+            }
+            try (Connection connection = getConnection(name)) {
+                try (FileOutputStream outputStream = new FileOutputStream(
+                        outputPath + File.separator + name + ".sql" + dumpCompression.getExtension())) {
+                    try (BufferedOutputStream _bos = new BufferedOutputStream(outputStream)) {
+                        try (OutputStream _cos = dumpCompression.compress(_bos)) {
+                            try (OutputStreamWriter _osw = new OutputStreamWriter(_cos, "UTF-8")) {
+                                getInsertStatements(_osw, connection, name, blacklist);
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (Exception e) {
+            MessageUtil.sendConsoleException(e);
+            setErrorOccurred(true);
+        }
+    }
+
+    /**
+     * Opens a connection to the specified database.
+     * @param name the database's name
+     * @return the connection
+     * @throws SQLException if connecting failed
+     */
+    @NotNull
+    private Connection getConnection(String name) throws SQLException {
         String connectionUrl = "jdbc:mysql://" + host + ":" + port + "/" + name
                 + "?useUnicode=true"
                 + "&useJDBCCompliantTimezoneShift=true"
@@ -88,62 +166,264 @@ public class MySQLUploader {
                 + "&useLegacyDatetimeCode=false"
                 + "&serverTimezone=UTC"
                 + "&useSSL=" + useSsl;
-        try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
-            try (Connection connection = DriverManager.getConnection(connectionUrl, username, password)) {
-                stmt = connection.createStatement(ResultSet.TYPE_SCROLL_INSENSITIVE, ResultSet.CONCUR_READ_ONLY);
-                File outputPath = new File("external-backups" + File.separator + type);
-                if (!outputPath.exists()) {
-                    outputPath.mkdirs();
+        return DriverManager.getConnection(connectionUrl, username, password);
+    }
+
+    /**
+     * Downloads the specified database into the specified folder, dumping several tables at once, each to its own file.
+     * <p>
+     * The tables are read by several connections, each in a transaction started with a consistent snapshot while the
+     * database is locked, so all tables are dumped as they were at the same moment. Tables which don't support
+     * transactions, such as MyISAM tables, aren't covered by the snapshot.
+     * @param name the database's name
+     * @param outputFolder the folder to write the files to
+     * @param blacklist a list of tables to not include
+     * @throws Exception if connecting to the database or dumping a table failed
+     */
+    private void downloadDatabaseInParallel(String name, @NotNull File outputFolder, List<String> blacklist) throws Exception {
+        if (!outputFolder.exists()) {
+            outputFolder.mkdirs();
+        }
+        try (Connection coordinator = getConnection(name)) {
+            Map<String, Long> tableSizes = getTableSizes(coordinator, name);
+            tableSizes.keySet().removeAll(blacklist);
+            List<String> restoreOrder = getRestoreOrder(coordinator, name, tableSizes.keySet());
+            // The largest tables are dumped first, so the dump doesn't end waiting on one large table
+            List<String> dumpOrder = new ArrayList<>(tableSizes.keySet());
+            dumpOrder.sort((a, b) -> Long.compare(tableSizes.get(b), tableSizes.get(a)));
+            Queue<String> tables = new ConcurrentLinkedQueue<>(dumpOrder);
+            int threads = Math.max(1, Math.min(dumpThreads, dumpOrder.size()));
+            List<Connection> connections = new ArrayList<>();
+            ExecutorService executor = Executors.newFixedThreadPool(
+                threads,
+                new NamedThreadFactory("MySQL-Dump", ConfigParser.getConfig().backupStorage.threadPriority)
+                );
+            try {
+                for (int i = 0; i < threads; i++) {
+                    connections.add(getConnection(name));
                 }
-                try (FileOutputStream outputStream = new FileOutputStream(
-                        outputPath + File.separator + name + ".sql")) {
-                    try (BufferedOutputStream _bos = new BufferedOutputStream(outputStream)) {
-                        try (OutputStreamWriter _osw = new OutputStreamWriter(_bos, "UTF-8")) {
-                            getInsertStatements(_osw, name, blacklist);
+                boolean consistent = startConsistentSnapshots(coordinator, connections);
+                if (!consistent) {
+                    logger.log(intl("external-mysql-backup-snapshot-unavailable"), "database", name);
+                }
+                List<Future<?>> dumps = new ArrayList<>();
+                for (Connection connection : connections) {
+                    dumps.add(executor.submit(() -> {
+                        String table;
+                        while ((table = tables.poll()) != null) {
+                            dumpTable(connection, outputFolder, table);
                         }
+                        return null;
+                    }));
+                }
+                for (Future<?> dump : dumps) {
+                    try {
+                        dump.get();
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Exception) {
+                            throw (Exception) cause;
+                        }
+                        throw e;
                     }
                 }
+                writeManifest(outputFolder, name, restoreOrder, consistent);
+            } finally {
+                executor.shutdownNow();
+                for (Connection connection : connections) {
+                    connection.close();
+                }
             }
-        } catch (Exception e) {
+        }
+    }
+
+    /**
+     * Starts a transaction with a consistent snapshot on each of the specified connections, while the database is locked
+     * using the coordinator connection, so every snapshot is of the same moment.
+     * @param coordinator the connection to lock the database with
+     * @param connections the connections to start the transactions on
+     * @return whether the snapshots are of the same moment, which they aren't if the user isn't allowed to lock the database
+     * @throws SQLException if a transaction couldn't be started
+     */
+    private static boolean startConsistentSnapshots(@NotNull Connection coordinator, @NotNull List<Connection> connections) throws SQLException {
+        boolean locked;
+        try (Statement lockStmt = coordinator.createStatement()) {
+            lockStmt.execute("FLUSH TABLES WITH READ LOCK");
+            locked = true;
+        } catch (SQLException e) {
+            // Requires the RELOAD privilege
+            locked = false;
+        }
+        try {
+            for (Connection connection : connections) {
+                connection.setAutoCommit(false);
+                try (Statement snapshotStmt = connection.createStatement()) {
+                    snapshotStmt.execute("SET SESSION TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+                    snapshotStmt.execute("START TRANSACTION WITH CONSISTENT SNAPSHOT");
+                }
+            }
+        } finally {
+            if (locked) {
+                try (Statement unlockStmt = coordinator.createStatement()) {
+                    unlockStmt.execute("UNLOCK TABLES");
+                }
+            }
+        }
+        return locked;
+    }
+
+    /**
+     * Dumps the specified table to its own file in the specified folder, which can be restored on its own.
+     * @param connection the connection to the database
+     * @param outputFolder the folder to write the file to
+     * @param table the table's name
+     */
+    private void dumpTable(Connection connection, File outputFolder, String table) throws IOException {
+        try (FileOutputStream outputStream = new FileOutputStream(new File(outputFolder, getTableFileName(table)))) {
+            try (BufferedOutputStream _bos = new BufferedOutputStream(outputStream)) {
+                try (OutputStream _cos = dumpCompression.compress(_bos)) {
+                    try (OutputStreamWriter _osw = new OutputStreamWriter(_cos, StandardCharsets.UTF_8)) {
+                        writeHeader(_osw);
+                        getTableInsertStatement(_osw, connection, table.trim());
+                        getDataInsertStatement(_osw, connection, table.trim());
+                        writeFooter(_osw);
+                    }
+                }
+            }
+        } catch (SQLException e) {
             MessageUtil.sendConsoleException(e);
             setErrorOccurred(true);
         }
     }
 
+    /**
+     * Writes a manifest listing the files of the tables of the specified database in the order to restore them in.
+     * @param outputFolder the folder containing the files
+     * @param name the database's name
+     * @param restoreOrder the tables, in the order to restore them in
+     * @param consistent whether the tables were dumped as they were at the same moment
+     * @throws IOException if writing the manifest failed
+     */
+    private void writeManifest(File outputFolder, String name, @NotNull List<String> restoreOrder, boolean consistent) throws IOException {
+        JSONArray tables = new JSONArray();
+        for (String table : restoreOrder) {
+            JSONObject entry = new JSONObject();
+            entry.put("table", table);
+            entry.put("file", getTableFileName(table));
+            tables.put(entry);
+        }
+        JSONObject manifest = new JSONObject();
+        manifest.put("database", name);
+        manifest.put("date", new SimpleDateFormat("h:mm M/d/yyyy").format(new Date()));
+        manifest.put("consistent-snapshot", consistent);
+        manifest.put("compression", dumpCompression.name().toLowerCase(Locale.ROOT));
+        manifest.put("tables", tables);
+        Files.write(new File(outputFolder, MANIFEST_FILE).toPath(), manifest.toString(2).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Gets the name of the file the specified table is dumped to.
+     * @param table the table's name
+     * @return the file name
+     */
+    @NotNull
+    private String getTableFileName(@NotNull String table) {
+        return table.trim().replaceAll("[^A-Za-z0-9_$.-]", "_") + ".sql" + dumpCompression.getExtension();
+    }
+
     /**
      * Gets the names of all the tables in the remote database.
+     * @param connection the connection to the database
      * @param name the database's name
      * @return a list of the table names
      * @throws SQLException
      */
     @NotNull
-    private List<String> getAllTables(String name) throws SQLException {
-        List<String> table = new ArrayList<>();
-        ResultSet rs;
-        rs = stmt.executeQuery("SHOW TABLE STATUS FROM `" + name + "`;");
-        while ( rs.next() ) {
-            table.add(rs.getString("Name"));
+    private static List<String> getAllTables(Connection connection, String name) throws SQLException {
+        return new ArrayList<>(getTableSizes(connection, name).keySet());
+    }
+
+    /**
+     * Gets the names of all the tables in the remote database, along with the approximate size of their data.
+     * @param connection the connection to the database
+     * @param name the database's name
+     * @return the sizes of the tables in bytes, by their name
+     * @throws SQLException
+     */
+    @NotNull
+    private static Map<String, Long> getTableSizes(@NotNull Connection connection, String name) throws SQLException {
+        Map<String, Long> tables = new LinkedHashMap<>();
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SHOW TABLE STATUS FROM `" + name + "`;")) {
+            while ( rs.next() ) {
+                tables.put(rs.getString("Name"), rs.getLong("Data_length"));
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Orders the specified tables so that each table is restored after the tables its foreign keys reference.
+     * @param connection the connection to the database
+     * @param name the database's name
+     * @param tables the tables
+     * @return the tables, in the order to restore them in
+     * @throws SQLException
+     */
+    @NotNull
+    private static List<String> getRestoreOrder(@NotNull Connection connection, String name, @NotNull Set<String> tables) throws SQLException {
+        Map<String, Set<String>> references = new HashMap<>();
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "SELECT TABLE_NAME, REFERENCED_TABLE_NAME FROM information_schema.KEY_COLUMN_USAGE "
+                + "WHERE TABLE_SCHEMA = ? AND REFERENCED_TABLE_SCHEMA = ? AND REFERENCED_TABLE_NAME IS NOT NULL")) {
+            stmt.setString(1, name);
+            stmt.setString(2, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    references.computeIfAbsent(rs.getString(1), table -> new HashSet<>()).add(rs.getString(2));
+                }
+            }
+        }
+        List<String> restoreOrder = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        for (String table : tables) {
+            addInRestoreOrder(table, tables, references, visited, restoreOrder);
+        }
+        return restoreOrder;
+    }
+
+    private static void addInRestoreOrder(String table, Set<String> tables, Map<String, Set<String>> references, 
+                                          @NotNull Set<String> visited, List<String> restoreOrder) {
+        // Tables referencing each other are restored in any order, as foreign key checks are disabled while restoring
+        if (!visited.add(table)) {
+            return;
+        }
+        for (String referencedTable : references.getOrDefault(table, Collections.emptySet())) {
+            if (tables.contains(referencedTable)) {
+                addInRestoreOrder(referencedTable, tables, references, visited, restoreOrder);
+            }
         }
-        return table;
+        restoreOrder.add(table);
     }
 
     /**
      * Generate the SQL insert statement needed to create an empty table locally with the specified name.
      * @param sql where to write the output to
+     * @param connection the connection to the database
      * @param name the table's name
      * @throws SQLException
      */
-    private void getTableInsertStatement(OutputStreamWriter sql, String name) throws SQLException, IOException {
-        ResultSet rs;
-        rs = stmt.executeQuery("SHOW CREATE TABLE " + "`" + name + "`;");
-        while ( rs.next() ) {
-            String qtbl = rs.getString(1);
-            String query = rs.getString(2);
-            sql.append("\n\n--");
-            sql.append("\n").append(SQL_START_PATTERN).append("  table dump : ").append(qtbl);
-            sql.append("\n--\n\n");
-            sql.append(query).append(";\n\n");
+    private static void getTableInsertStatement(OutputStreamWriter sql, @NotNull Connection connection, String name) throws SQLException, IOException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SHOW CREATE TABLE " + "`" + name + "`;")) {
+            while ( rs.next() ) {
+                String qtbl = rs.getString(1);
+                String query = rs.getString(2);
+                sql.append("\n\n--");
+                sql.append("\n").append(SQL_START_PATTERN).append("  table dump : ").append(qtbl);
+                sql.append("\n--\n\n");
+                sql.append(query).append(";\n\n");
+            }
         }
         sql.append("\n\n--");
         sql.append("\n").append(SQL_END_PATTERN).append("  table dump : ").append(name);
@@ -154,16 +434,38 @@ public class MySQLUploader {
 
     /**
      * Generates the SQL insert statements needed to copy all of the specified remote table's data to the local table.
+     * <p>
+     * The rows are streamed from the server one at a time and written as they are read, so the table is never held in
+     * memory, regardless of its size.
      * @param sql where to write the output to
+     * @param connection the connection to the database
      * @param name the table's name
      * @throws SQLException exception
      */
-    private void getDataInsertStatement(OutputStreamWriter sql, String name) throws SQLException, IOException {
-        ResultSet rs = stmt.executeQuery("SELECT * FROM " + "`" + name + "`;");
-        //move to the last row to get max rows returned
-        rs.last();
-        int rowCount = rs.getRow();
-        if(rowCount <= 0) {
+    private void getDataInsertStatement(OutputStreamWriter sql, @NotNull Connection connection, String name) throws SQLException, IOException {
+        try (Statement dataStmt = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            // Makes Connector/J stream the rows rather than reading the whole result into memory
+            dataStmt.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet rs = dataStmt.executeQuery("SELECT * FROM " + "`" + name + "`;")) {
+                writeDataInsertStatement(sql, rs, name);
+            }
+        }
+    }
+
+    /**
+     * Writes the SQL insert statements needed to copy the rows in the specified result set to the local table.
+     * <p>
+     * The rows are split into insert statements of up to the number of rows and size specified by the user in the
+     * {@code config.yml}, so that each statement fits within the server's maximum packet size when restored, and the
+     * statements can be restored over several connections at once.
+     * @param sql where to write the output to
+     * @param rs the rows of the table, which can only be read forward
+     * @param name the table's name
+     * @throws SQLException exception
+     */
+    private void writeDataInsertStatement(OutputStreamWriter sql, @NotNull ResultSet rs, String name) throws SQLException, IOException {
+        //check whether the table is empty without reading more than the first row
+        if (!rs.next()) {
             return;
         }
         sql.append("\n--").append("\n-- Inserts of ").append(name).append("\n--\n\n");
@@ -172,82 +474,42 @@ public class MySQLUploader {
         sql.append("\n--\n")
                 .append(SQL_START_PATTERN).append(" table insert : ").append(name)
                 .append("\n--\n");
-        sql.append("INSERT INTO `").append(name).append("` (");
         ResultSetMetaData metaData = rs.getMetaData();
         int columnCount = metaData.getColumnCount();
         //generate the column names that are present
         //in the returned result set
         //at this point the insert is INSERT INTO (`col1`, `col2`, ...)
+        StringBuilder insert = new StringBuilder();
+        insert.append("INSERT INTO `").append(name).append("` (");
         for(int i = 0; i < columnCount; i++) {
             if (i > 0) {
-                sql.append(", ");
+                insert.append(", ");
             }
-            sql.append("`");
-            sql.append(metaData.getColumnName( i + 1));
-            sql.append("`");
+            insert.append("`");
+            insert.append(metaData.getColumnName( i + 1));
+            insert.append("`");
         }
-        sql.append(") VALUES \n");
-        //now we're going to build the values for data insertion.
-        rs.beforeFirst();
-        while(rs.next()) {
-            if (!rs.isFirst()) {
-                sql.append(",\n");
-            }
-            sql.append("(");
-            for(int i = 0; i < columnCount; i++) {
-                int columnType = metaData.getColumnType(i + 1);
-                int columnIndex = i + 1;
-                if (i > 0) {
-                    sql.append(", ");
-                }
-                // this is the part where the values are processed based on their type.
-                if (rs.getObject(columnIndex) == null) {
-                    sql.append("NULL");
-                } else {
-                    switch (columnType) {
-                        case Types.BIT:
-                        case Types.TINYINT:
-                        case Types.SMALLINT:
-                        case Types.INTEGER:
-                        case Types.BIGINT:
-                            sql.append(Long.toString(rs.getLong(columnIndex)));
-                            break;
-                        case Types.FLOAT:
-                            sql.append(Float.toString(rs.getFloat(columnIndex)));
-                            break;
-                        case Types.DOUBLE:
-                            sql.append(Double.toString(rs.getDouble(columnIndex)));
-                            break;
-                        case Types.DECIMAL:
-                            sql.append(rs.getBigDecimal(columnIndex).toString());
-                            break;
-                        case Types.BINARY:
-                        case Types.VARBINARY:
-                        case Types.LONGVARBINARY:
-                        case Types.BLOB:
-                            // TODO: Replace this with a streaming pipeline
-                            // Possibly org.apache.commons.codec.binary.Base64InputStream
-                            // WARNING: Can cause excessive memory usage!
-                            sql.append("FROM_BASE64('");
-                            sql.append(Base64.getEncoder().encodeToString(rs.getBytes(columnIndex)));
-                            sql.append("')");
-                            break;
-                        default:
-                            // TODO: Replace this with a streaming pipeline
-                            // WARNING: Can cause excessive memory usage!
-                            String val = rs.getString(columnIndex);
-                            // escape the single quotes that might be in the value
-                            val = val.replace("'", "\\'");
-                            sql.append("'").append(val).append("'");
-                            break;
-                    }
+        insert.append(") VALUES \n");
+        CountingWriter counter = new CountingWriter(sql);
+        //now we're going to build the values for data insertion,
+        //starting with the row that was read to check the table isn't empty.
+        boolean hasRow = true;
+        while (hasRow) {
+            counter.append(insert);
+            long statementStart = counter.getCount();
+            int statementRows = 0;
+            do {
+                if (statementRows > 0) {
+                    counter.append(",\n");
                 }
-            }
-            sql.append(")");
+                writeRow(counter, rs, metaData, columnCount);
+                statementRows++;
+                hasRow = rs.next();
+            } while (hasRow && statementRows < insertBatchRows && counter.getCount() - statementStart < insertBatchSize);
+            //now that we are done with this batch of rows,
+            //let's add the terminator.
+            counter.append(";\n");
         }
-        //now that we are done processing the entire row,
-        //let's add the terminator.
-        sql.append(";");
         sql.append("\n--\n")
                 .append(SQL_END_PATTERN).append(" table insert : ").append(name)
                 .append("\n--\n");
@@ -255,14 +517,120 @@ public class MySQLUploader {
         sql.append("\n/*!40000 ALTER TABLE `").append(name).append("` ENABLE KEYS */;\n");
     }
 
+    /**
+     * Writes the values of the current row of the specified result set.
+     * <p>
+     * Binary and text values are read as streams and encoded as they are written, so only a small part of each value is
+     * held in memory at a time.
+     * @param sql where to write the output to
+     * @param rs the rows of the table
+     * @param metaData the columns of the table
+     * @param columnCount the number of columns
+     * @throws SQLException exception
+     */
+    private static void writeRow(Writer sql, ResultSet rs, ResultSetMetaData metaData, int columnCount) throws SQLException, IOException {
+        sql.append("(");
+        for(int i = 0; i < columnCount; i++) {
+            int columnType = metaData.getColumnType(i + 1);
+            int columnIndex = i + 1;
+            if (i > 0) {
+                sql.append(", ");
+            }
+            // this is the part where the values are processed based on their type.
+            // each value is only read once, checking whether it was null afterwards
+            switch (columnType) {
+                case Types.BIT:
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                case Types.BIGINT:
+                    long longValue = rs.getLong(columnIndex);
+                    sql.append(rs.wasNull() ? "NULL" : Long.toString(longValue));
+                    break;
+                case Types.FLOAT:
+                    float floatValue = rs.getFloat(columnIndex);
+                    sql.append(rs.wasNull() ? "NULL" : Float.toString(floatValue));
+                    break;
+                case Types.DOUBLE:
+                    double doubleValue = rs.getDouble(columnIndex);
+                    sql.append(rs.wasNull() ? "NULL" : Double.toString(doubleValue));
+                    break;
+                case Types.DECIMAL:
+                    BigDecimal decimalValue = rs.getBigDecimal(columnIndex);
+                    sql.append(decimalValue == null ? "NULL" : decimalValue.toString());
+                    break;
+                case Types.BINARY:
+                case Types.VARBINARY:
+                case Types.LONGVARBINARY:
+                case Types.BLOB:
+                    try (InputStream binaryValue = rs.getBinaryStream(columnIndex)) {
+                        if (binaryValue == null) {
+                            sql.append("NULL");
+                        } else {
+                            SqlValueEncoder.writeBinary(sql, binaryValue);
+                        }
+                    }
+                    break;
+                case Types.CHAR:
+                case Types.VARCHAR:
+                case Types.LONGVARCHAR:
+                case Types.CLOB:
+                case Types.NCHAR:
+                case Types.NVARCHAR:
+                case Types.LONGNVARCHAR:
+                case Types.NCLOB:
+                    try (Reader textValue = rs.getCharacterStream(columnIndex)) {
+                        if (textValue == null) {
+                            sql.append("NULL");
+                        } else {
+                            SqlValueEncoder.writeString(sql, textValue);
+                        }
+                    }
+                    break;
+                default:
+                    String value = rs.getString(columnIndex);
+                    if (value == null) {
+                        sql.append("NULL");
+                    } else {
+                        SqlValueEncoder.writeString(sql, value);
+                    }
+                    break;
+            }
+        }
+        sql.append(")");
+    }
+
     /**
      * Generates the SQL insert statements needed to recreate the specified remote database locally, excluding the specified tables.
      * @param sql where to write the output to
+     * @param connection the connection to the database
      * @param name the database's name
      * @param blacklist a list of tables to not include
-     * @throws SQLException exception
+     * @throws SQLException if reading a table failed, which stops the dump and reports it as failed
+     */
+    private void getInsertStatements(@NotNull OutputStreamWriter sql, Connection connection, String name, List<String> blacklist) throws SQLException, IOException {
+        writeHeader(sql);
+        //get the tables that are in the database
+        List<String> tables = getAllTables(connection, name);
+        //for every table, get the table creation and data
+        // insert statement.
+        for (String table: tables) {
+            if (blacklist.contains(table)) {
+                continue;
+            }
+            // A table failing part way through leaves an unfinished statement, so the dump is stopped rather than continued
+            getTableInsertStatement(sql, connection, table.trim());
+            getDataInsertStatement(sql, connection, table.trim());
+        }
+        writeFooter(sql);
+    }
+
+    /**
+     * Writes the statements to run before restoring the tables of a dump.
+     * @param sql where to write the output to
+     * @throws IOException
      */
-    private void getInsertStatements(@NotNull OutputStreamWriter sql, String name, List<String> blacklist) throws SQLException, IOException {
+    private static void writeHeader(@NotNull OutputStreamWriter sql) throws IOException {
         sql.append("--");
         sql.append("\n-- Generated by DriveBackupV2");
         sql.append("\n-- http://dev.bukkit.org/projects/drivebackupv2");
@@ -274,26 +642,56 @@ public class MySQLUploader {
                 .append("\n/*!50503 SET NAMES utf8mb4 */;")
                 .append("\n/*!40014 SET @OLD_FOREIGN_KEY_CHECKS=@@FOREIGN_KEY_CHECKS, FOREIGN_KEY_CHECKS=0 */;")
                 .append("\n/*!40101 SET @OLD_SQL_MODE=@@SQL_MODE, SQL_MODE='NO_AUTO_VALUE_ON_ZERO' */;");
-        //get the tables that are in the database
-        List<String> tables = getAllTables(name);
-        //for every table, get the table creation and data
-        // insert statement.
-        for (String table: tables) {
-            if (blacklist.contains(table)) {
-                continue;
-            }
-            try {
-                getTableInsertStatement(sql, table.trim());
-                getDataInsertStatement(sql, table.trim());
-            } catch (SQLException e) {
-                e.printStackTrace();
-            }
-        }
+    }
+
+    /**
+     * Writes the statements to run after restoring the tables of a dump.
+     * @param sql where to write the output to
+     * @throws IOException
+     */
+    private static void writeFooter(@NotNull OutputStreamWriter sql) throws IOException {
         sql.append("\n/*!40101 SET SQL_MODE=IFNULL(@OLD_SQL_MODE, '') */;")
                 .append("\n/*!40014 SET FOREIGN_KEY_CHECKS=IF(@OLD_FOREIGN_KEY_CHECKS IS NULL, 1, @OLD_FOREIGN_KEY_CHECKS) */;")
                 .append("\n/*!40101 SET CHARACTER_SET_CLIENT=@OLD_CHARACTER_SET_CLIENT */;\n");
     }
 
+    /**
+     * A writer counting the number of characters written through it, used to measure the size of insert statements
+     */
+    private static class CountingWriter extends FilterWriter {
+        private long count;
+
+        private CountingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            super.write(c);
+            count++;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            super.write(cbuf, off, len);
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            super.write(str, off, len);
+            count += len;
+        }
+
+        /**
+         * Gets the number of characters written.
+         * @return the number of characters
+         */
+        public long getCount() {
+            return count;
+        }
+    }
+
     /**
      * Sets whether an error occurred while accessing the MySQL database
      * @param errorOccurredValue whether an error occurred
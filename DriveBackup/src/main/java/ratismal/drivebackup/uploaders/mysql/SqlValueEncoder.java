@@ -0,0 +1,130 @@
+package ratismal.drivebackup.uploaders.mysql;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Base64;
+
+/**
+ * Writes values into SQL statements as they are read from the database, so that a value is never held in memory as a
+ * whole, regardless of its size.
+ */
+final class SqlValueEncoder {
+    private static final int BUFFER_SIZE = 8192;
+
+    private SqlValueEncoder() {
+    }
+
+    /**
+     * Writes the specified binary value as a {@code FROM_BASE64('...')} expression.
+     * @param sql where to write the output to
+     * @param value the value
+     * @throws IOException if reading the value or writing the output failed
+     */
+    static void writeBinary(@NotNull Writer sql, @NotNull InputStream value) throws IOException {
+        sql.append("FROM_BASE64('");
+        // Closing the encoder writes the padding, without closing the writer
+        try (OutputStream base64 = Base64.getEncoder().wrap(new AsciiOutputStream(sql))) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = value.read(buffer)) != -1) {
+                base64.write(buffer, 0, read);
+            }
+        }
+        sql.append("')");
+    }
+
+    /**
+     * Writes the specified text value as a quoted string, escaping the characters which have to be escaped in MySQL strings.
+     * @param sql where to write the output to
+     * @param value the value
+     * @throws IOException if reading the value or writing the output failed
+     */
+    static void writeString(@NotNull Writer sql, @NotNull Reader value) throws IOException {
+        sql.append('\'');
+        char[] buffer = new char[BUFFER_SIZE];
+        int read;
+        while ((read = value.read(buffer)) != -1) {
+            writeEscaped(sql, buffer, read);
+        }
+        sql.append('\'');
+    }
+
+    /**
+     * Writes the specified text value as a quoted string, escaping the characters which have to be escaped in MySQL strings.
+     * @param sql where to write the output to
+     * @param value the value
+     * @throws IOException if writing the output failed
+     */
+    static void writeString(@NotNull Writer sql, @NotNull String value) throws IOException {
+        sql.append('\'');
+        writeEscaped(sql, value.toCharArray(), value.length());
+        sql.append('\'');
+    }
+
+    private static void writeEscaped(@NotNull Writer sql, char[] chars, int length) throws IOException {
+        int unescapedStart = 0;
+        for (int i = 0; i < length; i++) {
+            String escaped = getEscapeSequence(chars[i]);
+            if (escaped != null) {
+                sql.write(chars, unescapedStart, i - unescapedStart);
+                sql.write(escaped);
+                unescapedStart = i + 1;
+            }
+        }
+        sql.write(chars, unescapedStart, length - unescapedStart);
+    }
+
+    private static String getEscapeSequence(char c) {
+        switch (c) {
+            case '\0':
+                return "\\0";
+            case '\n':
+                return "\\n";
+            case '\r':
+                return "\\r";
+            case '\u001A':
+                return "\\Z";
+            case '\\':
+                return "\\\\";
+            case '\'':
+                return "\\'";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Writes bytes which are ASCII characters, such as Base64 encoded data, to a writer, leaving the writer open when closed
+     */
+    private static class AsciiOutputStream extends OutputStream {
+        private final Writer writer;
+
+        private AsciiOutputStream(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writer.write((char) (b & 0xFF));
+        }
+
+        @Override
+        public void write(@NotNull byte[] b, int off, int len) throws IOException {
+            char[] chars = new char[len];
+            for (int i = 0; i < len; i++) {
+                chars[i] = (char) (b[off + i] & 0xFF);
+            }
+            writer.write(chars, 0, len);
+        }
+
+        @Override
+        public void close() {
+            // The writer is closed by its owner
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package ratismal.drivebackup.uploaders.onedrive;
 
-import okhttp3.FormBody;
 import okhttp3.MediaType;
 import okhttp3.Request;
 import okhttp3.RequestBody;
@@ -11,21 +10,23 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.ChunkStore;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.plugin.DriveBackup;
-import ratismal.drivebackup.uploaders.Authenticator;
+import ratismal.drivebackup.uploaders.AccessTokenManager;
 import ratismal.drivebackup.uploaders.Authenticator.AuthenticationProvider;
-import ratismal.drivebackup.uploaders.Obfusticate;
 import ratismal.drivebackup.uploaders.Uploader;
 import ratismal.drivebackup.util.MessageUtil;
 import ratismal.drivebackup.util.NetUtil;
+import ratismal.drivebackup.util.RetentionPolicy;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -40,8 +41,10 @@ public class OneDriveUploader extends Uploader {
     private static final int EXPONENTIAL_BACKOFF_FACTOR = 5;
     private static final int MAX_RETRY_ATTEMPTS = 3;
 
-    private String accessToken = "";
-    private String refreshToken;
+    /**
+     * The most requests Microsoft Graph accepts in a single batch request
+     */
+    private static final int BATCH_SIZE = 20;
 
     public static final String UPLOADER_NAME = "OneDrive";
 
@@ -60,8 +63,8 @@ public class OneDriveUploader extends Uploader {
         this.logger = logger;
         setAuthProvider(AuthenticationProvider.ONEDRIVE);
         try {
-            refreshToken = Authenticator.getRefreshToken(getAuthProvider());
-            retrieveNewAccessToken();
+            getAccessToken();
+            setAuthenticated(true);
         } catch (Exception e) {
             MessageUtil.sendConsoleException(e);
             setErrorOccurred(true);
@@ -69,39 +72,13 @@ public class OneDriveUploader extends Uploader {
     }
 
     /**
-     * Gets a new OneDrive access token for the authenticated user
-     * @throws Exception if the clientId could not be decrypted
-     * @throws IOException if the request could not be executed, or was not successful
-     * @throws JSONException if the response does not contain the expected values
+     * Gets the OneDrive access token for the authenticated user, shared by all OneDrive uploaders
+     * @return the access token
+     * @throws IOException if the token had to be refreshed, and refreshing it failed
      */
-    private void retrieveNewAccessToken() throws Exception {
-        RequestBody requestBody = new FormBody.Builder()
-            .add("client_id", Obfusticate.decrypt(getAuthProvider().getClientId()))
-            .add("scope", "offline_access Files.ReadWrite")
-            .add("refresh_token", refreshToken)
-            .add("grant_type", "refresh_token")
-            .add("redirect_uri", "https://login.microsoftonline.com/common/oauth2/nativeclient")
-            .build();
-        Request request = new Request.Builder()
-            .url("https://login.microsoftonline.com/common/oauth2/v2.0/token")
-            .post(requestBody)
-            .build();
-        try (Response response = DriveBackup.httpClient.newCall(request).execute()) {
-            //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
-            JSONObject parsedResponse = new JSONObject(response.body().string());
-            if (!response.isSuccessful()) {
-                String error = parsedResponse.optString("error");
-                String description = parsedResponse.optString("error_description");
-                throw new IOException(String.format("%s : %s", error, description));
-            }
-            accessToken = parsedResponse.getString("access_token");
-            refreshToken = parsedResponse.getString("refresh_token");
-        }
-    }
-
-    @Override
-    public boolean isAuthenticated() {
-        return !accessToken.isEmpty();
+    @NotNull
+    private static String getAccessToken() throws IOException {
+        return AccessTokenManager.getAccessToken(AuthenticationProvider.ONEDRIVE);
     }
 
     /**
@@ -131,7 +108,6 @@ public class OneDriveUploader extends Uploader {
     @Override
     public void uploadFile(File file, String location) {
         try {
-            retrieveNewAccessToken();
             String destinationRoot = normalizePath(ConfigParser.getConfig().backupStorage.remoteDirectory);
             String destinationPath = concatPath(destinationRoot, normalizePath(location));
             FQID destinationId = createPath(destinationPath);
@@ -139,12 +115,7 @@ public class OneDriveUploader extends Uploader {
             try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
                 uploadToSession(uploadURL, raf);
             }
-            try {
-                pruneBackups(destinationId);
-            } catch (Exception e) {
-                logger.log(intl("backup-method-prune-failed"));
-                throw e;
-            }
+            schedulePrune(destinationPath, path -> pruneBackups(destinationId));
         }
         catch (Exception exception) {
             NetUtil.catchException(exception, "graph.microsoft.com", logger);
@@ -156,15 +127,24 @@ public class OneDriveUploader extends Uploader {
         }
     }
 
+    @Override
+    public void uploadChunkPacks(List<File> packs, String location) throws Exception {
+        String destinationRoot = normalizePath(ConfigParser.getConfig().backupStorage.remoteDirectory);
+        String destinationPath = concatPath(concatPath(destinationRoot, normalizePath(location)), ChunkStore.FOLDER_NAME);
+        FQID destinationId = createPath(destinationPath);
+        for (File pack : packs) {
+            String uploadURL = createUploadSession(pack.getName(), destinationId);
+            try (RandomAccessFile raf = new RandomAccessFile(pack, "r")) {
+                uploadToSession(uploadURL, raf);
+            }
+        }
+    }
+
     /**
     * Closes any remaining connections retrieveNewAccessToken
     */
     public void close() {
-        try {
-            Authenticator.saveRefreshToken(getAuthProvider(), refreshToken);
-        } catch (Exception e) {
-            MessageUtil.sendConsoleException(e);
-        }
+        // nothing needs to be done, the refresh token is saved whenever it changes
     }
 
     /**
@@ -259,7 +239,7 @@ public class OneDriveUploader extends Uploader {
         RequestBody requestBody = RequestBody.create("{ \"name\": \"" + folder
             + "\", \"folder\": {}, \"@microsoft.graph.conflictBehavior\": \"fail\" }", jsonMediaType);
         Request request = new Request.Builder()
-            .addHeader("Authorization", "Bearer " + accessToken)
+            .addHeader("Authorization", "Bearer " + getAccessToken())
             .url("https://graph.microsoft.com/v1.0/drives/" + root.driveId + "/items/" + root.itemId + "/children")
             .post(requestBody)
             .build();
@@ -293,7 +273,7 @@ public class OneDriveUploader extends Uploader {
         RequestBody requestBody = RequestBody.create("{ \"name\": \""
             + folder + "\", \"folder\": {}, \"@name.conflictBehavior\": \"fail\" }", jsonMediaType);
         Request request = new Request.Builder()
-            .addHeader("Authorization", "Bearer " + accessToken)
+            .addHeader("Authorization", "Bearer " + getAccessToken())
             .url("https://graph.microsoft.com/v1.0/me/drive/root/children")
             .post(requestBody)
             .build();
@@ -322,7 +302,7 @@ public class OneDriveUploader extends Uploader {
     private FQID getRootFolder(@NotNull String folder) throws IOException, GraphApiErrorException {
         String folderUrl = folder.isEmpty() ? folder : ":/" + folder;
         Request request = new Request.Builder()
-            .addHeader("Authorization", "Bearer " + accessToken)
+            .addHeader("Authorization", "Bearer " + getAccessToken())
             .url("https://graph.microsoft.com/v1.0/me/drive/root" + folderUrl + "?$select=id,parentReference,remoteItem")
             .build();
         JSONObject parsedResponse;
@@ -389,7 +369,7 @@ public class OneDriveUploader extends Uploader {
                 + "/items/" + folder.itemId + "/children" + queryParams;
         while (true) {
             Request request = new Request.Builder()
-                    .addHeader("Authorization", "Bearer " + accessToken)
+                    .addHeader("Authorization", "Bearer " + getAccessToken())
                     .url(targetUrl)
                     .build();
             try (Response response = DriveBackup.httpClient.newCall(request).execute()) {
@@ -422,7 +402,7 @@ public class OneDriveUploader extends Uploader {
      */
     private void recycleItem(@NotNull String driveId, @NotNull String itemId) throws IOException, GraphApiErrorException {
         Request delteRequest = new Request.Builder()
-            .addHeader("Authorization", "Bearer " + accessToken)
+            .addHeader("Authorization", "Bearer " + getAccessToken())
             .url("https://graph.microsoft.com/v1.0/drives/" + driveId + "/items/" + itemId)
             .delete()
             .build();
@@ -445,7 +425,7 @@ public class OneDriveUploader extends Uploader {
     @NotNull
     private FQID uploadSmallFile(@NotNull File file, @NotNull FQID destinationFolder) throws IOException, GraphApiErrorException {
         Request uploadRequest = new Request.Builder()
-            .addHeader("Authorization", "Bearer " + accessToken)
+            .addHeader("Authorization", "Bearer " + getAccessToken())
             .url("https://graph.microsoft.com/v1.0/drives/" + destinationFolder.driveId + "/items/" + destinationFolder.itemId
                 + ":/" + file.getName() + ":/content")
             .put(RequestBody.create(file, textMediaType))
@@ -474,7 +454,7 @@ public class OneDriveUploader extends Uploader {
     @NotNull
     private String createUploadSession(@NotNull String fileName, @NotNull FQID destinationFolder) throws IOException, GraphApiErrorException {
         Request request = new Request.Builder()
-            .addHeader("Authorization", "Bearer " + accessToken)
+            .addHeader("Authorization", "Bearer " + getAccessToken())
             .url("https://graph.microsoft.com/v1.0/drives/" + destinationFolder.driveId
                 + "/items/" + destinationFolder.itemId + ":/" + fileName + ":/createUploadSession")
             .post(RequestBody.create("{}", jsonMediaType))
@@ -569,33 +549,102 @@ public class OneDriveUploader extends Uploader {
     }
 
     /**
-     * Deletes the oldest files in the specified folder past the number to retain from the authenticated user's OneDrive.
+     * Deletes the files in the specified folder which aren't retained from the authenticated user's OneDrive.
      * <p>
-     * The number of files to retain is specified by the user in the {@code config.yml}
+     * The number of files, and hours, days, weeks and months of files to retain is specified by the user in the {@code config.yml}
      * @param parent the folder containing the files
      * @throws IOException on request execution failure
-     * @throws GraphApiErrorException if the children could not be retrieved
+     * @throws GraphApiErrorException if the children could not be retrieved, or an item was not recycled
      * @throws JSONException if the response does not contain the expected items
+     * @throws InterruptedException if interrupted while waiting to retry throttled requests
      */
-    private void pruneBackups(@NotNull FQID parent) throws IOException, GraphApiErrorException {
-        int fileLimit = ConfigParser.getConfig().backupStorage.keepCount;
-        if (fileLimit == -1) {
+    private void pruneBackups(@NotNull FQID parent) throws IOException, GraphApiErrorException, InterruptedException {
+        RetentionPolicy retentionPolicy = RetentionPolicy.remote();
+        if (retentionPolicy.isUnlimited()) {
             return;
         }
-        List<JSONObject> childItems = getChildren(parent, "?$select=id,createdDateTime");
-        if(fileLimit >= childItems.size()) {
+        List<JSONObject> childItems = getChildren(parent, "?$select=id,name,createdDateTime");
+        childItems.removeIf(item -> !ArchiveFormat.isArchive(item.getString("name")));
+        List<JSONObject> itemsToDelete = retentionPolicy.getBackupsToDelete(
+            childItems, item -> Instant.parse(item.getString("createdDateTime")), item -> item.getString("name"));
+        if (itemsToDelete.isEmpty()) {
             return;
         }
         logger.info(
             intl("backup-method-limit-reached"),
             "file-count", String.valueOf(childItems.size()),
             "upload-method", getName(),
-            "file-limit", String.valueOf(fileLimit));
-        childItems.sort(Comparator.comparing(item -> item.getString("createdDateTime")));
-        int itemsToDelete = childItems.size() - fileLimit;
-        for (int i = 0; i < itemsToDelete; i++) {
-            String itemId = childItems.get(i).getString("id");
-            recycleItem(parent.driveId, itemId);
+            "file-limit", String.valueOf(retentionPolicy.getKeepCount()));
+        List<String> itemIds = new ArrayList<>(itemsToDelete.size());
+        for (JSONObject item : itemsToDelete) {
+            itemIds.add(item.getString("id"));
+        }
+        recycleItems(parent.driveId, itemIds);
+    }
+
+    /**
+     * moves items to the recycle bin using batch requests
+     * <p>
+     * requests throttled by the service are retried after the delay it asks for
+     *
+     * @param driveId the ID of the drive of the items
+     * @param itemIds the IDs of the items to be deleted
+     * @throws IOException if a request could not be executed
+     * @throws GraphApiErrorException if an item was not recycled
+     * @throws InterruptedException if interrupted while waiting to retry throttled requests
+     */
+    private void recycleItems(@NotNull String driveId, @NotNull List<String> itemIds)
+        throws IOException, GraphApiErrorException, InterruptedException {
+        for (int start = 0; start < itemIds.size(); start += BATCH_SIZE) {
+            List<String> batch = itemIds.subList(start, Math.min(start + BATCH_SIZE, itemIds.size()));
+            long backoffMillis = EXPONENTIAL_BACKOFF_MILLIS_DEFAULT;
+            for (int retryCount = 0; !batch.isEmpty(); retryCount++) {
+                JSONArray requests = new JSONArray();
+                for (int i = 0; i < batch.size(); i++) {
+                    requests.put(new JSONObject()
+                        .put("id", String.valueOf(i))
+                        .put("method", "DELETE")
+                        .put("url", "/drives/" + driveId + "/items/" + batch.get(i)));
+                }
+                Request batchRequest = new Request.Builder()
+                    .addHeader("Authorization", "Bearer " + getAccessToken())
+                    .url("https://graph.microsoft.com/v1.0/$batch")
+                    .post(RequestBody.create(new JSONObject().put("requests", requests).toString(), jsonMediaType))
+                    .build();
+                JSONArray responses;
+                try (Response response = DriveBackup.httpClient.newCall(batchRequest).execute()) {
+                    //noinspection DataFlowIssue (response.body() is non-null after Call.execute())
+                    String responseBody = response.body().string();
+                    if (response.code() != 200) {
+                        throw new GraphApiErrorException(response.code(), responseBody);
+                    }
+                    responses = new JSONObject(responseBody).getJSONArray("responses");
+                }
+                List<String> throttled = new ArrayList<>();
+                long retryAfterMillis = backoffMillis;
+                for (int i = 0; i < responses.length(); i++) {
+                    JSONObject response = responses.getJSONObject(i);
+                    int statusCode = response.getInt("status");
+                    if (statusCode == 204 || statusCode == 404) {
+                        continue;
+                    }
+                    if ((statusCode == 429 || statusCode >= 500) && retryCount < MAX_RETRY_ATTEMPTS) {
+                        throttled.add(batch.get(Integer.parseInt(response.getString("id"))));
+                        JSONObject headers = response.optJSONObject("headers");
+                        if (headers != null) {
+                            long retryAfterSeconds = headers.optLong("Retry-After");
+                            retryAfterMillis = Math.max(retryAfterMillis, TimeUnit.SECONDS.toMillis(retryAfterSeconds));
+                        }
+                        continue;
+                    }
+                    throw new GraphApiErrorException(statusCode, String.valueOf(response.optJSONObject("body")));
+                }
+                if (!throttled.isEmpty()) {
+                    TimeUnit.MILLISECONDS.sleep(retryAfterMillis);
+                    backoffMillis *= EXPONENTIAL_BACKOFF_FACTOR;
+                }
+                batch = throttled;
+            }
         }
     }
 
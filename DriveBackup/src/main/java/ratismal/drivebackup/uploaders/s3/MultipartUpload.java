@@ -0,0 +1,261 @@
+package ratismal.drivebackup.uploaders.s3;
+
+import io.minio.messages.Part;
+import io.minio.messages.Upload;
+import org.jetbrains.annotations.NotNull;
+import ratismal.drivebackup.archive.BackupManifest;
+import ratismal.drivebackup.util.NamedThreadFactory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Uploads a file to S3 as a multipart upload, uploading several parts at once.
+ * <p>
+ * Each part is streamed from the file, and retried on its own if uploading it fails. If the upload is interrupted, for
+ * example by the server crashing, it's left incomplete so that uploading the same file again resumes it, which
+ * {@link #resumeIncompleteUploads} does with the next backup. The parts which were already uploaded are listed, and
+ * only re-uploaded if their contents don't match the file anymore.
+ * <p>
+ * Only the S3 API is used, so uploads can be tried out against a local S3-compatible server, such as MinIO, by setting
+ * it as the endpoint.
+ */
+class MultipartUpload {
+    /**
+     * The minimum size of every part but the last, imposed by S3
+     */
+    static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final long MEBIBYTE = 1024L * 1024;
+    private static final int MAX_PARTS = 10_000;
+    private static final int MAX_ATTEMPTS = 4;
+    private static final long BACKOFF_MILLIS = 1000;
+    private static final int BACKOFF_FACTOR = 2;
+
+    private final S3MultipartClient client;
+    private final String bucket;
+    private final long partSize;
+    private final int threads;
+    private final int threadPriority;
+
+    /**
+     * Creates an instance of the {@code MultipartUpload} object
+     * @param client the client to upload with
+     * @param bucket the bucket to upload to
+     * @param partSize the desired size of each part in bytes, which is increased for files with too many parts
+     * @param threads the number of parts to upload at once
+     * @param threadPriority the priority of the threads uploading parts
+     */
+    MultipartUpload(S3MultipartClient client, String bucket, long partSize, int threads, int threadPriority) {
+        this.client = client;
+        this.bucket = bucket;
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        this.threads = threads;
+        this.threadPriority = threadPriority;
+    }
+
+    /**
+     * Uploads the specified file, resuming an incomplete upload of it to the same key if there is one.
+     * @param file the file to upload
+     * @param key the key of the object to upload to
+     * @param contentType the content type of the object
+     * @throws Exception if uploading the file failed, in which case the incomplete upload is kept to be resumed
+     */
+    void upload(@NotNull File file, String key, String contentType) throws Exception {
+        long length = file.length();
+        long size = getPartSize(length);
+        int partCount = (int) Math.max(1, (length + size - 1) / size);
+        Map<Integer, Part> uploadedParts = new HashMap<>();
+        String uploadId = client.findMultipartUpload(bucket, key);
+        if (uploadId != null) {
+            for (Part part : client.listParts(bucket, key, uploadId)) {
+                uploadedParts.put(part.partNumber(), part);
+            }
+        } else {
+            uploadId = client.createMultipartUpload(bucket, key, contentType);
+        }
+        String id = uploadId;
+        ExecutorService executor = Executors.newFixedThreadPool(
+            Math.min(threads, partCount),
+            new NamedThreadFactory("S3-Upload", threadPriority)
+            );
+        try {
+            List<Future<Part>> tasks = new ArrayList<>(partCount);
+            for (int partNumber = 1; partNumber <= partCount; partNumber++) {
+                long offset = (partNumber - 1) * size;
+                long partLength = Math.min(size, length - offset);
+                Part uploadedPart = uploadedParts.get(partNumber);
+                int number = partNumber;
+                tasks.add(executor.submit(() -> uploadPart(file, key, id, number, offset, partLength, uploadedPart)));
+            }
+            Part[] parts = new Part[partCount];
+            for (int i = 0; i < partCount; i++) {
+                parts[i] = await(tasks.get(i));
+            }
+            client.completeMultipartUpload(bucket, key, uploadId, parts);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Resumes the incomplete uploads to keys starting with the specified prefix, other than to the specified key, whose
+     * files are still in the specified folder, and aborts the others.
+     * <p>
+     * Backups are named after when they were made, so an upload interrupted by the server stopping is only resumed here,
+     * along with the next backup. S3 keeps, and charges for, the parts of incomplete uploads until they're aborted.
+     * @param prefix the prefix of the keys, which the names of the files follow
+     * @param key the key of the upload to keep, as it might still be resumed
+     * @param folder the folder containing the local copies of the files
+     * @param contentType gets the content type of an object from its file name
+     * @throws Exception if listing the uploads failed, or resuming or aborting one of them failed
+     */
+    void resumeIncompleteUploads(String prefix, String key, File folder, Function<String, String> contentType) throws Exception {
+        Map<String, List<Upload>> uploadsByKey = new HashMap<>();
+        for (Upload upload : client.listMultipartUploads(bucket, prefix)) {
+            if (!upload.objectName().equals(key)) {
+                uploadsByKey.computeIfAbsent(upload.objectName(), k -> new ArrayList<>()).add(upload);
+            }
+        }
+        Exception failure = null;
+        for (Map.Entry<String, List<Upload>> entry : uploadsByKey.entrySet()) {
+            String uploadKey = entry.getKey();
+            List<Upload> uploads = entry.getValue();
+            try {
+                String fileName = uploadKey.substring(prefix.length());
+                File file = new File(folder, fileName);
+                if (!fileName.contains("/") && file.isFile()) {
+                    // The latest upload is the one resumed, the older ones are aborted
+                    uploads.sort(Comparator.comparing(Upload::initiated));
+                    uploads.remove(uploads.size() - 1);
+                    upload(file, uploadKey, contentType.apply(fileName));
+                }
+                for (Upload upload : uploads) {
+                    client.abortMultipartUpload(bucket, uploadKey, upload.uploadId());
+                }
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (Exception e) {
+                // Kept to be resumed with the next backup, and the other uploads are still resumed
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Gets the size of the parts to upload a file of the specified length in, as an upload can have at most 10,000 parts.
+     * @param length the length of the file in bytes
+     * @return the size of the parts in bytes
+     */
+    private long getPartSize(long length) {
+        long minimumSize = (length + MAX_PARTS - 1) / MAX_PARTS;
+        if (partSize >= minimumSize) {
+            return partSize;
+        }
+        return (minimumSize + MEBIBYTE - 1) / MEBIBYTE * MEBIBYTE;
+    }
+
+    /**
+     * Uploads a part of the file, unless an identical part was already uploaded, retrying if uploading it fails.
+     * @param file the file being uploaded
+     * @param key the key of the object being uploaded
+     * @param uploadId the ID of the upload
+     * @param partNumber the number of the part
+     * @param offset the offset of the part in the file
+     * @param length the length of the part
+     * @param uploadedPart the part which was already uploaded with the same number, if any
+     * @return the uploaded part
+     * @throws Exception if reading the part failed, or uploading it failed too many times
+     */
+    @NotNull
+    private Part uploadPart(File file, String key, String uploadId, int partNumber, long offset, long length,
+                            Part uploadedPart) throws Exception {
+        if (uploadedPart != null && uploadedPart.partSize() == length && getETag(file, offset, length).equals(normalizeETag(uploadedPart.etag()))) {
+            return new Part(partNumber, uploadedPart.etag());
+        }
+        long backoffMillis = BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            // Opened again for every attempt, as the client reads the part from the current position
+            try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+                input.seek(offset);
+                return new Part(partNumber, client.uploadPart(bucket, key, uploadId, partNumber, input, length));
+            } catch (InterruptedIOException e) {
+                throw e;
+            } catch (Exception e) {
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+            }
+            TimeUnit.MILLISECONDS.sleep(backoffMillis);
+            backoffMillis *= BACKOFF_FACTOR;
+        }
+    }
+
+    /**
+     * Gets the ETag S3 gives a part of the specified file, the MD5 hash of its contents, reading it in small blocks.
+     * @param file the file
+     * @param offset the offset of the part in the file
+     * @param length the length of the part
+     * @return the ETag
+     * @throws IOException if reading the part failed
+     */
+    @NotNull
+    private static String getETag(@NotNull File file, long offset, long length) throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        byte[] buffer = new byte[64 * 1024];
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            input.seek(offset);
+            long remaining = length;
+            while (remaining > 0) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read == -1) {
+                    throw new EOFException("File is shorter than the part");
+                }
+                digest.update(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        return BackupManifest.toHex(digest.digest());
+    }
+
+    @NotNull
+    private static String normalizeETag(@NotNull String eTag) {
+        return eTag.replace("\"", "").toLowerCase(Locale.ROOT);
+    }
+
+    private static <T> T await(@NotNull Future<T> task) throws Exception {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploading parts");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
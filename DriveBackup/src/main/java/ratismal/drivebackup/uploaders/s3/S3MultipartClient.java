@@ -0,0 +1,166 @@
+package ratismal.drivebackup.uploaders.s3;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import io.minio.ListMultipartUploadsResponse;
+import io.minio.ListPartsResponse;
+import io.minio.MinioAsyncClient;
+import io.minio.messages.ListMultipartUploadsResult;
+import io.minio.messages.ListPartsResult;
+import io.minio.messages.Part;
+import io.minio.messages.Upload;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Exposes the multipart upload operations of the S3 API, which the MinIO client only uses internally.
+ */
+class S3MultipartClient extends MinioAsyncClient {
+
+    S3MultipartClient(MinioAsyncClient client) {
+        super(client);
+    }
+
+    /**
+     * Starts a multipart upload.
+     * @param bucket the bucket to upload to
+     * @param key the key of the object to upload
+     * @param contentType the content type of the object
+     * @return the ID of the upload
+     * @throws Exception if the request failed
+     */
+    @NotNull
+    String createMultipartUpload(String bucket, String key, String contentType) throws Exception {
+        Multimap<String, String> headers = HashMultimap.create();
+        headers.put("Content-Type", contentType);
+        return await(createMultipartUploadAsync(bucket, null, key, headers, null)).result().uploadId();
+    }
+
+    /**
+     * Uploads a part of a multipart upload, streaming it from a file rather than reading it into memory.
+     * @param bucket the bucket the upload is to
+     * @param key the key of the object being uploaded
+     * @param uploadId the ID of the upload
+     * @param partNumber the number of the part, starting at 1
+     * @param file the file, positioned at the start of the part
+     * @param length the length of the part
+     * @return the ETag of the part
+     * @throws Exception if the request failed
+     */
+    @NotNull
+    String uploadPart(String bucket, String key, String uploadId, int partNumber, @NotNull RandomAccessFile file, long length) throws Exception {
+        return await(uploadPartAsync(bucket, null, key, file, length, uploadId, partNumber, null, null)).etag();
+    }
+
+    /**
+     * Lists the parts which were uploaded to a multipart upload.
+     * @param bucket the bucket the upload is to
+     * @param key the key of the object being uploaded
+     * @param uploadId the ID of the upload
+     * @return the parts
+     * @throws Exception if the request failed
+     */
+    @NotNull
+    List<Part> listParts(String bucket, String key, String uploadId) throws Exception {
+        List<Part> parts = new ArrayList<>();
+        int partNumberMarker = 0;
+        while (true) {
+            ListPartsResponse response = await(listPartsAsync(bucket, null, key, null, partNumberMarker, uploadId, null, null));
+            ListPartsResult result = response.result();
+            parts.addAll(result.partList());
+            if (!result.isTruncated()) {
+                return parts;
+            }
+            partNumberMarker = result.nextPartNumberMarker();
+        }
+    }
+
+    /**
+     * Finds the most recently started multipart upload which wasn't completed or aborted to the specified key.
+     * @param bucket the bucket the upload is to
+     * @param key the key of the object being uploaded
+     * @return the ID of the upload, or {@code null} if there is none
+     * @throws Exception if the request failed
+     */
+    @Nullable
+    String findMultipartUpload(String bucket, String key) throws Exception {
+        Upload latestUpload = null;
+        for (Upload upload : listMultipartUploads(bucket, key)) {
+            if (upload.objectName().equals(key) && (latestUpload == null || upload.initiated().isAfter(latestUpload.initiated()))) {
+                latestUpload = upload;
+            }
+        }
+        return latestUpload != null ? latestUpload.uploadId() : null;
+    }
+
+    /**
+     * Lists the multipart uploads which weren't completed or aborted to keys starting with the specified prefix.
+     * @param bucket the bucket the uploads are to
+     * @param prefix the prefix of the keys
+     * @return the uploads
+     * @throws Exception if the request failed
+     */
+    @NotNull
+    List<Upload> listMultipartUploads(String bucket, String prefix) throws Exception {
+        List<Upload> uploads = new ArrayList<>();
+        String keyMarker = null;
+        String uploadIdMarker = null;
+        while (true) {
+            ListMultipartUploadsResponse response = await(listMultipartUploadsAsync(
+                bucket, null, null, null, keyMarker, null, prefix, uploadIdMarker, null, null));
+            ListMultipartUploadsResult result = response.result();
+            uploads.addAll(result.uploads());
+            if (!result.isTruncated()) {
+                return uploads;
+            }
+            keyMarker = result.nextKeyMarker();
+            uploadIdMarker = result.nextUploadIdMarker();
+        }
+    }
+
+    /**
+     * Completes a multipart upload, combining its parts into the object.
+     * @param bucket the bucket the upload is to
+     * @param key the key of the object being uploaded
+     * @param uploadId the ID of the upload
+     * @param parts the parts of the object, in order
+     * @throws Exception if the request failed
+     */
+    void completeMultipartUpload(String bucket, String key, String uploadId, Part[] parts) throws Exception {
+        await(completeMultipartUploadAsync(bucket, null, key, uploadId, parts, null, null));
+    }
+
+    /**
+     * Aborts a multipart upload, deleting the parts which were uploaded to it.
+     * @param bucket the bucket the upload is to
+     * @param key the key of the object being uploaded
+     * @param uploadId the ID of the upload
+     * @throws Exception if the request failed
+     */
+    void abortMultipartUpload(String bucket, String key, String uploadId) throws Exception {
+        await(abortMultipartUploadAsync(bucket, null, key, uploadId, null, null));
+    }
+
+    private static <T> T await(@NotNull CompletableFuture<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for S3 response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
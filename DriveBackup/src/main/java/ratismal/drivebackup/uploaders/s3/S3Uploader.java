@@ -1,34 +1,54 @@
 package ratismal.drivebackup.uploaders.s3;
 
 import io.minio.ListObjectsArgs;
+import io.minio.MinioAsyncClient;
 import io.minio.MinioClient;
+import io.minio.PutObjectArgs;
 import io.minio.RemoveObjectArgs;
+import io.minio.RemoveObjectsArgs;
 import io.minio.Result;
 import io.minio.UploadObjectArgs;
+import io.minio.messages.DeleteError;
+import io.minio.messages.DeleteObject;
 import io.minio.messages.Item;
 import org.jetbrains.annotations.NotNull;
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.ChunkStore;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.configSections.BackupMethods.S3BackupMethod;
 import ratismal.drivebackup.uploaders.Authenticator;
+import ratismal.drivebackup.uploaders.StreamingUploader;
 import ratismal.drivebackup.uploaders.Uploader;
 import ratismal.drivebackup.util.MessageUtil;
 import ratismal.drivebackup.util.NetUtil;
+import ratismal.drivebackup.util.RetentionPolicy;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
 import static ratismal.drivebackup.config.Localization.intl;
 
-public class S3Uploader extends Uploader {
+public class S3Uploader extends Uploader implements StreamingUploader {
 
     public static final String UPLOADER_NAME = "S3";
     public static final String UPLOADER_ID = "s3";
 
+    /**
+     * The size of the parts streamed backups are uploaded in, as their size isn't known in advance
+     */
+    private static final long STREAM_PART_SIZE = 16L * 1024 * 1024;
+
     private MinioClient minioClient;
+    private MultipartUpload multipartUpload;
+    private long partSize;
     
     private String _bucket;
     private String _hostname;
@@ -40,6 +60,16 @@ public class S3Uploader extends Uploader {
             _hostname = new URL(config.endpoint).getHost();
             _bucket = config.bucket;
             minioClient = MinioClient.builder().endpoint(config.endpoint).credentials(config.accessKey, config.secretKey).build();
+            S3MultipartClient multipartClient = new S3MultipartClient(
+                MinioAsyncClient.builder().endpoint(config.endpoint).credentials(config.accessKey, config.secretKey).build());
+            partSize = config.partSize * 1024L * 1024;
+            multipartUpload = new MultipartUpload(
+                multipartClient, 
+                _bucket, 
+                partSize, 
+                config.uploadThreads, 
+                ConfigParser.getConfig().backupStorage.threadPriority
+                );
         } catch(Exception e) {
             MessageUtil.sendConsoleException(e);
             setErrorOccurred(true);
@@ -85,13 +115,56 @@ public class S3Uploader extends Uploader {
         try {
             String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
             String key = destination + "/" + type + "/" + file.getName();
-            minioClient.uploadObject(UploadObjectArgs.builder().bucket(_bucket).object(key).filename(file.getAbsolutePath()).build());
+            uploadObject(file, key);
             try {
-                pruneBackups(type);
+                multipartUpload.resumeIncompleteUploads(destination + "/" + type + "/", key, file.getParentFile(), ArchiveFormat::getMimeType);
             } catch (Exception e) {
-                logger.log(intl("backup-method-prune-failed"));
-                throw e;
+                MessageUtil.sendConsoleException(e);
             }
+            schedulePrune(type, this::pruneBackups);
+        } catch(Exception exception) {
+            NetUtil.catchException(exception, _hostname, logger);
+            MessageUtil.sendConsoleException(exception);
+            setErrorOccurred(true);
+        }
+    }
+
+    @Override
+    public void uploadChunkPacks(List<File> packs, String type) throws Exception {
+        type = normalizeType(type);
+        String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
+        for (File pack : packs) {
+            uploadObject(pack, destination + "/" + type + "/" + ChunkStore.FOLDER_NAME + "/" + pack.getName());
+        }
+    }
+
+    /**
+     * Uploads the specified file to the specified key, using a multipart upload if it's larger than a part.
+     * @param file the file
+     * @param key the key
+     * @throws Exception if uploading failed
+     */
+    private void uploadObject(File file, String key) throws Exception {
+        if (file.length() > partSize) {
+            multipartUpload.upload(file, key, ArchiveFormat.getMimeType(file.getName()));
+        } else {
+            minioClient.uploadObject(UploadObjectArgs.builder().bucket(_bucket).object(key).filename(file.getAbsolutePath()).build());
+        }
+    }
+
+    @Override
+    public void uploadStream(InputStream input, String fileName, String type) {
+        type = normalizeType(type);
+        try {
+            String destination = ConfigParser.getConfig().backupStorage.remoteDirectory;
+            String key = destination + "/" + type + "/" + fileName;
+            minioClient.putObject(PutObjectArgs.builder()
+                .bucket(_bucket)
+                .object(key)
+                .stream(input, -1, STREAM_PART_SIZE)
+                .contentType(ArchiveFormat.getMimeType(fileName))
+                .build());
+            schedulePrune(type, this::pruneBackups);
         } catch(Exception exception) {
             NetUtil.catchException(exception, _hostname, logger);
             MessageUtil.sendConsoleException(exception);
@@ -104,33 +177,55 @@ public class S3Uploader extends Uploader {
     }
 
     public void pruneBackups(String type) throws Exception {
-        int fileLimit = ConfigParser.getConfig().backupStorage.keepCount;
-        if (fileLimit == -1) {
+        RetentionPolicy retentionPolicy = RetentionPolicy.remote();
+        if (retentionPolicy.isUnlimited()) {
             return;
         }
         TreeMap<ZonedDateTime, Item> files = getZipFiles(type);
-        if (files.size() > fileLimit) {
+        List<Map.Entry<ZonedDateTime, Item>> filesToDelete = retentionPolicy.getBackupsToDelete(
+            files.entrySet(), entry -> entry.getKey().toInstant(), entry -> entry.getValue().objectName());
+        if (!filesToDelete.isEmpty()) {
             logger.info(
                     intl("backup-method-limit-reached"),
                     "file-count", String.valueOf(files.size()),
                     "upload-method", getName(),
-                    "file-limit", String.valueOf(fileLimit));
-            while (files.size() > fileLimit) {
-                Map.Entry<ZonedDateTime, Item> firstEntry = files.firstEntry();
-                minioClient.removeObject(RemoveObjectArgs.builder().bucket(_bucket).object(firstEntry.getValue().objectName()).build());
-                files.remove(firstEntry.getKey());
+                    "file-limit", String.valueOf(retentionPolicy.getKeepCount()));
+            List<DeleteObject> objects = new ArrayList<>();
+            for (Map.Entry<ZonedDateTime, Item> file : filesToDelete) {
+                objects.add(new DeleteObject(file.getValue().objectName()));
             }
+            deleteObjects(objects);
+        }
+    }
+
+    /**
+     * Deletes the specified objects, which the client does using batch deletions of up to 1,000 objects each.
+     * @param objects the objects
+     * @throws Exception if a request failed, or an object couldn't be deleted
+     */
+    private void deleteObjects(List<DeleteObject> objects) throws Exception {
+        List<String> failures = new ArrayList<>();
+        // The objects are only deleted while iterating over the results
+        for (Result<DeleteError> result : minioClient.removeObjects(RemoveObjectsArgs.builder().bucket(_bucket).objects(objects).build())) {
+            DeleteError error = result.get();
+            failures.add(error.objectName() + ": " + error.message());
+        }
+        if (!failures.isEmpty()) {
+            throw new IOException("Failed to delete " + failures.size() + " objects: " + String.join(", ", failures));
         }
     }
 
     @NotNull
     private TreeMap<ZonedDateTime, Item> getZipFiles(String type) throws Exception {
         type = normalizeType(type);
-        String prefix = type + "/";
+        // The same prefix backups are uploaded with
+        String prefix = ConfigParser.getConfig().backupStorage.remoteDirectory + "/" + type + "/";
         TreeMap<ZonedDateTime, Item> files = new TreeMap<>();
         for (Result<Item> result : minioClient.listObjects(ListObjectsArgs.builder().bucket(_bucket).prefix(prefix).build())) {
             Item item = result.get();
-            files.put(item.lastModified(), item);
+            if (ArchiveFormat.isArchive(item.objectName())) {
+                files.put(item.lastModified(), item);
+            }
         }
         return files;
     }
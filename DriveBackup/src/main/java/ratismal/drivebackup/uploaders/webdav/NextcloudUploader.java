@@ -3,8 +3,10 @@ package ratismal.drivebackup.uploaders.webdav;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Array;
 import java.net.URL;
+import java.util.Arrays;
 import java.util.UUID;
 
 import com.github.sardine.impl.SardineException;
@@ -13,6 +15,7 @@ import org.jetbrains.annotations.NotNull;
 import ratismal.drivebackup.UploadThread.UploadLogger;
 import ratismal.drivebackup.config.configSections.BackupMethods.NextcloudBackupMethod;
 import ratismal.drivebackup.util.ChunkedFileInputStream;
+import ratismal.drivebackup.util.FileUtil;
 
 public class NextcloudUploader extends WebDAVUploader {
 
@@ -86,4 +89,39 @@ public class NextcloudUploader extends WebDAVUploader {
             }
         }
     }
+
+    @Override
+    public void realUploadStream(@NotNull InputStream input, URL target) throws IOException {
+        if (magic_upload_dir == null) {
+            super.realUploadStream(input, target);
+            return;
+        }
+        String tempdir = magic_upload_dir + "/" + UUID.randomUUID().toString();
+        sardine.createDirectory(tempdir);
+        try {
+            byte[] chunk = new byte[nextcloud.chunkSize];
+            long offset = 0;
+            int length;
+            do {
+                length = FileUtil.readChunk(input, chunk);
+                if (length > 0 || offset == 0) {
+                    byte[] data = length == chunk.length ? chunk : Arrays.copyOf(chunk, length);
+                    sardine.put(tempdir + String.format("/%020d", offset), data);
+                }
+                offset += length;
+            } while (length == chunk.length);
+            try {
+                sardine.move(tempdir + "/.file", target.toString());
+            } catch (SardineException e) {
+                // Assume 504 Gateway Timeout means Nextcloud will succeed reassembling the
+                // file.
+                if (e.getStatusCode() != 504) {
+                    throw e;
+                }
+            }
+        } catch (IOException e) {
+            sardine.delete(tempdir);
+            throw e;
+        }
+    }
 }
@@ -1,16 +1,20 @@
 package ratismal.drivebackup.uploaders.webdav;
 
 import org.jetbrains.annotations.NotNull;
+import ratismal.drivebackup.uploaders.StreamingUploader;
 import ratismal.drivebackup.uploaders.Uploader;
 import ratismal.drivebackup.UploadThread.UploadLogger;
-import ratismal.drivebackup.config.ConfigParser;
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.ChunkStore;
 import ratismal.drivebackup.config.configSections.BackupMethods.WebDAVBackupMethod;
 import ratismal.drivebackup.util.MessageUtil;
 import ratismal.drivebackup.util.NetUtil;
+import ratismal.drivebackup.util.RetentionPolicy;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URL;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
@@ -88,7 +92,7 @@ class SardineCannery {
     }
 }
 
-public class WebDAVUploader extends Uploader {
+public class WebDAVUploader extends Uploader implements StreamingUploader {
 
     Sardine sardine;
     private URL _remoteBaseFolder;
@@ -159,13 +163,38 @@ public class WebDAVUploader extends Uploader {
             createDirectory(_remoteBaseFolder.toString() + "/" + type);
             URL target = new URL(_remoteBaseFolder + "/" + type + "/" + file.getName());
             realUploadFile(file, target);
-            try {
-                pruneBackups(type);
-            } catch (Exception e) {
-                logger.log(intl("backup-method-prune-failed"));
-                
-                throw e;
-            }
+            schedulePrune(type, this::pruneBackups);
+        } catch (Exception exception) {
+            NetUtil.catchException(exception, _remoteBaseFolder.getHost(), logger);
+            MessageUtil.sendConsoleException(exception);
+            setErrorOccurred(true);
+        }
+    }
+
+    @Override
+    public void uploadChunkPacks(List<File> packs, String type) throws Exception {
+        type = type.replaceAll(".{1,2}[/\\\\]", "");
+        String folder = _remoteBaseFolder + "/" + type + "/" + ChunkStore.FOLDER_NAME;
+        createDirectory(folder);
+        for (File pack : packs) {
+            realUploadFile(pack, new URL(folder + "/" + pack.getName()));
+        }
+    }
+
+    /**
+     * Uploads a backup to the WebDAV server inside a folder for the specified file type, while it's being created.
+     * @param input the contents of the backup
+     * @param fileName the name of the backup file
+     * @param type the type of file (ex. plugins, world)
+     */
+    @Override
+    public void uploadStream(InputStream input, String fileName, String type) {
+        try {
+            type = type.replaceAll(".{1,2}[/\\\\]", "");
+            createDirectory(_remoteBaseFolder.toString() + "/" + type);
+            URL target = new URL(_remoteBaseFolder + "/" + type + "/" + fileName);
+            realUploadStream(input, target);
+            schedulePrune(type, this::pruneBackups);
         } catch (Exception exception) {
             NetUtil.catchException(exception, _remoteBaseFolder.getHost(), logger);
             MessageUtil.sendConsoleException(exception);
@@ -173,35 +202,49 @@ public class WebDAVUploader extends Uploader {
         }
     }
 
+    public void realUploadStream(@NotNull InputStream input, @NotNull URL target) throws IOException {
+        try {
+            sardine.put(target.toString(), input, (String) null, true);
+        } catch (IOException e) {
+            // Don't leave a partial backup behind
+            try {
+                sardine.delete(target.toString());
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+    }
+
     /**
-     * Deletes the oldest files past the number to retain from the FTP server inside the specified folder for the file type.
+     * Deletes the files which aren't retained from the FTP server inside the specified folder for the file type.
      * <p>
-     * The number of files to retain is specified by the user in the {@code config.yml}
+     * The number of files, and hours, days, weeks and months of files to retain is specified by the user in the {@code config.yml}
      * @param type the type of file (ex. plugins, world)
      * @throws Exception
      */
     public void pruneBackups(String type) throws Exception {
-        int fileLimit = ConfigParser.getConfig().backupStorage.keepCount;
-        if (fileLimit == -1) {
+        RetentionPolicy retentionPolicy = RetentionPolicy.remote();
+        if (retentionPolicy.isUnlimited()) {
             return;
         }
         TreeMap<Date, DavResource> files = getZipFiles(type);
-        if (files.size() > fileLimit) {
+        List<Map.Entry<Date, DavResource>> filesToDelete = retentionPolicy.getBackupsToDelete(
+            files.entrySet(), entry -> entry.getKey().toInstant(), entry -> entry.getValue().getName());
+        if (!filesToDelete.isEmpty()) {
             logger.info(
                 intl("backup-method-limit-reached"), 
                 "file-count", String.valueOf(files.size()),
                 "upload-method", getName(),
-                "file-limit", String.valueOf(fileLimit));
-            while (files.size() > fileLimit) {
-                sardine.delete(new URL(_remoteBaseFolder + "/" + type + "/" + files.firstEntry().getValue().getName()).toString());
-                files.remove(files.firstKey());
+                "file-limit", String.valueOf(retentionPolicy.getKeepCount()));
+            for (Map.Entry<Date, DavResource> file : filesToDelete) {
+                sardine.delete(new URL(_remoteBaseFolder + "/" + type + "/" + file.getValue().getName()).toString());
             }
         }
     }
 
     /**
-     * Returns a list of ZIP files, and their modification dates inside the current working directory.
-     * @return a map of ZIP files, and their modification dates
+     * Returns a list of backup archives, and their modification dates inside the current working directory.
+     * @return a map of backup archives, and their modification dates
      * @throws Exception
      */
     @NotNull
@@ -209,7 +252,7 @@ public class WebDAVUploader extends Uploader {
         TreeMap<Date, DavResource> files = new TreeMap<>();
         List<DavResource> resources = sardine.list(new URL(_remoteBaseFolder + "/" + type).toString());
         for (DavResource resource : resources) {
-            if (resource.getName().endsWith(".zip")) {
+            if (ArchiveFormat.isArchive(resource.getName())) {
                 files.put(resource.getModified(), resource);
             }
         }
@@ -0,0 +1,182 @@
+package ratismal.drivebackup.util;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A compiled list of glob patterns of files/folders to not include in a backup.
+ * <p>
+ * Patterns are indexed in a trie by the literal folder names they start with, so a path is only tested against the
+ * patterns which could match it. Patterns ending with {@code /**} also match folders, so that everything in a
+ * blacklisted folder can be excluded without testing each file in it.
+ */
+public class Blacklist {
+    private static final String ANY_DESCENDANT = "/**";
+    private static final String GLOB_SPECIAL_CHARACTERS = "*?[]{}\\";
+
+    /**
+     * Whether the default file system matches globs case-insensitively, like Windows does
+     */
+    private static final boolean CASE_INSENSITIVE = File.separatorChar == '\\';
+
+    private final List<BlacklistEntry> entries;
+    private final PathMatcher[] folderMatchers;
+    private final Node root = new Node();
+
+    /**
+     * Creates an instance of the {@code Blacklist} object
+     * @param globPatterns the glob patterns, in the order they were configured in
+     */
+    public Blacklist(@NotNull List<String> globPatterns) {
+        entries = new ArrayList<>(globPatterns.size());
+        folderMatchers = new PathMatcher[globPatterns.size()];
+        for (int i = 0; i < globPatterns.size(); i++) {
+            String globPattern = globPatterns.get(i);
+            entries.add(new BlacklistEntry(
+                globPattern,
+                FileSystems.getDefault().getPathMatcher("glob:" + globPattern)
+                ));
+            folderMatchers[i] = compileFolderMatcher(globPattern);
+            Node node = root;
+            for (String name : getLiteralPrefix(globPattern)) {
+                node = node.children.computeIfAbsent(name, key -> new Node());
+            }
+            node.entries.add(i);
+        }
+    }
+
+    /**
+     * Gets the entries of the blacklist, with the number of files each of them excluded.
+     * @return the entries, in the order they were configured in
+     */
+    public List<BlacklistEntry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Finds the first entry matching the specified file.
+     * @param relativePath the path of the file, relative to the folder being backed up
+     * @return the entry, or {@code null} if the file isn't blacklisted
+     */
+    @Nullable
+    public BlacklistEntry match(@NotNull Path relativePath) {
+        int match = Integer.MAX_VALUE;
+        Node node = root;
+        for (int depth = 0; node != null; depth++) {
+            for (int index : node.entries) {
+                if (index < match && entries.get(index).getPathMatcher().matches(relativePath)) {
+                    match = index;
+                }
+            }
+            node = depth < relativePath.getNameCount() ? node.getChild(relativePath.getName(depth)) : null;
+        }
+        return match != Integer.MAX_VALUE ? entries.get(match) : null;
+    }
+
+    /**
+     * Finds the first entry matching every file in the specified folder, no matter how deep in it.
+     * @param relativePath the path of the folder, relative to the folder being backed up
+     * @return the entry, or {@code null} if the files in the folder have to be matched individually
+     */
+    @Nullable
+    public BlacklistEntry matchFolder(@NotNull Path relativePath) {
+        int match = Integer.MAX_VALUE;
+        Node node = root;
+        for (int depth = 0; node != null; depth++) {
+            for (int index : node.entries) {
+                if (index < match && folderMatchers[index] != null && folderMatchers[index].matches(relativePath)) {
+                    match = index;
+                }
+            }
+            node = depth < relativePath.getNameCount() ? node.getChild(relativePath.getName(depth)) : null;
+        }
+        return match != Integer.MAX_VALUE ? entries.get(match) : null;
+    }
+
+    /**
+     * Compiles a matcher for the folders everything in which the specified glob pattern matches.
+     * <p>
+     * If a pattern ending with {@code /**} matches a folder without that suffix, it matches everything in the folder.
+     * @param globPattern the glob pattern
+     * @return the matcher, or {@code null} if the pattern doesn't match whole folders
+     */
+    @Nullable
+    private static PathMatcher compileFolderMatcher(@NotNull String globPattern) {
+        if (globPattern.equals("**")) {
+            return path -> true;
+        }
+        if (!globPattern.endsWith(ANY_DESCENDANT) || globPattern.length() == ANY_DESCENDANT.length()) {
+            return null;
+        }
+        String folderPattern = globPattern.substring(0, globPattern.length() - ANY_DESCENDANT.length());
+        if (folderPattern.endsWith("\\")) {
+            // The separator is escaped
+            return null;
+        }
+        try {
+            return FileSystems.getDefault().getPathMatcher("glob:" + folderPattern);
+        } catch (PatternSyntaxException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Gets the folder names the specified glob pattern starts with, which every path it matches has to start with.
+     * @param globPattern the glob pattern
+     * @return the names, up to the first name containing a special character
+     */
+    @NotNull
+    private static List<String> getLiteralPrefix(@NotNull String globPattern) {
+        List<String> names = new ArrayList<>();
+        for (String name : globPattern.split("/", -1)) {
+            if (name.isEmpty() || containsSpecialCharacter(name)) {
+                break;
+            }
+            names.add(normalizeName(name));
+        }
+        return names;
+    }
+
+    private static boolean containsSpecialCharacter(@NotNull String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (GLOB_SPECIAL_CHARACTERS.indexOf(name.charAt(i)) != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @NotNull
+    private static String normalizeName(@NotNull String name) {
+        return CASE_INSENSITIVE ? name.toLowerCase(Locale.ROOT) : name;
+    }
+
+    /**
+     * A node of the trie, holding the indices of the entries whose literal prefix ends at it
+     */
+    private static final class Node {
+        private final Map<String, Node> children = new HashMap<>();
+        private final List<Integer> entries = new ArrayList<>();
+
+        @Nullable
+        private Node getChild(@NotNull Path name) {
+            return children.isEmpty() ? null : children.get(normalizeName(name.toString()));
+        }
+    }
+}
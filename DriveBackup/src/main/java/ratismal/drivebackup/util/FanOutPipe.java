@@ -0,0 +1,258 @@
+package ratismal.drivebackup.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A pipe with a single writer and any number of readers, which each read everything written to the pipe.
+ * <p>
+ * Written data is split into chunks, which are kept in memory until every reader has read them. If the slowest reader
+ * falls more than the maximum number of chunks behind, the writer blocks. Closing a reader detaches it from the pipe,
+ * so a reader which failed doesn't hold up the others.
+ * <p>
+ * The writer has to explicitly {@link #finish()} the pipe for readers to reach the end of the stream, closing the
+ * output stream doesn't. This way, a writer which failed part way through can {@link #fail(IOException)} the pipe
+ * instead, and readers will never mistake what was written so far for the complete stream.
+ */
+public class FanOutPipe {
+    private final int chunkSize;
+    private final int maxChunks;
+    private final List<byte[]> chunks = new ArrayList<>();
+    private final List<PipeInputStream> readers = new ArrayList<>();
+    private final PipeOutputStream outputStream = new PipeOutputStream();
+    /**
+     * The index of the first chunk in {@code chunks}, as chunks read by every reader are removed
+     */
+    private long firstChunk;
+    private long size;
+    private boolean finished;
+    private IOException failure;
+
+    /**
+     * Creates an instance of the {@code FanOutPipe} object
+     * @param chunkSize the size of each chunk in bytes
+     * @param maxChunks the maximum number of chunks kept in memory
+     */
+    public FanOutPipe(int chunkSize, int maxChunks) {
+        this.chunkSize = chunkSize;
+        this.maxChunks = maxChunks;
+    }
+
+    /**
+     * Creates a new reader, which reads everything written to the pipe.
+     * <p>
+     * All readers must be created before anything is written to the pipe.
+     * @return the reader
+     */
+    @NotNull
+    public synchronized InputStream newReader() {
+        if (firstChunk != 0 || !chunks.isEmpty() || outputStream.position != 0) {
+            throw new IllegalStateException("Readers must be created before writing to the pipe");
+        }
+        PipeInputStream reader = new PipeInputStream();
+        readers.add(reader);
+        return reader;
+    }
+
+    /**
+     * Gets the stream to write to the pipe with.
+     * @return the stream
+     */
+    @NotNull
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Gets the number of bytes written to the pipe so far.
+     * @return the number of bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Marks the pipe as complete, so readers reach the end of the stream once they've read everything written to it.
+     * @throws IOException if the pipe was already failed
+     */
+    public void finish() throws IOException {
+        outputStream.flushChunk();
+        synchronized (this) {
+            if (failure != null) {
+                throw failure;
+            }
+            finished = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Marks the pipe as failed, so readers throw the specified exception instead of reaching the end of the stream.
+     * @param exception the reason the pipe failed
+     */
+    public synchronized void fail(@NotNull IOException exception) {
+        if (finished) {
+            return;
+        }
+        failure = exception;
+        chunks.clear();
+        notifyAll();
+    }
+
+    /**
+     * Publishes a chunk to the readers, waiting for space if the slowest reader is too far behind.
+     * @param chunk the chunk
+     * @throws IOException if there are no readers left, or the pipe has failed
+     */
+    private synchronized void publish(byte @NotNull [] chunk) throws IOException {
+        while (failure == null && !readers.isEmpty() && chunks.size() >= maxChunks) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for readers");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (finished) {
+            throw new IOException("Pipe has already been finished");
+        }
+        if (readers.isEmpty()) {
+            throw new IOException("All readers of the pipe have been closed");
+        }
+        chunks.add(chunk);
+        size += chunk.length;
+        notifyAll();
+    }
+
+    /**
+     * Removes chunks which have been read by every reader.
+     */
+    private void removeReadChunks() {
+        long lowestChunk = firstChunk + chunks.size();
+        for (PipeInputStream reader : readers) {
+            lowestChunk = Math.min(lowestChunk, reader.chunkIndex);
+        }
+        int readChunks = (int) (lowestChunk - firstChunk);
+        if (readChunks > 0) {
+            chunks.subList(0, readChunks).clear();
+            firstChunk = lowestChunk;
+            notifyAll();
+        }
+    }
+
+    private final class PipeOutputStream extends OutputStream {
+        private byte[] buffer;
+        private int position;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte @NotNull [] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (buffer == null) {
+                    buffer = new byte[chunkSize];
+                }
+                int length = Math.min(len, chunkSize - position);
+                System.arraycopy(b, off, buffer, position, length);
+                position += length;
+                off += length;
+                len -= length;
+                if (position == chunkSize) {
+                    flushChunk();
+                }
+            }
+        }
+
+        /**
+         * Publishes the data buffered so far as a chunk, if there is any.
+         */
+        private void flushChunk() throws IOException {
+            if (position == 0) {
+                return;
+            }
+            byte[] chunk = position == chunkSize ? buffer : Arrays.copyOf(buffer, position);
+            buffer = null;
+            position = 0;
+            publish(chunk);
+        }
+    }
+
+    private final class PipeInputStream extends InputStream {
+        private long chunkIndex;
+        private int offset;
+        private boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int read = read(b, 0, 1);
+            return read < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte @NotNull [] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            byte[] chunk;
+            synchronized (FanOutPipe.this) {
+                if (closed) {
+                    throw new IOException("Stream closed");
+                }
+                while (failure == null && chunkIndex >= firstChunk + chunks.size()) {
+                    if (finished) {
+                        return -1;
+                    }
+                    try {
+                        FanOutPipe.this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for the writer");
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                chunk = chunks.get((int) (chunkIndex - firstChunk));
+            }
+            // Chunks are never modified once published, so they can be copied from without holding the lock
+            int length = Math.min(len, chunk.length - offset);
+            System.arraycopy(chunk, offset, b, off, length);
+            offset += length;
+            if (offset == chunk.length) {
+                synchronized (FanOutPipe.this) {
+                    chunkIndex++;
+                    offset = 0;
+                    removeReadChunks();
+                }
+            }
+            return length;
+        }
+
+        @Override
+        public void close() {
+            synchronized (FanOutPipe.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                readers.remove(this);
+                removeReadChunks();
+                FanOutPipe.this.notifyAll();
+            }
+        }
+    }
+}
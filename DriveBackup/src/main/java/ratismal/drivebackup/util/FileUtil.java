@@ -2,29 +2,64 @@ package ratismal.drivebackup.util;
 
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ratismal.drivebackup.UploadThread.UploadLogger;
+import ratismal.drivebackup.archive.ArchiveFormat;
+import ratismal.drivebackup.archive.ArchiveWriter;
+import ratismal.drivebackup.archive.BackupManifest;
+import ratismal.drivebackup.archive.BackupManifest.FileState;
+import ratismal.drivebackup.archive.BackupRestorer;
+import ratismal.drivebackup.archive.ChunkStore;
+import ratismal.drivebackup.archive.CompressionPolicy;
+import ratismal.drivebackup.archive.DedupArchiveWriter;
+import ratismal.drivebackup.archive.GeneratedFileAttributes;
+import ratismal.drivebackup.archive.ParallelZipWriter;
+import ratismal.drivebackup.archive.RegionDelta;
+import ratismal.drivebackup.archive.RegionFile;
+import ratismal.drivebackup.archive.TarArchiveWriter;
 import ratismal.drivebackup.config.ConfigParser;
 import ratismal.drivebackup.config.ConfigParser.Config;
+import ratismal.drivebackup.config.configSections.BackupStorage;
 import ratismal.drivebackup.exceptions.AbsolutePathException;
+import ratismal.drivebackup.uploaders.StreamingUpload;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
 import java.nio.file.Paths;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import static ratismal.drivebackup.config.Localization.intl;
 
@@ -34,13 +69,89 @@ import static ratismal.drivebackup.config.Localization.intl;
 
 public class FileUtil {
     private static final String NAME_KEYWORD = "%NAME";
+    private static final String INCREMENTAL_SUFFIX = "-incremental";
 
     private UploadLogger logger;
+    /**
+     * The threads shared by the backups created at once, so creating several at once doesn't multiply the number of threads
+     */
+    private ExecutorService compressionExecutor;
+    private ForkJoinPool scanPool;
+    private int concurrentBackups = 1;
 
     public FileUtil(UploadLogger logger) {
         this.logger = logger;
     }
 
+    /**
+     * Sets the number of backups created at once, which share the compression threads specified by the user in the {@code config.yml}.
+     * @param concurrentBackups the number of backups
+     */
+    public synchronized void setConcurrentBackups(int concurrentBackups) {
+        this.concurrentBackups = Math.max(1, concurrentBackups);
+    }
+
+    /**
+     * Gets the number of compression threads each of the backups created at once can use.
+     * @return the number of threads
+     */
+    private synchronized int getCompressionWorkers() {
+        return Math.max(1, ConfigParser.getConfig().backupStorage.compressionThreads / concurrentBackups);
+    }
+
+    /**
+     * Gets the pool of threads compressing the backups, creating it if it doesn't exist yet.
+     * @return the pool
+     */
+    @NotNull
+    private synchronized ExecutorService getCompressionExecutor() {
+        if (compressionExecutor == null) {
+            BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+            compressionExecutor = Executors.newFixedThreadPool(
+                backupStorage.compressionThreads, 
+                new NamedThreadFactory("Compression", backupStorage.threadPriority)
+                );
+        }
+        return compressionExecutor;
+    }
+
+    /**
+     * Gets the pool of threads scanning the folders to back up, creating it if it doesn't exist yet.
+     * @return the pool
+     */
+    @NotNull
+    private synchronized ForkJoinPool getScanPool() {
+        if (scanPool == null) {
+            BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+            scanPool = new ForkJoinPool(
+                backupStorage.compressionThreads,
+                forkJoinPool -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+                    thread.setName("DriveBackupV2-Scan-" + (thread.getPoolIndex() + 1));
+                    thread.setPriority(backupStorage.threadPriority);
+                    return thread;
+                },
+                null,
+                false);
+        }
+        return scanPool;
+    }
+
+    /**
+     * Stops the threads shared by the backups, once every backup has been created.
+     */
+    public synchronized void shutdownThreadPools() {
+        if (compressionExecutor != null) {
+            compressionExecutor.shutdownNow();
+            compressionExecutor = null;
+        }
+        if (scanPool != null) {
+            scanPool.shutdownNow();
+            scanPool = null;
+        }
+        concurrentBackups = 1;
+    }
+
     /**
      * Gets the local backups in the specified folder as a {@code TreeMap} with their creation date and a reference to them.
      * @param location the location of the folder containing the backups
@@ -56,7 +167,7 @@ public class FileUtil {
             return backupList;
         }
         for (File file : files) {
-            if (file.getName().endsWith(".zip")) {
+            if (ArchiveFormat.isArchive(file.getName())) {
                 backupList.put((file.lastModified() / 1000), file);
             }
         }
@@ -64,13 +175,35 @@ public class FileUtil {
     }
 
     /**
-     * Creates a local backup zip file for the specified file/folder.
+     * Creates a local backup archive file for the specified file/folder, in the archive format specified by the user in the {@code config.yml}.
      * @param location the location of the file or folder
      * @param formatter the format of the file name
      * @param blacklistGlobs a list of glob patterns of files/folders to not include in the backup.
      * @throws Exception
      */
     public void makeBackup(@NotNull String location, LocalDateTimeFormatter formatter, List<String> blacklistGlobs) throws Exception {
+        makeBackup(location, formatter, blacklistGlobs, null, true);
+    }
+
+    /**
+     * Creates a backup archive for the specified file/folder, uploading it while it's being created if a {@code StreamingUpload} is specified.
+     * <p>
+     * If incremental backups are enabled in the {@code config.yml}, only files which changed since the previous backup are
+     * included, unless a full backup is due. Restoring an incremental backup requires the last full backup and every
+     * incremental backup after it, extracted in order, deleting the files listed in each backup's deleted files list.
+     * Once the backup is uploaded, {@link #finishIncrementalBackup(String, boolean)} must be called for the next
+     * incremental backup to be based on it.
+     * <p>
+     * Compression and scanning threads are shared with the other backups being created, until {@link #shutdownThreadPools()} is called.
+     * @param location the location of the file or folder
+     * @param formatter the format of the file name
+     * @param blacklistGlobs a list of glob patterns of files/folders to not include in the backup.
+     * @param streamingUpload the upload to stream the backup to, or {@code null} to only create a local backup
+     * @param keepLocalFile whether to also write the backup to a local file when streaming it
+     * @throws Exception
+     */
+    public void makeBackup(@NotNull String location, LocalDateTimeFormatter formatter, List<String> blacklistGlobs, 
+                           @Nullable StreamingUpload streamingUpload, boolean keepLocalFile) throws Exception {
         Config config = ConfigParser.getConfig();
         if (location.charAt(0) == '/') {
             throw new AbsolutePathException("Location cannot start with a slash");
@@ -81,20 +214,13 @@ public class FileUtil {
         if (isBaseFolder(subFolderName)) {
             subFolderName = "root";
         }
-        File path = new File(escapeBackupLocation(config.backupStorage.localDirectory + "/" + subFolderName));
+        File path = getBackupFolder(location);
         if (!path.exists()) {
             path.mkdirs();
         }
-        List<BlacklistEntry> blacklist = new ArrayList<>();
-        for (String blacklistGlob : blacklistGlobs) {
-            BlacklistEntry blacklistEntry = new BlacklistEntry(
-                blacklistGlob, 
-                FileSystems.getDefault().getPathMatcher("glob:" + blacklistGlob)
-                );
-            blacklist.add(blacklistEntry);
-        }
+        Blacklist blacklist = new Blacklist(blacklistGlobs);
         BackupFileList fileList = generateFileList(location, blacklist);
-        for (BlacklistEntry blacklistEntry : fileList.getBlacklist()) {
+        for (BlacklistEntry blacklistEntry : fileList.getBlacklist().getEntries()) {
             String globPattern = blacklistEntry.getGlobPattern();
             int blacklistedFiles = blacklistEntry.getBlacklistedFiles();
             if (blacklistedFiles > 0) {
@@ -115,13 +241,97 @@ public class FileUtil {
             String lastFolderName = location.substring(lastSeparatorIndex + 1);
             fileName = fileName.replace(NAME_KEYWORD, lastFolderName);
         }
-        zipIt(location, path.getPath() + "/" + fileName, fileList);
+        fileName = config.backupStorage.archiveFormat.applyExtension(fileName);
+        File manifestFile = new File(path, BackupManifest.FILE_NAME);
+        BackupManifest previousManifest = null;
+        BackupManifest manifest = null;
+        // Deduplicating backups only store changed chunks anyway, and need every file to be listed in each snapshot
+        if (config.backupStorage.incrementalBackups && config.backupStorage.archiveFormat != ArchiveFormat.DEDUP) {
+            previousManifest = BackupManifest.load(manifestFile);
+            if (previousManifest != null && previousManifest.getBackupsSinceFull() + 1 >= config.backupStorage.fullBackupInterval) {
+                previousManifest = null;
+            }
+            manifest = new BackupManifest(previousManifest == null ? 0 : previousManifest.getBackupsSinceFull() + 1);
+        }
+        if (previousManifest != null) {
+            fileName = markIncremental(fileName);
+        }
+        String outputFilePath = path.getPath() + "/" + fileName;
+        if (streamingUpload == null) {
+            archiveIt(location, new FileOutputStream(outputFilePath), fileList, previousManifest, manifest);
+        } else {
+            File localFile = keepLocalFile ? new File(outputFilePath) : null;
+            OutputStream outputStream = streamingUpload.start(fileName, subFolderName, localFile);
+            try {
+                archiveIt(location, outputStream, fileList, previousManifest, manifest);
+            } catch (Exception exception) {
+                streamingUpload.abort(exception);
+                throw exception;
+            }
+            streamingUpload.finish();
+        }
+        if (manifest != null) {
+            // The previous manifest is kept until the backup is safely stored, see finishIncrementalBackup()
+            manifest.save(new File(path, BackupManifest.PENDING_FILE_NAME));
+        }
+    }
+
+    /**
+     * Completes the incremental backup of the specified file/folder made by {@link #makeBackup}.
+     * <p>
+     * If the backup is safely stored, the next incremental backup is based on it. Otherwise, the previous manifest is kept,
+     * so the next incremental backup includes the changes in this backup again, rather than leaving a gap in the chain of
+     * backups needed to restore it.
+     * @param location the location of the file or folder
+     * @param backupStored whether the backup is kept locally or was uploaded to every backup method
+     */
+    public static void finishIncrementalBackup(@NotNull String location, boolean backupStored) {
+        File folder = getBackupFolder(location);
+        try {
+            if (backupStored) {
+                BackupManifest.commitPending(folder);
+            } else {
+                BackupManifest.discardPending(folder);
+            }
+        } catch (IOException e) {
+            MessageUtil.sendConsoleException(e);
+        }
+    }
+
+    /**
+     * Whether the backup with the specified file name is an incremental backup, which needs the backups before it back to
+     * the last full backup to be restored.
+     * @param fileName the file name
+     * @return whether the backup is incremental
+     */
+    public static boolean isIncremental(@NotNull String fileName) {
+        ArchiveFormat format = ArchiveFormat.fromFileName(fileName);
+        int extensionIndex = fileName.length();
+        if (format != null) {
+            extensionIndex -= format.getExtension().length();
+        }
+        return fileName.startsWith(INCREMENTAL_SUFFIX, extensionIndex - INCREMENTAL_SUFFIX.length());
+    }
+
+    /**
+     * Inserts the incremental suffix into the specified backup file name, before its extension.
+     * @param fileName the file name
+     * @return the file name of an incremental backup
+     */
+    @NotNull
+    private static String markIncremental(@NotNull String fileName) {
+        ArchiveFormat format = ArchiveFormat.fromFileName(fileName);
+        int extensionIndex = fileName.length();
+        if (format != null) {
+            extensionIndex -= format.getExtension().length();
+        }
+        return fileName.substring(0, extensionIndex) + INCREMENTAL_SUFFIX + fileName.substring(extensionIndex);
     }
 
     /**
-     * Deletes the oldest files in the specified folder past the number to retain locally.
+     * Deletes the files in the specified folder which aren't retained locally.
      * <p>
-     * The number of files to retain locally is specified by the user in the {@code config.yml}
+     * The number of files, and hours, days, weeks and months of files to retain locally is specified by the user in the {@code config.yml}
      * @param location the location of the folder containing the backups
      * @param formatter the format of the file name
      */
@@ -131,15 +341,17 @@ public class FileUtil {
             location = "root";
         }
         logger.log(intl("local-backup-pruning-start"), "location", location);
-        int localKeepCount = ConfigParser.getConfig().backupStorage.localKeepCount;
-        if (localKeepCount == -1) {
+        RetentionPolicy retentionPolicy = RetentionPolicy.local();
+        if (retentionPolicy.isUnlimited()) {
             logger.info(intl("local-backup-no-limit"));
         } else {
             try {
                 TreeMap<Long, File> backupList = getLocalBackups(location, formatter);
+                List<Map.Entry<Long, File>> backupsToDelete = retentionPolicy.getBackupsToDelete(
+                    backupList.entrySet(), entry -> Instant.ofEpochSecond(entry.getKey()), entry -> entry.getValue().getName());
                 String size = String.valueOf(backupList.size());
-                String keepCount = String.valueOf(localKeepCount);
-                if (backupList.size() > localKeepCount) {
+                String keepCount = String.valueOf(retentionPolicy.getKeepCount());
+                if (!backupsToDelete.isEmpty()) {
                     logger.info(intl("local-backup-limit-reached"),
                                 "backup-count", size,
                                 "backup-limit", keepCount);
@@ -149,9 +361,8 @@ public class FileUtil {
                                 "backup-limit", keepCount);
                     return;
                 }
-                while (backupList.size() > localKeepCount) {
-                    File fileToDelete = backupList.descendingMap().lastEntry().getValue();
-                    long dateOfFile = backupList.descendingMap().lastKey();
+                for (Map.Entry<Long, File> backup : backupsToDelete) {
+                    File fileToDelete = backup.getValue();
                     if (!fileToDelete.delete()) {
                         logger.log(intl("local-backup-file-failed-to-delete"),
                                    "local-backup-name", fileToDelete.getName());
@@ -159,7 +370,6 @@ public class FileUtil {
                         logger.info(intl("local-backup-file-deleted"),
                                     "local-backup-name", fileToDelete.getName());
                     }
-                    backupList.remove(dateOfFile);
                 }
                 logger.log(intl("local-backup-pruning-complete"), "location", location);
             } catch (Exception e) {
@@ -170,149 +380,442 @@ public class FileUtil {
     }
 
     /**
-     * Zips files in the specified folder into the specified file location.
-     * @param inputFolderPath the path of the zip file to create
-     * @param outputFilePath the path of the folder to put it in
-     * @param fileList file to include in the zip
+     * Archives files in the specified folder into the specified file location.
+     * <p>
+     * Compression is done in parallel, using the number of threads specified by the user in the {@code config.yml}.
+     * Files which are already compressed are stored as is in zip files.
+     * <p>
+     * If a previous manifest is specified, only files which changed since it was recorded are archived, along with a list of
+     * the files deleted since.
+     * @param inputFolderPath the path of the folder to archive
+     * @param outputStream where to write the archive to, closed once the archive is complete
+     * @param fileList file to include in the archive
+     * @param previousManifest the manifest of the previous backup, or {@code null} to archive every file
+     * @param manifest the manifest to record the state of the archived files in, or {@code null} to not record it
      */
-    private void zipIt(String inputFolderPath, String outputFilePath, BackupFileList fileList) throws Exception {
-        byte[] buffer = new byte[1024];
-        FileOutputStream fileOutputStream;
-        ZipOutputStream zipOutputStream = null;
+    private void archiveIt(String inputFolderPath, OutputStream outputStream, BackupFileList fileList, 
+                           @Nullable BackupManifest previousManifest, @Nullable BackupManifest manifest) throws Exception {
+        Config config = ConfigParser.getConfig();
         String formattedInputFolderPath = new File(inputFolderPath).getName();
         if (isBaseFolder(inputFolderPath)) {
             formattedInputFolderPath = "root";
         }
-        try {
-            fileOutputStream = new FileOutputStream(outputFilePath);
-            zipOutputStream = new ZipOutputStream(fileOutputStream);
-            zipOutputStream.setLevel(ConfigParser.getConfig().backupStorage.zipCompression);
-            for (String file : fileList.getList()) {
-                ZipEntry entry = new ZipEntry(formattedInputFolderPath + "/" + file);
+        CompressionPolicy compressionPolicy = new CompressionPolicy(
+            config.backupStorage.storeUncompressed, 
+            config.backupStorage.compressionMinimumSavings
+            );
+        int changedFiles = 0;
+        try (ArchiveWriter archiveWriter = createArchiveWriter(outputStream, compressionPolicy, getBackupFolder(inputFolderPath))) {
+            for (BackupFile backupFile : fileList.getList()) {
+                String file = backupFile.path;
                 String filePath = inputFolderPath + "/" + file;
-                BasicFileAttributes fileAttributes = null;
-                try {
-                    fileAttributes = Files.readAttributes(Paths.get(filePath), BasicFileAttributes.class);
-                } catch(Exception e) { }
-                if (fileAttributes == null) {
-                    logger.info(
-                        intl("local-backup-failed-attributes"),
-                        "file-path", filePath);
-                } else {
-                    entry.setCreationTime(fileAttributes.creationTime());
-                    entry.setLastAccessTime(fileAttributes.lastAccessTime());
-                    entry.setLastModifiedTime(fileAttributes.lastModifiedTime());
-                    entry.setSize(fileAttributes.size());
+                // Read while scanning, so they don't have to be read again
+                BasicFileAttributes fileAttributes = backupFile.attributes;
+                if (previousManifest != null && manifest != null && fileAttributes != null) {
+                    FileState previousState = previousManifest.get(file);
+                    if (previousState != null && isUnchanged(previousState, filePath, fileAttributes)) {
+                        manifest.put(file, new FileState(
+                            fileAttributes.size(), 
+                            fileAttributes.lastModifiedTime().toMillis(), 
+                            previousState.getHash(),
+                            previousState.getRegionTimestamps()));
+                        continue;
+                    }
                 }
-                zipOutputStream.putNextEntry(entry);
-                try (FileInputStream fileInputStream = new FileInputStream(filePath)){
-                    int len;
-                    while ((len = fileInputStream.read(buffer)) > 0) {
-                        zipOutputStream.write(buffer, 0, len);
+                String entryName = formattedInputFolderPath + "/" + file;
+                int[] regionTimestamps = null;
+                if (manifest != null && config.backupStorage.regionFileDeltas && RegionFile.isRegionFile(file)) {
+                    FileState previousState = previousManifest != null ? previousManifest.get(file) : null;
+                    if (previousState != null && previousState.getRegionTimestamps() != null && fileAttributes != null) {
+                        regionTimestamps = putRegionDelta(archiveWriter, entryName, filePath, fileAttributes, previousState.getRegionTimestamps());
+                        if (regionTimestamps != null) {
+                            manifest.put(file, new FileState(
+                                fileAttributes.size(),
+                                fileAttributes.lastModifiedTime().toMillis(),
+                                null,
+                                regionTimestamps));
+                            changedFiles++;
+                            continue;
+                        }
                     }
-                } catch (Exception e) {
-                    // Don't send warning for .lock files, they will always be locked.
-                    if (!filePath.endsWith(".lock")) {
-                        logger.info(
-                            intl("local-backup-failed-to-include"),
-                            "file-path", filePath);
+                    // Read before the region file is archived, so chunks saved in the meantime are included in the next delta
+                    regionTimestamps = RegionFile.readTimestamps(new File(filePath));
+                }
+                boolean included;
+                DigestInputStream digestInputStream = null;
+                try (FileInputStream fileInputStream = new FileInputStream(filePath)) {
+                    InputStream inputStream = fileInputStream;
+                    if (manifest != null) {
+                        digestInputStream = new DigestInputStream(fileInputStream, BackupManifest.newDigest());
+                        inputStream = digestInputStream;
+                    }
+                    included = archiveWriter.putEntry(entryName, inputStream, fileAttributes, compressionPolicy.shouldCompress(file));
+                } catch (FileNotFoundException e) {
+                    included = false;
+                }
+                if (manifest != null) {
+                    if (included && fileAttributes != null) {
+                        manifest.put(file, new FileState(
+                            fileAttributes.size(), 
+                            fileAttributes.lastModifiedTime().toMillis(), 
+                            BackupManifest.toHex(digestInputStream.getMessageDigest().digest()),
+                            regionTimestamps));
+                    } else {
+                        // Back up the file again in the next backup, without listing it as deleted
+                        manifest.put(file, FileState.unknown());
                     }
+                    changedFiles++;
+                }
+                // Don't send warning for .lock files, they will always be locked.
+                if (!included && !filePath.endsWith(".lock")) {
+                    logger.info(
+                        intl("local-backup-failed-to-include"),
+                        "file-path", filePath);
                 }
-                zipOutputStream.closeEntry();
             }
-            zipOutputStream.close();
-        } catch (Exception exception) {
-            if (zipOutputStream != null) {
-                zipOutputStream.close();
+            if (previousManifest != null && manifest != null) {
+                List<String> deletedFiles = listDeletedFiles(previousManifest, manifest, formattedInputFolderPath);
+                byte[] deletedFilesList = String.join("\n", deletedFiles).getBytes(StandardCharsets.UTF_8);
+                archiveWriter.putEntry(
+                    BackupRestorer.DELETED_FILES_ENTRY, 
+                    new ByteArrayInputStream(deletedFilesList), 
+                    GeneratedFileAttributes.now(deletedFilesList.length), 
+                    true);
+                logger.info(
+                    intl("local-backup-incremental"),
+                    "changed-files-count", String.valueOf(changedFiles),
+                    "deleted-files-count", String.valueOf(deletedFiles.size()));
             }
-            throw exception; 
+        }
+    }
+
+    /**
+     * Whether the specified file is unchanged since its state was recorded.
+     * <p>
+     * Files with a different modification time but the same size are hashed, to check whether their contents changed.
+     * @param previousState the recorded state of the file
+     * @param filePath the path of the file
+     * @param fileAttributes the current attributes of the file
+     * @return whether the file is unchanged
+     */
+    private static boolean isUnchanged(@NotNull FileState previousState, String filePath, BasicFileAttributes fileAttributes) {
+        if (previousState.matches(fileAttributes)) {
+            return true;
+        }
+        if (!previousState.canCompareHash(fileAttributes)) {
+            return false;
+        }
+        try {
+            return BackupManifest.hash(Paths.get(filePath)).equals(previousState.getHash());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Adds the chunks of the specified region file which were saved since the previous backup to the archive, as a region delta.
+     * @param archiveWriter the archive to add the delta to
+     * @param entryName the name of the region file in the archive
+     * @param filePath the path of the region file
+     * @param fileAttributes the attributes of the region file
+     * @param previousTimestamps the timestamps of the chunks in the region file in the previous backup
+     * @return the timestamps of the chunks in the region file, or {@code null} if the whole file should be included instead
+     * @throws IOException if writing to the archive failed
+     */
+    @Nullable
+    private static int[] putRegionDelta(ArchiveWriter archiveWriter, String entryName, String filePath, 
+                                        BasicFileAttributes fileAttributes, int[] previousTimestamps) throws IOException {
+        RegionFile region;
+        byte[] delta;
+        try (RandomAccessFile regionFile = new RandomAccessFile(filePath, "r")) {
+            region = RegionFile.readHeader(regionFile);
+            if (region == null) {
+                return null;
+            }
+            delta = RegionDelta.create(regionFile, region, previousTimestamps);
+        } catch (IOException e) {
+            // The region file is corrupted or locked, so try including it as is
+            return null;
+        }
+        if (delta.length >= fileAttributes.size()) {
+            return null;
+        }
+        archiveWriter.putEntry(
+            entryName + RegionDelta.EXTENSION,
+            new ByteArrayInputStream(delta),
+            new GeneratedFileAttributes(delta.length, fileAttributes.lastModifiedTime()),
+            true);
+        return region.getTimestamps();
+    }
+
+    /**
+     * Lists the files in the previous manifest which are no longer in the current manifest.
+     * @param previousManifest the manifest of the previous backup
+     * @param manifest the manifest of the current backup
+     * @param formattedInputFolderPath the name of the folder the files are in, in the archive
+     * @return the names of the archive entries of the deleted files
+     */
+    @NotNull
+    private static List<String> listDeletedFiles(@NotNull BackupManifest previousManifest, @NotNull BackupManifest manifest, String formattedInputFolderPath) {
+        Set<String> currentFiles = new HashSet<>(manifest.getPaths());
+        List<String> deletedFiles = new ArrayList<>();
+        for (String file : previousManifest.getPaths()) {
+            if (!currentFiles.contains(file)) {
+                deletedFiles.add(formattedInputFolderPath + "/" + file);
+            }
+        }
+        return deletedFiles;
+    }
+
+    /**
+     * Creates a writer for an archive in the archive format specified by the user in the {@code config.yml}.
+     * @param outputStream where to write the archive to
+     * @param compressionPolicy the policy deciding which files in zip files are compressed
+     * @param backupFolder the folder containing the local backups, and the chunk store of deduplicating backups
+     * @return the writer
+     * @throws IOException if setting up the compressor failed
+     */
+    @NotNull
+    private ArchiveWriter createArchiveWriter(OutputStream outputStream, CompressionPolicy compressionPolicy, File backupFolder) throws IOException {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+        try {
+            switch (backupStorage.archiveFormat) {
+                case TAR_ZSTD:
+                    // Zstandard uses threads of its own, so they're divided between the backups created at once instead
+                    return TarArchiveWriter.zstd(outputStream, backupStorage.zstdCompression, getCompressionWorkers());
+                case TAR_LZ4:
+                    return TarArchiveWriter.lz4(outputStream, backupStorage.lz4Compression);
+                case DEDUP:
+                    return new DedupArchiveWriter(
+                        outputStream,
+                        ChunkStore.open(new File(backupFolder, ChunkStore.FOLDER_NAME)),
+                        backupStorage.dedupChunkSize * 1024,
+                        backupStorage.zipCompression,
+                        compressionPolicy);
+                default:
+                    return new ParallelZipWriter(
+                        outputStream,
+                        backupStorage.zipCompression,
+                        getCompressionExecutor(),
+                        getCompressionWorkers(),
+                        compressionPolicy);
+            }
+        } catch (IOException | RuntimeException exception) {
+            outputStream.close();
+            throw exception;
         }
     }
 
     /**
      * A list of files to put in a zip file
-     * Mutable.
+     * Mutable, and safe to fill from several threads.
      */
     private static class BackupFileList {
-        private int filesInBackupFolder;
-        private List<String> fileList;
-        private List<BlacklistEntry> blacklist;
+        private final AtomicInteger filesInBackupFolder;
+        private final Queue<BackupFile> fileList;
+        private final Blacklist blacklist;
         
         @Contract (pure = true)
-        private BackupFileList(List<BlacklistEntry> blacklist) {
-            this.filesInBackupFolder = 0;
-            this.fileList = new ArrayList<>();
+        private BackupFileList(Blacklist blacklist) {
+            this.filesInBackupFolder = new AtomicInteger();
+            this.fileList = new ConcurrentLinkedQueue<>();
             this.blacklist = blacklist;
         }
 
         void incFilesInBackupFolder() {
-            filesInBackupFolder++;
+            filesInBackupFolder.incrementAndGet();
         }
 
         int getFilesInBackupFolder() {
-            return filesInBackupFolder;
+            return filesInBackupFolder.get();
         }
 
-        void appendToList(String file) {
-            fileList.add(file);
+        void appendToList(String file, BasicFileAttributes attributes) {
+            fileList.add(new BackupFile(file, attributes));
         }
 
-        List<String> getList() {
-            return fileList;
+        int size() {
+            return fileList.size();
         }
 
-        List<BlacklistEntry> getBlacklist() {
+        /**
+         * Gets the files in the list, sorted by path so that archives are laid out the same way every time.
+         * @return the files
+         */
+        List<BackupFile> getList() {
+            List<BackupFile> files = new ArrayList<>(fileList);
+            files.sort(Comparator.comparing(file -> file.path));
+            return files;
+        }
+
+        Blacklist getBlacklist() {
             return blacklist;
         }
     }
 
+    /**
+     * A file to put in a zip file, with the attributes read while scanning for it
+     */
+    private static final class BackupFile {
+        private final String path;
+        private final BasicFileAttributes attributes;
+
+        private BackupFile(String path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+        }
+    }
+
     /**
      * Generates a list of files to put in the zip created from the specified folder.
+     * <p>
+     * Folders are scanned in parallel, using the number of threads specified by the user in the {@code config.yml}.
      * @param inputFolderPath The path of the folder to create the zip from
      * @throws Exception
      */
     @NotNull
-    private BackupFileList generateFileList(String inputFolderPath, List<BlacklistEntry> blacklist) throws Exception {
+    private BackupFileList generateFileList(String inputFolderPath, Blacklist blacklist) throws Exception {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
         BackupFileList fileList = new BackupFileList(blacklist);
-        generateFileList(new File(inputFolderPath), inputFolderPath, fileList);
+        // Resolved once, as resolving canonical paths is slow
+        Path backupFolder = new File(backupStorage.localDirectory).getCanonicalFile().toPath();
+        Path inputFolder = Paths.get(inputFolderPath);
+        Timer timer = new Timer();
+        timer.start();
+        BasicFileAttributes attributes = Files.readAttributes(inputFolder, BasicFileAttributes.class);
+        if (attributes.isDirectory()) {
+            getScanPool().invoke(new ScanTask(inputFolder, inputFolder, backupFolder, fileList, null));
+        } else {
+            addToFileList(inputFolder, attributes, inputFolder, backupFolder, fileList, false, null);
+        }
+        timer.end();
+        logger.info(timer.getScanTimeMessage(fileList.size()));
         return fileList;
     }
 
     /**
-     * Adds the specified file or folder to the list of files to put in the zip created from the specified folder.
-     * @param file the file or folder to add
-     * @param inputFolderPath the path of the folder to create the zip 
-     * @param fileList the list of files to add the specified file or folder to.
-     * @throws Exception
+     * Adds the specified file to the list of files to put in the zip created from the specified folder, unless it's
+     * blacklisted or a previous backup.
+     * @param file the file to add
+     * @param attributes the attributes of the file
+     * @param inputFolder the folder to create the zip from
+     * @param backupFolder the canonical path of the folder used for backups
+     * @param fileList the list of files to add the specified file to
+     * @param inBackupFolder whether the folder containing the file is in the folder used for backups
+     * @param excludedBy the entry of the blacklist matching everything in the folder containing the file, if any
+     * @throws IOException if resolving the canonical path of a symbolic link failed
      */
-    private void generateFileList(@NotNull File file, String inputFolderPath, BackupFileList fileList) throws Exception {
-        BasicFileAttributes fileAttributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
-        if (fileAttributes.isRegularFile()) {
-            // Verify not backing up previous backups
-            if (file.getCanonicalPath().startsWith(new File(ConfigParser.getConfig().backupStorage.localDirectory).getCanonicalPath())) {
-                fileList.incFilesInBackupFolder();
-                return;
-            }
-            Path relativePath = Paths.get(inputFolderPath).relativize(file.toPath());
-            for (BlacklistEntry blacklistEntry : fileList.getBlacklist()) {
-                if (blacklistEntry.getPathMatcher().matches(relativePath)) {
-                    blacklistEntry.incBlacklistedFiles();
+    private static void addToFileList(Path file, BasicFileAttributes attributes, Path inputFolder, Path backupFolder, 
+                                      BackupFileList fileList, boolean inBackupFolder, 
+                                      @Nullable BlacklistEntry excludedBy) throws IOException {
+        // Verify not backing up previous backups
+        if (inBackupFolder || (Files.isSymbolicLink(file) && file.toFile().getCanonicalFile().toPath().startsWith(backupFolder))) {
+            fileList.incFilesInBackupFolder();
+            return;
+        }
+        if (excludedBy != null) {
+            excludedBy.incBlacklistedFiles();
+            return;
+        }
+        Path relativePath = inputFolder.relativize(file);
+        BlacklistEntry blacklistEntry = fileList.getBlacklist().match(relativePath);
+        if (blacklistEntry != null) {
+            blacklistEntry.incBlacklistedFiles();
+            return;
+        }
+        fileList.appendToList(relativePath.toString(), attributes);
+    }
 
-                    return;
+    /**
+     * Scans a folder for files to put in the zip, scanning each subfolder in a separate task.
+     * <p>
+     * Files in a folder the blacklist excludes entirely are only counted, without matching them against the blacklist.
+     */
+    private class ScanTask extends RecursiveAction {
+        private final Path folder;
+        private final Path inputFolder;
+        private final Path backupFolder;
+        private final BackupFileList fileList;
+        private final BlacklistEntry excludedBy;
+
+        /**
+         * Creates an instance of the {@code ScanTask} object
+         * @param folder the folder to scan
+         * @param inputFolder the folder to create the zip from
+         * @param backupFolder the canonical path of the folder used for backups
+         * @param fileList the list of files to add the files in the folder to
+         * @param excludedBy the entry of the blacklist matching everything in the folder, if any
+         */
+        private ScanTask(Path folder, Path inputFolder, Path backupFolder, BackupFileList fileList, @Nullable BlacklistEntry excludedBy) {
+            this.folder = folder;
+            this.inputFolder = inputFolder;
+            this.backupFolder = backupFolder;
+            this.fileList = fileList;
+            this.excludedBy = excludedBy;
+        }
+
+        @Override
+        protected void compute() {
+            List<ScanTask> subfolderTasks = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+                boolean inBackupFolder = folder.toFile().getCanonicalFile().toPath().startsWith(backupFolder);
+                for (Path file : files) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    } catch (IOException e) {
+                        logFailedToInclude(file);
+                        continue;
+                    }
+                    if (attributes.isRegularFile()) {
+                        addToFileList(file, attributes, inputFolder, backupFolder, fileList, inBackupFolder, excludedBy);
+                    } else if (attributes.isDirectory()) {
+                        BlacklistEntry subfolderExcludedBy = excludedBy;
+                        if (subfolderExcludedBy == null) {
+                            subfolderExcludedBy = fileList.getBlacklist().matchFolder(inputFolder.relativize(file));
+                        }
+                        subfolderTasks.add(new ScanTask(file, inputFolder, backupFolder, fileList, subfolderExcludedBy));
+                    } else {
+                        logFailedToInclude(file);
+                    }
                 }
+            } catch (IOException e) {
+                logFailedToInclude(folder);
             }
-            fileList.appendToList(relativePath.toString());
-        } else if (fileAttributes.isDirectory()) {
-            for (String filename : file.list()) {
-                generateFileList(new File(file, filename), inputFolderPath, fileList);
-            }
-        } else {
+            invokeAll(subfolderTasks);
+        }
+
+        private void logFailedToInclude(@NotNull Path file) {
             logger.info(intl("local-backup-failed-to-include"),
-                "file-path", file.getAbsolutePath()
+                "file-path", file.toAbsolutePath().toString()
                 );
         }
     }
 
+    /**
+     * Gets the folder containing the local backups of the specified file/folder.
+     * @param location the location of the file or folder
+     * @return the folder
+     */
+    @NotNull
+    private static File getBackupFolder(@NotNull String location) {
+        String subFolderName = location;
+        if (isBaseFolder(subFolderName)) {
+            subFolderName = "root";
+        }
+        return new File(escapeBackupLocation(ConfigParser.getConfig().backupStorage.localDirectory + "/" + subFolderName));
+    }
+
+    /**
+     * Gets the folder containing the chunk store of the deduplicating backups of the specified file/folder.
+     * @param location the location of the file or folder
+     * @return the folder
+     */
+    @NotNull
+    public static File getChunkStoreFolder(@NotNull String location) {
+        return new File(getBackupFolder(location), ChunkStore.FOLDER_NAME);
+    }
+
     /**
      * Removes ".." from the location string to keep the location's backup folder within the local-save-directory.
      * @param location the unescaped location
@@ -341,6 +844,25 @@ public class FileUtil {
         return list;
     }
 
+    /**
+     * Reads from the specified stream until the buffer is full, or the end of the stream is reached.
+     * @param input the stream to read from
+     * @param buffer the buffer to read into
+     * @return the number of bytes read, less than the size of the buffer only at the end of the stream
+     * @throws IOException if reading from the stream failed
+     */
+    public static int readChunk(@NotNull InputStream input, byte @NotNull [] buffer) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int read = input.read(buffer, length, buffer.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
     /**
      * Whether the specified folder is the base folder of the Minecraft server.
      * <p>
@@ -0,0 +1,34 @@
+package ratismal.drivebackup.util;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates daemon threads with a common name prefix and priority, so that the worker threads used during a backup
+ * are easy to identify and don't compete with the server's main thread.
+ */
+public class NamedThreadFactory implements ThreadFactory {
+    private final String name;
+    private final int priority;
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    /**
+     * Creates an instance of the {@code NamedThreadFactory} object
+     * @param name the prefix of the name of each created thread
+     * @param priority the priority of each created thread
+     */
+    public NamedThreadFactory(String name, int priority) {
+        this.name = name;
+        this.priority = priority;
+    }
+
+    @Override
+    public Thread newThread(@NotNull Runnable runnable) {
+        Thread thread = new Thread(runnable, "DriveBackupV2-" + name + "-" + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        thread.setPriority(priority);
+        return thread;
+    }
+}
@@ -0,0 +1,192 @@
+package ratismal.drivebackup.util;
+
+import org.jetbrains.annotations.Contract;
+import org.jetbrains.annotations.NotNull;
+import ratismal.drivebackup.config.ConfigParser;
+import ratismal.drivebackup.config.configSections.BackupStorage;
+
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.IsoFields;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Decides which backups to delete, keeping the newest backups, along with the newest backup of each of the most recent
+ * hours, days, weeks and months.
+ * <p>
+ * This allows keeping a long history of backups without keeping every backup made in it, for example a month of
+ * history with hourly backups takes 24 hourly, 7 daily and 4 weekly backups rather than 720 backups. Kept incremental
+ * backups also keep the backups they need to be restored, back to the last full backup before them.
+ */
+public final class RetentionPolicy {
+    private final int keepCount;
+    private final int[] keepGenerations;
+    private final ZoneId timezone;
+
+    /**
+     * Creates an instance of the {@code RetentionPolicy} object
+     * @param keepCount the number of newest backups to keep, or {@code -1} to keep every backup
+     * @param keepHourly the number of hours to keep the newest backup of
+     * @param keepDaily the number of days to keep the newest backup of
+     * @param keepWeekly the number of weeks to keep the newest backup of
+     * @param keepMonthly the number of months to keep the newest backup of
+     * @param timezone the timezone to divide backups into hours, days, weeks and months in
+     */
+    public RetentionPolicy(int keepCount, int keepHourly, int keepDaily, int keepWeekly, int keepMonthly, ZoneId timezone) {
+        this.keepCount = keepCount;
+        keepGenerations = new int[Generation.values().length];
+        keepGenerations[Generation.HOURLY.ordinal()] = keepHourly;
+        keepGenerations[Generation.DAILY.ordinal()] = keepDaily;
+        keepGenerations[Generation.WEEKLY.ordinal()] = keepWeekly;
+        keepGenerations[Generation.MONTHLY.ordinal()] = keepMonthly;
+        this.timezone = timezone;
+    }
+
+    /**
+     * Gets the policy for backups stored in backup methods, as specified by the user in the {@code config.yml}.
+     * @return the policy
+     */
+    @NotNull
+    @Contract (" -> new")
+    public static RetentionPolicy remote() {
+        return fromConfig(ConfigParser.getConfig().backupStorage.keepCount);
+    }
+
+    /**
+     * Gets the policy for backups stored locally, as specified by the user in the {@code config.yml}.
+     * @return the policy
+     */
+    @NotNull
+    @Contract (" -> new")
+    public static RetentionPolicy local() {
+        return fromConfig(ConfigParser.getConfig().backupStorage.localKeepCount);
+    }
+
+    @NotNull
+    private static RetentionPolicy fromConfig(int keepCount) {
+        BackupStorage backupStorage = ConfigParser.getConfig().backupStorage;
+        return new RetentionPolicy(
+            keepCount,
+            backupStorage.keepHourly,
+            backupStorage.keepDaily,
+            backupStorage.keepWeekly,
+            backupStorage.keepMonthly,
+            ConfigParser.getConfig().advanced.dateTimezone
+            );
+    }
+
+    /**
+     * Gets the number of newest backups to keep.
+     * @return the number of backups, or {@code -1} if every backup is kept
+     */
+    public int getKeepCount() {
+        return keepCount;
+    }
+
+    /**
+     * Whether every backup is kept, so there is no need to list the backups.
+     * @return whether every backup is kept
+     */
+    public boolean isUnlimited() {
+        return keepCount == -1;
+    }
+
+    /**
+     * Selects the backups to delete in a single pass over the specified backups.
+     * <p>
+     * A backup is kept if it's one of the newest backups to keep, or the newest backup of one of the most recent hours,
+     * days, weeks or months to keep. If an incremental backup is kept, every backup before it back to the last full backup
+     * is kept too, as they're needed to restore it. If no backups are to be kept, which is the case for local backups when
+     * they are deleted once uploaded, every backup is deleted regardless of the hours, days, weeks and months to keep.
+     * @param backups the backups, in any order
+     * @param creationTime gets when a backup was created
+     * @param fileName gets the file name of a backup, which tells whether it's incremental
+     * @param <T> the type of the backups
+     * @return the backups to delete, oldest first
+     */
+    @NotNull
+    public <T> List<T> getBackupsToDelete(@NotNull Collection<T> backups, @NotNull Function<T, Instant> creationTime, @NotNull Function<T, String> fileName) {
+        List<T> toDelete = new ArrayList<>();
+        if (isUnlimited() || backups.size() <= keepCount) {
+            return toDelete;
+        }
+        List<T> newestFirst = new ArrayList<>(backups);
+        newestFirst.sort(Comparator.comparing(creationTime).reversed());
+        int[] kept = new int[keepGenerations.length];
+        Object[] lastPeriods = new Object[keepGenerations.length];
+        // Whether a newer incremental backup which is kept needs this backup to be restored
+        boolean neededByIncremental = false;
+        for (int i = 0; i < newestFirst.size(); i++) {
+            T backup = newestFirst.get(i);
+            boolean keep = i < keepCount || neededByIncremental;
+            if (keepCount != 0) {
+                ZonedDateTime created = creationTime.apply(backup).atZone(timezone);
+                for (Generation generation : Generation.values()) {
+                    int index = generation.ordinal();
+                    if (kept[index] >= keepGenerations[index]) {
+                        continue;
+                    }
+                    Object period = generation.getPeriod(created);
+                    if (!period.equals(lastPeriods[index])) {
+                        lastPeriods[index] = period;
+                        kept[index]++;
+                        keep = true;
+                    }
+                }
+            }
+            if (keep) {
+                neededByIncremental = FileUtil.isIncremental(fileName.apply(backup));
+            } else {
+                toDelete.add(backup);
+            }
+        }
+        // Deleted oldest first, so if deleting fails part way through, the newest backups remain
+        Collections.reverse(toDelete);
+        return toDelete;
+    }
+
+    /**
+     * The periods of time which the newest backup of is kept
+     */
+    private enum Generation {
+        HOURLY {
+            @Override
+            Object getPeriod(@NotNull ZonedDateTime created) {
+                return created.toLocalDateTime().truncatedTo(ChronoUnit.HOURS);
+            }
+        },
+        DAILY {
+            @Override
+            Object getPeriod(@NotNull ZonedDateTime created) {
+                return created.toLocalDate();
+            }
+        },
+        WEEKLY {
+            @Override
+            Object getPeriod(@NotNull ZonedDateTime created) {
+                return created.get(IsoFields.WEEK_BASED_YEAR) * 100L + created.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR);
+            }
+        },
+        MONTHLY {
+            @Override
+            Object getPeriod(@NotNull ZonedDateTime created) {
+                return YearMonth.from(created);
+            }
+        };
+
+        /**
+         * Gets the period of time the specified backup was created in.
+         * @param created when the backup was created
+         * @return a value which is equal for backups created in the same period
+         */
+        abstract Object getPeriod(@NotNull ZonedDateTime created);
+    }
+}
@@ -48,18 +48,45 @@ public class Timer {
      * @return message
      */
     public String getUploadTimeMessage(@NotNull File file) {
+        return getUploadTimeMessage(file.length());
+    }
+
+    /**
+     * Construct an upload message
+     * @param size the number of bytes that were uploaded
+     * @return message
+     */
+    public String getUploadTimeMessage(long size) {
         DecimalFormat df = new DecimalFormat("#.##");
         df.setDecimalFormatSymbols(DecimalFormatSymbols.getInstance(Locale.ENGLISH));
 
         double difference = getTime();
         double length = difference / 1000;
-        double speed = ( ((double) file.length()) / 1024) / length;
+        double speed = ( ((double) size) / 1024) / length;
         
         return intl("file-upload-message")
             .replace("<length>", df.format(length))
             .replace("<speed>", df.format(speed));
     }
 
+    /**
+     * Construct a message for scanning for files to back up
+     * @param fileCount the number of files that were found
+     * @return message
+     */
+    public String getScanTimeMessage(int fileCount) {
+        DecimalFormat df = new DecimalFormat("#.##");
+        df.setDecimalFormatSymbols(DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+
+        double length = (double) getTime() / 1000;
+        double speed = length > 0 ? fileCount / length : fileCount;
+
+        return intl("local-backup-scan-complete")
+            .replace("<file-count>", String.valueOf(fileCount))
+            .replace("<length>", df.format(length))
+            .replace("<speed>", df.format(speed));
+    }
+
     /**
      * Calculates the time
      * @return Calculated time